@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.distributions;
+
+import java.util.Arrays;
+
+/**
+ * Auxiliary random variables from which the particles of the untyped
+ * structured coalescent density draw their random numbers in correlated
+ * pseudo-marginal mode.  Each particle owns a block of standard normal
+ * variables, which are mapped to uniforms and consumed first, together
+ * with the seed of the stream it falls back on once the block is
+ * exhausted.
+ *
+ * A new state is proposed from the current one by a Crank-Nicolson step,
+ * z' = rho*z + sqrt(1-rho^2)*e with e standard normal, while each stream
+ * seed is redrawn with probability 1-rho.  Both moves leave the prior on
+ * the auxiliary variables invariant, so the density estimate remains
+ * valid for pseudo-marginal MCMC while the estimates at the current and
+ * proposed states are strongly correlated when rho is close to 1.
+ *
+ * Proposals are written to a spare set of arrays which then replaces the
+ * current set, the replaced set being retained as the stored state.
+ * Storing, restoring and accepting therefore copy nothing.
+ */
+class ParticleAuxiliaryState {
+
+    final int length;
+    int nParticles;
+
+    private double[] normals, spareNormals;
+    private long[] seeds, spareSeeds;
+
+    // Whether a proposal has been stored but not yet made:
+    private boolean proposalPending;
+
+    // Whether the spare arrays hold the stored state, following a
+    // proposal made since the last call to store():
+    private boolean proposalMade;
+
+    /**
+     * @param nParticles number of particles
+     * @param length number of auxiliary variables per particle
+     */
+    ParticleAuxiliaryState(int nParticles, int length) {
+        this.nParticles = nParticles;
+        this.length = length;
+
+        normals = new double[nParticles*length];
+        spareNormals = new double[nParticles*length];
+        seeds = new long[nParticles];
+        spareSeeds = new long[nParticles];
+    }
+
+    /**
+     * Draw the auxiliary variables of a particle from their prior.
+     *
+     * @param p particle index
+     * @param random stream from which to draw
+     */
+    void sample(int p, ParticleRandom random) {
+        for (int i=p*length; i<(p+1)*length; i++)
+            normals[i] = random.nextGaussian();
+        seeds[p] = random.nextLong();
+    }
+
+    /**
+     * Draw a correlated proposal for the auxiliary variables of a
+     * particle.  The proposal replaces the current variables once
+     * proposalMade() is called.
+     *
+     * @param p particle index
+     * @param random stream from which to draw innovations
+     * @param rho correlation between current and proposed variables
+     */
+    void propose(int p, ParticleRandom random, double rho) {
+        double scale = Math.sqrt(1.0 - rho*rho);
+        for (int i=p*length; i<(p+1)*length; i++)
+            spareNormals[i] = rho*normals[i] + scale*random.nextGaussian();
+
+        if (random.nextDouble()>=rho)
+            spareSeeds[p] = random.nextLong();
+        else
+            spareSeeds[p] = seeds[p];
+    }
+
+    /**
+     * Change the number of particles.  Variables of retained particles
+     * are kept, and those of new particles drawn from their prior.
+     *
+     * @param newCount new number of particles
+     * @param seed seed from which variables of new particles are drawn
+     */
+    void resize(int newCount, long seed) {
+        int oldCount = nParticles;
+        nParticles = newCount;
+
+        normals = Arrays.copyOf(normals, newCount*length);
+        spareNormals = Arrays.copyOf(spareNormals, newCount*length);
+        seeds = Arrays.copyOf(seeds, newCount);
+        spareSeeds = Arrays.copyOf(spareSeeds, newCount);
+
+        ParticleRandom random = new ParticleRandom();
+        for (int p=oldCount; p<newCount; p++) {
+            random.setStream(seed, p);
+            sample(p, random);
+
+            // New particles have no earlier state to return to:
+            if (proposalMade) {
+                System.arraycopy(normals, p*length, spareNormals, p*length, length);
+                spareSeeds[p] = seeds[p];
+            }
+        }
+    }
+
+    /**
+     * Position a stream at the start of the random numbers of a particle.
+     *
+     * @param random stream to position
+     * @param p particle index
+     */
+    void setStream(ParticleRandom random, int p) {
+        random.setStream(seeds[p], p, normals, p*length, length);
+    }
+
+    /**
+     * @return true if a proposal should be made before the next
+     * evaluation.
+     */
+    boolean isProposalPending() {
+        return proposalPending;
+    }
+
+    /**
+     * Replace the current variables with those drawn by propose(),
+     * retaining the current ones as the stored state.
+     */
+    void proposalMade() {
+        double[] tmp = normals;
+        normals = spareNormals;
+        spareNormals = tmp;
+
+        long[] tmpSeeds = seeds;
+        seeds = spareSeeds;
+        spareSeeds = tmpSeeds;
+
+        proposalPending = false;
+        proposalMade = true;
+    }
+
+    /**
+     * Mark the current variables as stored and a proposal as pending.
+     */
+    void store() {
+        proposalPending = true;
+        proposalMade = false;
+    }
+
+    /**
+     * Return to the variables current at the last call to store().
+     */
+    void restore() {
+        if (proposalMade) {
+            double[] tmp = normals;
+            normals = spareNormals;
+            spareNormals = tmp;
+
+            long[] tmpSeeds = seeds;
+            seeds = spareSeeds;
+            spareSeeds = tmpSeeds;
+        }
+
+        proposalPending = false;
+        proposalMade = false;
+    }
+
+    /**
+     * Keep the current variables.
+     */
+    void accept() {
+        proposalPending = false;
+        proposalMade = false;
+    }
+
+    /**
+     * Standard normal distribution function, computed from its Taylor
+     * series (Marsaglia, 2004) to near double precision absolute accuracy.
+     *
+     * @param z argument
+     * @return Phi(z), restricted to [0,1)
+     */
+    static double standardNormalCDF(double z) {
+        if (z<-8.0)
+            return 0.0;
+        if (z>8.0)
+            return Math.nextDown(1.0);
+
+        double q = z*z;
+        double s = z, t = 0.0, b = z;
+        for (int i=3; s != t; i += 2) {
+            t = s;
+            b *= q/i;
+            s = t + b;
+        }
+
+        // 0.918... = log(sqrt(2*pi)):
+        double phi = 0.5 + s*Math.exp(-0.5*q - 0.91893853320467274178);
+        return Math.max(0.0, Math.min(phi, Math.nextDown(1.0)));
+    }
+}
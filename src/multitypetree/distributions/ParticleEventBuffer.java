@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.distributions;
+
+import java.util.Arrays;
+
+/**
+ * Reusable list of the sampling, coalescence and migration events of a
+ * particle, held in parallel primitive arrays so that simulating a
+ * particle allocates nothing once the arrays have grown to size.  Event
+ * kinds are the constants of TreeEventIndex.
+ *
+ * Events are added lineage by lineage, each lineage in time order, so
+ * sort() is a natural merge sort which merges these runs pairwise using
+ * spare arrays of the same size.
+ */
+final class ParticleEventBuffer {
+
+    double[] times = new double[64];
+    byte[] kinds = new byte[64];
+    int[] types = new int[64];
+    int[] destTypes = new int[64];
+    int size;
+
+    private double[] spareTimes = new double[64];
+    private byte[] spareKinds = new byte[64];
+    private int[] spareTypes = new int[64];
+    private int[] spareDestTypes = new int[64];
+
+    // Start indices of sorted runs, followed by the end of the last run:
+    private int[] runStarts = new int[16];
+
+    /**
+     * Remove all events.
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Append an event.
+     *
+     * @param kind event kind
+     * @param type type of lineage involved in event
+     * @param destType destination type of migration (ignored for other
+     * kinds of event)
+     * @param time time of event
+     */
+    void add(byte kind, int type, int destType, double time) {
+        if (size == times.length)
+            grow();
+
+        times[size] = time;
+        kinds[size] = kind;
+        types[size] = type;
+        destTypes[size] = destType;
+        size += 1;
+    }
+
+    /**
+     * Sort events into increasing time order.  The sort is stable.
+     */
+    void sort() {
+        if (size<2)
+            return;
+
+        int nRuns = 0;
+        runStarts[nRuns++] = 0;
+        for (int i=1; i<size; i++) {
+            if (times[i]<times[i-1]) {
+                if (nRuns+1 >= runStarts.length)
+                    runStarts = Arrays.copyOf(runStarts, 2*runStarts.length);
+                runStarts[nRuns++] = i;
+            }
+        }
+        runStarts[nRuns] = size;
+
+        while (nRuns>1) {
+            int newRuns = 0;
+            for (int r=0; r<nRuns; r+=2) {
+                int lo = runStarts[r];
+                int mid = runStarts[Math.min(r+1, nRuns)];
+                int hi = runStarts[Math.min(r+2, nRuns)];
+                merge(lo, mid, hi);
+                runStarts[newRuns++] = lo;
+            }
+            runStarts[newRuns] = size;
+            nRuns = newRuns;
+
+            swap();
+        }
+    }
+
+    /**
+     * Merge the sorted ranges [lo,mid) and [mid,hi) into the same
+     * positions of the spare arrays.
+     */
+    private void merge(int lo, int mid, int hi) {
+        int i = lo, j = mid;
+        for (int k=lo; k<hi; k++) {
+            int src;
+            if (j>=hi || (i<mid && times[i]<=times[j]))
+                src = i++;
+            else
+                src = j++;
+
+            spareTimes[k] = times[src];
+            spareKinds[k] = kinds[src];
+            spareTypes[k] = types[src];
+            spareDestTypes[k] = destTypes[src];
+        }
+    }
+
+    private void swap() {
+        double[] tmpTimes = times;
+        times = spareTimes;
+        spareTimes = tmpTimes;
+
+        byte[] tmpKinds = kinds;
+        kinds = spareKinds;
+        spareKinds = tmpKinds;
+
+        int[] tmp = types;
+        types = spareTypes;
+        spareTypes = tmp;
+
+        tmp = destTypes;
+        destTypes = spareDestTypes;
+        spareDestTypes = tmp;
+    }
+
+    private void grow() {
+        int capacity = 2*times.length;
+
+        times = Arrays.copyOf(times, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        types = Arrays.copyOf(types, capacity);
+        destTypes = Arrays.copyOf(destTypes, capacity);
+
+        spareTimes = new double[capacity];
+        spareKinds = new byte[capacity];
+        spareTypes = new int[capacity];
+        spareDestTypes = new int[capacity];
+    }
+}
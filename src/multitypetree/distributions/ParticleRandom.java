@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.distributions;
+
+/**
+ * Random number stream used when simulating a single particle.  Each
+ * stream is identified by a seed, drawn once per density evaluation from
+ * Randomizer, together with the particle index, and its output depends on
+ * nothing else.  Particles therefore see the same random numbers however
+ * they are distributed among threads.
+ *
+ * The generator is SplitMix64 (Steele, Lea and Flood, 2014), whose state
+ * is a single counter, making it cheap to position a stream.  A stream
+ * may instead begin with stored standard normals, which are mapped to
+ * uniforms and consumed before the generator is used; this is how
+ * particles reuse auxiliary variables in correlated pseudo-marginal mode.
+ */
+final class ParticleRandom {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    // Means below this are sampled by inversion:
+    private static final double POISSON_INVERSION_LIMIT = 10.0;
+
+    // ln(k!) for small k:
+    private static final double[] LOG_FACTORIAL = new double[256];
+    static {
+        LOG_FACTORIAL[0] = 0.0;
+        for (int k=1; k<LOG_FACTORIAL.length; k++)
+            LOG_FACTORIAL[k] = LOG_FACTORIAL[k-1] + Math.log(k);
+    }
+
+    private long state;
+
+    // Stored standard normals consumed ahead of the generator:
+    private double[] buffer;
+    private int bufferPos, bufferEnd;
+
+    /**
+     * Position generator at the start of a stream.
+     *
+     * @param seed seed shared by all streams of an evaluation
+     * @param stream stream index (typically the particle index)
+     */
+    void setStream(long seed, long stream) {
+        state = mix64(seed ^ mix64((stream + 1)*GOLDEN_GAMMA));
+        buffer = null;
+        bufferPos = 0;
+        bufferEnd = 0;
+    }
+
+    /**
+     * Position generator at the start of a stream which begins with the
+     * uniforms obtained by applying the standard normal distribution
+     * function to the given normals.
+     *
+     * @param seed seed of stream used once the normals are exhausted
+     * @param stream stream index
+     * @param normals array holding standard normals
+     * @param offset index of first normal in array
+     * @param length number of normals
+     */
+    void setStream(long seed, long stream, double[] normals, int offset, int length) {
+        setStream(seed, stream);
+        buffer = normals;
+        bufferPos = offset;
+        bufferEnd = offset + length;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30))*0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27))*0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix64(state);
+    }
+
+    /**
+     * @return uniform double in [0,1)
+     */
+    double nextDouble() {
+        if (bufferPos<bufferEnd)
+            return ParticleAuxiliaryState.standardNormalCDF(buffer[bufferPos++]);
+
+        return (nextLong() >>> 11)*DOUBLE_UNIT;
+    }
+
+    /**
+     * @param n upper bound (exclusive), must be positive
+     * @return uniform integer in [0,n)
+     */
+    int nextInt(int n) {
+        // Stored variables are mapped directly, so that nearby values
+        // give the same choice:
+        if (bufferPos<bufferEnd)
+            return Math.min((int)(nextDouble()*n), n-1);
+
+        // Lemire's nearly divisionless method, rejecting to remove bias:
+        long m = (nextLong() >>> 32)*n;
+        long low = m & 0xffffffffL;
+        if (low<n) {
+            long threshold = (0x100000000L - n) % n;
+            while (low<threshold) {
+                m = (nextLong() >>> 32)*n;
+                low = m & 0xffffffffL;
+            }
+        }
+        return (int)(m >>> 32);
+    }
+
+    /**
+     * @param rate rate of exponential distribution
+     * @return exponentially distributed variate
+     */
+    double nextExponential(double rate) {
+        return -Math.log(1.0 - nextDouble())/rate;
+    }
+
+    /**
+     * @return standard normal variate
+     */
+    double nextGaussian() {
+        // Box-Muller transform, using one of the two variates:
+        double r = Math.sqrt(-2.0*Math.log(1.0 - nextDouble()));
+        return r*Math.cos(2.0*Math.PI*nextDouble());
+    }
+
+    /**
+     * Fill array with a uniformly random permutation of 0,...,n-1.
+     *
+     * @param perm array to fill
+     * @param n length of permutation
+     */
+    void permutation(int[] perm, int n) {
+        for (int i=0; i<n; i++) {
+            int j = nextInt(i+1);
+            perm[i] = perm[j];
+            perm[j] = i;
+        }
+    }
+
+    /**
+     * @param mean mean of Poisson distribution
+     * @return Poisson distributed variate
+     */
+    long nextPoisson(double mean) {
+        if (mean<POISSON_INVERSION_LIMIT) {
+            // Sequential search through the CDF:
+            double u = nextDouble();
+            double p = Math.exp(-mean);
+            long k = 0;
+            while (u>p) {
+                u -= p;
+                k += 1;
+                p *= mean/k;
+                if (p == 0.0)
+                    break;
+            }
+            return k;
+        }
+
+        // Transformed rejection with squeeze (PTRS), Hormann (1993):
+        double sqrtMean = Math.sqrt(mean);
+        double logMean = Math.log(mean);
+        double b = 0.931 + 2.53*sqrtMean;
+        double a = -0.059 + 0.02483*b;
+        double logInvAlpha = Math.log(1.1239 + 1.1328/(b - 3.4));
+        double vr = 0.9277 - 3.6224/(b - 2);
+
+        while (true) {
+            double u = nextDouble() - 0.5;
+            double v = nextDouble();
+            double us = 0.5 - Math.abs(u);
+            long k = (long)Math.floor((2*a/us + b)*u + mean + 0.43);
+
+            if (us>=0.07 && v<=vr)
+                return k;
+
+            if (k<0 || (us<0.013 && v>us))
+                continue;
+
+            if (Math.log(v) + logInvAlpha - Math.log(a/(us*us) + b)
+                    <= -mean + k*logMean - logFactorial(k))
+                return k;
+        }
+    }
+
+    /**
+     * @param k non-negative integer
+     * @return ln(k!)
+     */
+    static double logFactorial(long k) {
+        if (k<LOG_FACTORIAL.length)
+            return LOG_FACTORIAL[(int)k];
+
+        // Stirling series, accurate to double precision for k >= 256:
+        double x = k;
+        double invX = 1.0/x;
+        double invX2 = invX*invX;
+        return x*Math.log(x) - x + 0.5*Math.log(2.0*Math.PI*x)
+                + invX*(1.0/12.0 - invX2*(1.0/360.0 - invX2/1260.0));
+    }
+}
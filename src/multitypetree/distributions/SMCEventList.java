@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.distributions;
+
+import java.util.Arrays;
+
+import static multitypetree.evolution.tree.TreeEventIndex.COALESCE;
+import static multitypetree.evolution.tree.TreeEventIndex.MIGRATE;
+
+/**
+ * Time-ordered events of the partially coloured tree of an SMC particle,
+ * together with the number of lineages of each type just after each
+ * event.  Event kinds are the constants of TreeEventIndex.
+ *
+ * A list may be shared by several particles following resampling, in
+ * which case none of them modifies it: events are instead merged into a
+ * list held privately by the particle.  The lineage counts allow the
+ * state of the tree at any time to be found by binary search, so adding
+ * a lineage touches only the events it spans and those that follow it.
+ */
+final class SMCEventList {
+
+    final int nTypes;
+
+    double[] times = new double[64];
+    int[] kinds = new int[64];
+    int[] types = new int[64];
+    int[] destTypes = new int[64];
+    int size;
+
+    // Lineage counts after event i occupy [i*nTypes, (i+1)*nTypes):
+    int[] counts;
+
+    // Number of particles referring to this list, maintained while
+    // resampling:
+    int refCount;
+
+    SMCEventList(int nTypes) {
+        this.nTypes = nTypes;
+        counts = new int[64*nTypes];
+    }
+
+    /**
+     * Remove all events.
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * @param t time
+     * @return index of first event occurring after t
+     */
+    int upperBound(double t) {
+        int lo = 0, hi = size;
+        while (lo<hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid]<=t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @param i event index
+     * @param type lineage type
+     * @return number of lineages of the given type just before event i
+     */
+    int getCountBefore(int i, int type) {
+        return i>0 ? counts[(i-1)*nTypes + type] : 0;
+    }
+
+    /**
+     * Merge the time-ordered events of a single lineage into the events
+     * of a source list, storing the result in this list.  Events of the
+     * source list precede added events occurring at the same time.  The
+     * source may be this list, in which case only events following the
+     * first added event are moved.
+     *
+     * @param src list into which events are merged
+     * @param newTimes event times, in increasing order
+     * @param newKinds event kinds
+     * @param newTypes types of lineages involved in events
+     * @param newDestTypes destination types of migrations
+     * @param n number of events to merge
+     */
+    void merge(SMCEventList src, double[] newTimes, int[] newKinds,
+            int[] newTypes, int[] newDestTypes, int n) {
+        if (n == 0) {
+            if (src != this)
+                copyRange(src, 0, 0, src.size);
+            size = src.size;
+            return;
+        }
+
+        int start = src.upperBound(newTimes[0]);
+        int end = src.upperBound(newTimes[n-1]);
+        int srcSize = src.size;
+        ensureCapacity(srcSize + n);
+
+        // Events beyond the added lineage, whose counts change only if
+        // the lineage does not end in a coalescence:
+        copyRange(src, end, end + n, srcSize - end);
+        if (newKinds[n-1] != COALESCE) {
+            int finalType = newKinds[n-1] == MIGRATE
+                    ? newDestTypes[n-1]
+                    : newTypes[n-1];
+            for (int k=end+n; k<srcSize+n; k++)
+                counts[k*nTypes + finalType] += 1;
+        }
+
+        // Events spanned by the added lineage, merged from the back so
+        // that the source may be this list.  Once all added events are
+        // placed, remaining source events are already in position:
+        int i = end - 1, j = n - 1, k = end + n - 1;
+        while (j>=0) {
+            if (i>=start && src.times[i]>newTimes[j]) {
+                times[k] = src.times[i];
+                kinds[k] = src.kinds[i];
+                types[k] = src.types[i];
+                destTypes[k] = src.destTypes[i];
+                i -= 1;
+            } else {
+                times[k] = newTimes[j];
+                kinds[k] = newKinds[j];
+                types[k] = newTypes[j];
+                destTypes[k] = newDestTypes[j];
+                j -= 1;
+            }
+            k -= 1;
+        }
+
+        if (src != this)
+            copyRange(src, 0, 0, i + 1);
+
+        for (k=start; k<end+n; k++) {
+            if (k>0)
+                System.arraycopy(counts, (k-1)*nTypes, counts, k*nTypes, nTypes);
+            else
+                Arrays.fill(counts, 0, nTypes, 0);
+            applyEvent(k);
+        }
+
+        size = srcSize + n;
+    }
+
+    private void applyEvent(int k) {
+        int offset = k*nTypes;
+        switch (kinds[k]) {
+            case COALESCE:
+                counts[offset + types[k]] -= 1;
+                break;
+
+            case MIGRATE:
+                counts[offset + types[k]] -= 1;
+                counts[offset + destTypes[k]] += 1;
+                break;
+
+            default:
+                counts[offset + types[k]] += 1;
+                break;
+        }
+    }
+
+    /**
+     * Copy events [from, from+length) of a source list to positions
+     * starting at to.  The ranges may overlap if the source is this list.
+     */
+    private void copyRange(SMCEventList src, int from, int to, int length) {
+        System.arraycopy(src.times, from, times, to, length);
+        System.arraycopy(src.kinds, from, kinds, to, length);
+        System.arraycopy(src.types, from, types, to, length);
+        System.arraycopy(src.destTypes, from, destTypes, to, length);
+        System.arraycopy(src.counts, from*nTypes, counts, to*nTypes, length*nTypes);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (times.length>=capacity)
+            return;
+
+        capacity = Math.max(capacity, 2*times.length);
+        times = Arrays.copyOf(times, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        types = Arrays.copyOf(types, capacity);
+        destTypes = Arrays.copyOf(destTypes, capacity);
+        counts = Arrays.copyOf(counts, capacity*nTypes);
+    }
+}
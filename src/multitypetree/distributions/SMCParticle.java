@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.distributions;
+
+/**
+ * State of a particle in the sequential Monte Carlo estimate of the
+ * untyped structured coalescent density: the types assigned to the nodes
+ * coloured so far, the order in which leaves are coloured, and the
+ * time-ordered events of the partially coloured tree.  Events use the
+ * kind constants of TreeEventIndex.  A node through which only one
+ * coloured lineage passes contributes no event; a COALESCE event is added
+ * when a second lineage joins it.
+ *
+ * Particles produced by resampling share the event list of their
+ * ancestor.  A particle whose list is shared holds a private list into
+ * which its events are merged when it is next propagated, so that shared
+ * lists are never modified.
+ */
+class SMCParticle {
+
+    final int[] nodeTypes;
+    final int[] leafOrder;
+
+    SMCEventList events;
+
+    // Private list to which events are moved on modification while the
+    // event list is shared, otherwise null:
+    SMCEventList privateEvents;
+
+    // Log weight accumulated since the particles were last resampled:
+    double logWeight;
+
+    SMCParticle(int nodeCount, int leafNodeCount, int nTypes) {
+        nodeTypes = new int[nodeCount];
+        leafOrder = new int[leafNodeCount];
+        events = new SMCEventList(nTypes);
+    }
+
+    /**
+     * Replace state of this particle with that of another.  The event
+     * list is shared rather than copied: the caller is responsible for
+     * providing a private list if the other particle continues to use it.
+     *
+     * @param other particle to copy
+     */
+    void copyFrom(SMCParticle other) {
+        System.arraycopy(other.nodeTypes, 0, nodeTypes, 0, nodeTypes.length);
+        System.arraycopy(other.leafOrder, 0, leafOrder, 0, leafOrder.length);
+
+        events = other.events;
+        privateEvents = null;
+
+        logWeight = other.logWeight;
+    }
+
+    /**
+     * Remove all events.
+     */
+    void clearEvents() {
+        if (privateEvents != null) {
+            events = privateEvents;
+            privateEvents = null;
+        }
+
+        events.clear();
+    }
+
+    /**
+     * Merge the time-ordered events of a single lineage into the event
+     * list.
+     *
+     * @param times event times, in increasing order
+     * @param kinds event kinds
+     * @param types types of lineages involved in events
+     * @param destTypes destination types of migrations
+     * @param n number of events to merge
+     */
+    void mergeEvents(double[] times, int[] kinds, int[] types,
+            int[] destTypes, int n) {
+        if (privateEvents != null) {
+            privateEvents.merge(events, times, kinds, types, destTypes, n);
+            events = privateEvents;
+            privateEvents = null;
+        } else
+            events.merge(events, times, kinds, types, destTypes, n);
+    }
+
+    /**
+     * Integrate the increase in the total coalescence and migration rate
+     * caused by adding a lineage, whose type is piecewise constant, to
+     * the lineages of the partially coloured tree.  Adding a lineage of
+     * type c to k lineages of that type raises the rate by
+     * k*invPopSizes[c] + totalBackwardRates[c].
+     *
+     * @param startTime time at which added lineage begins
+     * @param endTime time at which added lineage ends
+     * @param startType type of added lineage at startTime
+     * @param changeTimes times at which the added lineage changes type
+     * @param changeTypes types taken by the added lineage at these times
+     * @param nChanges number of type changes
+     * @param invPopSizes inverse population sizes
+     * @param totalBackwardRates total backward migration rates
+     * @return integral of the rate increase between startTime and endTime
+     */
+    double integrateAddedRate(double startTime, double endTime, int startType,
+            double[] changeTimes, int[] changeTypes, int nChanges,
+            double[] invPopSizes, double[] totalBackwardRates) {
+
+        SMCEventList list = events;
+        int i = list.upperBound(startTime);
+
+        double integral = 0.0;
+        double t = startTime;
+        int type = startType;
+        int j = 0;
+        while (t<endTime) {
+            double tNext = endTime;
+            if (i<list.size && list.times[i]<tNext)
+                tNext = list.times[i];
+            if (j<nChanges && changeTimes[j]<tNext)
+                tNext = changeTimes[j];
+
+            integral += (tNext - t)*(list.getCountBefore(i, type)*invPopSizes[type]
+                    + totalBackwardRates[type]);
+            t = tNext;
+
+            while (i<list.size && list.times[i]<=t)
+                i += 1;
+            while (j<nChanges && changeTimes[j]<=t)
+                type = changeTypes[j++];
+        }
+
+        return integral;
+    }
+}
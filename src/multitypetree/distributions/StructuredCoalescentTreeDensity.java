@@ -25,13 +25,11 @@ import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.MultiTypeTree;
 import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
 import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TreeEventIndex;
 
-import com.google.common.collect.Lists;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Deque;
 
 /**
  *
@@ -48,23 +46,164 @@ public class StructuredCoalescentTreeDensity extends MultiTypeTreeDistribution {
             +"(Default false.)  "
             +"Useful if operators are in danger of proposing invalid trees.",
             false);
-    
+    public Input<Boolean> useIncrementalInput = new Input<>(
+            "useIncremental", "Recompute only the time intervals affected by "
+            +"dirty tree nodes, reusing cached contributions elsewhere.  "
+            +"(Default false.)",
+            false);
+    public Input<Boolean> crossCheckIncrementalInput = new Input<>(
+            "crossCheckIncremental", "Compare each incremental result against "
+            +"a full recomputation and fail on disagreement.  Debugging aid "
+            +"only.  (Default false.)",
+            false);
+    public Input<Boolean> useSufficientStatisticsInput = new Input<>(
+            "useSufficientStatistics", "Maintain per-type lineage times and "
+            +"event counts of the tree so that changes to the migration "
+            +"model alone can be scored without revisiting the tree.  "
+            +"(Default false.)",
+            false);
+
     protected SCMigrationModel migrationModel;
     protected MultiTypeTree mtTree;
     protected boolean checkValidity;
+    protected boolean useIncremental, crossCheckIncremental;
+    protected boolean useSufficientStatistics;
+
+    // Event kinds:
+    protected static final byte SAMPLE = TreeEventIndex.SAMPLE,
+            COALESCE = TreeEventIndex.COALESCE,
+            MIGRATE = TreeEventIndex.MIGRATE;
+
+    // Time-ordered event sequence (tips to root) produced by
+    // updateEventSequence().  Types of migration events are the source
+    // (lower) types, destTypes the destination (upper) types.
+    protected int nSeqEvents;
+    protected double[] seqTimes;
+    protected byte[] seqKinds;
+    protected int[] seqTypes, seqDestTypes;
+
+    // Binary min-heap of branch cursors used to merge the per-branch
+    // (already time-ordered) event lists:
+    private int heapSize;
+    private double[] heapTimes;
+    private int[] heapNodeNrs, heapChangeIdx;
+
+    private int[] lineageCount;
+
+    // Total rate of coalescence and migration events given the current
+    // lineage counts, maintained incrementally as counts change and
+    // recomputed from scratch every LAMBDA_REFRESH_INTERVAL events to
+    // limit the accumulation of rounding error:
+    private static final int LAMBDA_REFRESH_INTERVAL = 100;
+    private double lambda;
+    private int eventsSinceLambdaRefresh;
+
+    // The total of the cached contributions is adjusted by the change in
+    // the contributions of the affected events at each window update, and
+    // recomputed from scratch every CONTRIB_REFRESH_INTERVAL updates:
+    private static final int CONTRIB_REFRESH_INTERVAL = 1000;
+
+    // Migration model tables, fetched at the start of each calculation:
+    private double[] invPopSizes, logInvPopSizes;
+    private double[] totalBackwardRates, logBackwardRates;
+
+    // Cached state of the last calculation.  The stored cache is the
+    // same object as the current one until the latter is next modified,
+    // at which point a spare cache takes its place:
+    private EventCache cache, storedCache;
+    private final Deque<EventCache> spareCaches = new ArrayDeque<>();
+
+    // False when the cached contributions were computed under migration
+    // model parameters which have since changed:
+    private boolean contribsValid, storedContribsValid;
+
+    private boolean cacheValid, storedCacheValid;
+
+    // Time window spanned by modified branches, set by findModifiedWindow():
+    private double windowMin, windowMax;
+
+    private double[] lastCountChangeTime;
+
+    /**
+     * Event sequence of the tree as of the last calculation, together
+     * with the quantities derived from it.
+     */
+    private static class EventCache {
 
-    private enum SCEventKind {
-        COALESCE, MIGRATE, SAMPLE
-    };
+        // Events with their contributions (interval preceding the event
+        // plus the event itself), ordered from the tips to the root:
+        int nEvents;
+        double[] eventTimes, eventContribs;
+        byte[] eventKinds;
+        int[] eventTypes, eventDestTypes;
 
-    private class SCEvent {
-        double time;
-        int type, destType;
-        SCEventKind kind;
-        Node node;
+        // Sum of eventContribs, and number of window updates since it was
+        // last recomputed from scratch:
+        double totalContrib;
+        int updatesSinceRefresh;
+
+        // Heights of each node and its parent, used to find the time span
+        // a dirty branch used to cover:
+        final double[] nodeHeights, parentHeights;
+
+        // Sufficient statistics: total lineage time and lineage pair time
+        // spent in each type, coalescence counts by type and migration
+        // counts by (source, destination) type pair.
+        final double[] lineageTime, pairTime;
+        final int[] coalCount, migCount;
+
+        EventCache(int nNodes, int nTypes) {
+            eventTimes = new double[2*nNodes];
+            eventContribs = new double[2*nNodes];
+            eventKinds = new byte[2*nNodes];
+            eventTypes = new int[2*nNodes];
+            eventDestTypes = new int[2*nNodes];
+            nodeHeights = new double[nNodes];
+            parentHeights = new double[nNodes];
+            lineageTime = new double[nTypes];
+            pairTime = new double[nTypes];
+            coalCount = new int[nTypes];
+            migCount = new int[nTypes*nTypes];
+        }
+
+        void ensureEventCapacity(int n) {
+            if (eventTimes.length>=n)
+                return;
+
+            eventTimes = Arrays.copyOf(eventTimes, 2*n);
+            eventContribs = Arrays.copyOf(eventContribs, 2*n);
+            eventKinds = Arrays.copyOf(eventKinds, 2*n);
+            eventTypes = Arrays.copyOf(eventTypes, 2*n);
+            eventDestTypes = Arrays.copyOf(eventDestTypes, 2*n);
+        }
+
+        /**
+         * Copy events [from,from+n) of another cache to this one, starting
+         * at position to.
+         */
+        void copyEvents(EventCache other, int from, int n, int to) {
+            System.arraycopy(other.eventTimes, from, eventTimes, to, n);
+            System.arraycopy(other.eventContribs, from, eventContribs, to, n);
+            System.arraycopy(other.eventKinds, from, eventKinds, to, n);
+            System.arraycopy(other.eventTypes, from, eventTypes, to, n);
+            System.arraycopy(other.eventDestTypes, from, eventDestTypes, to, n);
+        }
+
+        void copyFrom(EventCache other) {
+            ensureEventCapacity(other.nEvents);
+            copyEvents(other, 0, other.nEvents, 0);
+            nEvents = other.nEvents;
+            totalContrib = other.totalContrib;
+            updatesSinceRefresh = other.updatesSinceRefresh;
+
+            System.arraycopy(other.nodeHeights, 0, nodeHeights, 0, nodeHeights.length);
+            System.arraycopy(other.parentHeights, 0, parentHeights, 0, parentHeights.length);
+            System.arraycopy(other.lineageTime, 0, lineageTime, 0, lineageTime.length);
+            System.arraycopy(other.pairTime, 0, pairTime, 0, pairTime.length);
+            System.arraycopy(other.coalCount, 0, coalCount, 0, coalCount.length);
+            System.arraycopy(other.migCount, 0, migCount, 0, migCount.length);
+        }
     }
-    private List<SCEvent> eventList;
-    private List<Integer[]> lineageCountList;
 
     // Empty constructor as required:
     public StructuredCoalescentTreeDensity() { };
@@ -74,9 +213,28 @@ public class StructuredCoalescentTreeDensity extends MultiTypeTreeDistribution {
         migrationModel = migrationModelInput.get();
         mtTree = mtTreeInput.get();
         checkValidity = checkValidityInput.get();
+        useIncremental = useIncrementalInput.get();
+        crossCheckIncremental = crossCheckIncrementalInput.get();
+        useSufficientStatistics = useSufficientStatisticsInput.get();
+
+        int nNodes = mtTree.getNodeCount();
+        int nTypes = migrationModel.getNTypes();
+        seqTimes = new double[2*nNodes];
+        seqKinds = new byte[2*nNodes];
+        seqTypes = new int[2*nNodes];
+        seqDestTypes = new int[2*nNodes];
+        heapTimes = new double[nNodes];
+        heapNodeNrs = new int[nNodes];
+        heapChangeIdx = new int[nNodes];
+        lineageCount = new int[nTypes];
+
+        cache = new EventCache(nNodes, nTypes);
+        storedCache = cache;
+        spareCaches.clear();
+        cacheValid = false;
+        contribsValid = false;
 
-        eventList = new ArrayList<>();
-        lineageCountList = new ArrayList<>();
+        lastCountChangeTime = new double[nTypes];
 
         // Ensure tree and migration model are compatible
         if (mtTree.hasTypeTrait() && !mtTree.getTypeSet().equals(migrationModel.getTypeSet()))
@@ -85,65 +243,656 @@ public class StructuredCoalescentTreeDensity extends MultiTypeTreeDistribution {
 
     @Override
     public double calculateLogP() {
-        
+
+        fetchRateTables();
+
         // Check validity of tree if required:
-        if (checkValidity && !mtTree.isValid())
+        if (checkValidity && !mtTree.isValid()) {
+            cacheValid = false;
             return Double.NEGATIVE_INFINITY;
+        }
+
+        if (!cacheValid || !(useIncremental || useSufficientStatistics)) {
+            logP = calculateLogPFull();
+            return logP;
+        }
+
+        boolean treeModified = treeMayBeModified() && findModifiedWindow();
+        boolean modelModified = migrationModel.isDirtyCalculation();
+
+        if (!treeModified) {
+            if (useSufficientStatistics) {
+                // Only the migration model can have changed: rescore the
+                // cached statistics in O(D^2) time.
+                logP = calculateLogPFromStatistics();
+                if (modelModified)
+                    contribsValid = false;
+
+                if (crossCheckIncremental)
+                    crossCheck("sufficient statistics");
+            } else if (modelModified || !contribsValid) {
+                logP = calculateLogPFull();
+            } else {
+                logP = cache.totalContrib;
+            }
+
+            return logP;
+        }
+
+        if (!useIncremental || modelModified) {
+            logP = calculateLogPFull();
+            return logP;
+        }
+
+        if (!contribsValid)
+            updateContributions();
+
+        logP = calculateLogPWindow(windowMin, windowMax);
+
+        if (crossCheckIncremental)
+            crossCheck("incremental");
+
+        return logP;
+    }
+
+    /**
+     * Obtain current migration model tables.  (The model may replace
+     * these arrays whenever its parameters change or are restored.)
+     */
+    private void fetchRateTables() {
+        invPopSizes = migrationModel.getInvPopSizes();
+        logInvPopSizes = migrationModel.getLogInvPopSizes();
+        totalBackwardRates = migrationModel.getTotalBackwardRates();
+        logBackwardRates = migrationModel.getLogBackwardRates();
+    }
+
+    /**
+     * Compare the running total of the cached contributions against their
+     * sum, and the current value of logP against a full recomputation,
+     * throwing an exception if either pair disagrees.
+     *
+     * @param method name of the method used to obtain the current value
+     */
+    private void crossCheck(String method) {
+        double total = sumContributions(cache);
+        if (Math.abs(cache.totalContrib - total) > 1e-8*Math.max(1.0, Math.abs(total)))
+            throw new IllegalStateException("Running total of structured "
+                    + "coalescent density contributions ("
+                    + cache.totalContrib + ") does not match their sum ("
+                    + total + ").");
+
+        double fastLogP = logP;
+        logP = calculateLogPFull();
+
+        if (Math.abs(fastLogP - logP) > 1e-8*Math.max(1.0, Math.abs(logP)))
+            throw new IllegalStateException("Structured coalescent density "
+                    + "obtained using " + method + " (" + fastLogP + ") "
+                    + "does not match full recomputation (" + logP + ").");
+    }
+
+    /**
+     * @return false if the tree is known not to have been modified since
+     * the last calculation: it belongs to a State, and no operator has
+     * started editing it.
+     */
+    private boolean treeMayBeModified() {
+        return mtTree.getState() == null || mtTree.somethingIsDirty();
+    }
+
+    /**
+     * Take a cache which is neither the current nor the stored cache.
+     *
+     * @return spare cache
+     */
+    private EventCache takeSpareCache() {
+        if (spareCaches.isEmpty())
+            return new EventCache(mtTree.getNodeCount(), migrationModel.getNTypes());
+
+        return spareCaches.pop();
+    }
+
+    /**
+     * Replace the current cache, returning the previous one to the spares
+     * unless it is the stored cache.
+     *
+     * @param newCache new current cache
+     */
+    private void replaceCache(EventCache newCache) {
+        if (cache != storedCache)
+            spareCaches.push(cache);
+        cache = newCache;
+    }
+
+    /**
+     * Ensure the current cache can be modified in place without affecting
+     * the stored cache.
+     *
+     * @param preserve if true, a fresh cache begins as a copy of the
+     * current one
+     */
+    private void makeCacheWritable(boolean preserve) {
+        if (cache != storedCache)
+            return;
+
+        EventCache newCache = takeSpareCache();
+        if (preserve)
+            newCache.copyFrom(cache);
+        cache = newCache;
+    }
+
+    /**
+     * Determine the time window spanned by the current and previous
+     * positions of the modified branches of the tree, storing the result
+     * in windowMin and windowMax.
+     *
+     * @return true if any node of the tree has been modified
+     */
+    private boolean findModifiedWindow() {
+        double tmin = Double.POSITIVE_INFINITY;
+        double tmax = Double.NEGATIVE_INFINITY;
+        for (Node node : mtTree.getNodesAsArray()) {
+            if (!((MultiTypeNode)node).isModified())
+                continue;
+
+            int nr = node.getNr();
+            tmin = Math.min(tmin, Math.min(node.getHeight(), cache.nodeHeights[nr]));
+            tmax = Math.max(tmax, Math.max(node.getHeight(), cache.nodeHeights[nr]));
+            if (!node.isRoot())
+                tmax = Math.max(tmax, node.getParent().getHeight());
+            if (!Double.isNaN(cache.parentHeights[nr]))
+                tmax = Math.max(tmax, cache.parentHeights[nr]);
+        }
+
+        windowMin = tmin;
+        windowMax = tmax;
+
+        return tmin <= tmax;
+    }
+
+    /**
+     * Recompute density from scratch, refreshing the cached event sequence
+     * and the per-event contributions used by the incremental calculation.
+     *
+     * @return log density of tree
+     */
+    protected double calculateLogPFull() {
 
         // Ensure sequence of events is up-to-date:
         updateEventSequence();
 
+        makeCacheWritable(false);
+        cache.ensureEventCapacity(nSeqEvents);
+        System.arraycopy(seqTimes, 0, cache.eventTimes, 0, nSeqEvents);
+        System.arraycopy(seqKinds, 0, cache.eventKinds, 0, nSeqEvents);
+        System.arraycopy(seqTypes, 0, cache.eventTypes, 0, nSeqEvents);
+        System.arraycopy(seqDestTypes, 0, cache.eventDestTypes, 0, nSeqEvents);
+        cache.nEvents = nSeqEvents;
+
+        updateContributions();
+
+        if (useSufficientStatistics)
+            updateSufficientStatistics();
+
+        updateCachedHeights();
+        cacheValid = true;
+
+        return cache.totalContrib;
+    }
+
+    /**
+     * Recompute the contribution of every cached event under the current
+     * migration model parameters.
+     */
+    private void updateContributions() {
+        makeCacheWritable(true);
+        EventCache ec = cache;
+
         // Start from the tips of the tree, working up.
-        logP = 0;
-
-        // Note that the first event is always a sample. We begin at the first
-        // _interval_ and the event following that interval.
-        for (int eventIdx = 1; eventIdx<eventList.size(); eventIdx++) {
-
-            SCEvent event = eventList.get(eventIdx);
-            Integer[] lineageCount = lineageCountList.get(eventIdx);
-            double delta_t = event.time-eventList.get(eventIdx-1).time;
-
-            // Interval contribution:
-            if (delta_t>0) {
-                double lambda = 0.0;
-                for (int c = 0; c<lineageCount.length; c++) {
-                    int k = lineageCount[c];
-                    double Nc = migrationModel.getPopSize(c);
-                    lambda += k*(k-1)/(2.0*Nc);
-
-                    for (int cp = 0; cp<lineageCount.length; cp++) {
-                        if (cp==c)
-                            continue;
-
-                        double m = migrationModel.getBackwardRate(c, cp);
-                        lambda += k*m;
-                    }
-                }
-                logP += -delta_t*lambda;
+        for (int c=0; c<lineageCount.length; c++)
+            lineageCount[c] = 0;
+        recomputeLambda();
+
+        // Note that the first event is always a sample, which has no
+        // preceding interval.
+        double prevTime = Double.NaN;
+        double total = 0.0;
+        for (int eventIdx = 0; eventIdx<ec.nEvents; eventIdx++) {
+
+            ec.eventContribs[eventIdx] = getIntervalContribution(
+                    prevTime, ec.eventTimes[eventIdx])
+                    + getEventContribution(ec.eventKinds[eventIdx],
+                    ec.eventTypes[eventIdx], ec.eventDestTypes[eventIdx]);
+            total += ec.eventContribs[eventIdx];
+
+            updateLineageCounts(ec.eventKinds[eventIdx],
+                    ec.eventTypes[eventIdx], ec.eventDestTypes[eventIdx]);
+
+            prevTime = ec.eventTimes[eventIdx];
+        }
+
+        ec.totalContrib = total;
+        ec.updatesSinceRefresh = 0;
+
+        contribsValid = true;
+    }
+
+    /**
+     * Recompute contributions of the events lying in the time window
+     * [tmin,tmax] together with the first event above it, splicing the
+     * result into the cached contributions of the unaffected events.
+     *
+     * @param tmin lower boundary of modified time window
+     * @param tmax upper boundary of modified time window
+     * @return log density of tree
+     */
+    protected double calculateLogPWindow(double tmin, double tmax) {
+
+        int nTypes = migrationModel.getNTypes();
+        EventCache ec = cache;
+
+        // Locate affected range of cached events: [lo, hi)
+        int lo = lowerBound(ec.eventTimes, ec.nEvents, tmin);
+        int hi = lo;
+        while (hi<ec.nEvents && ec.eventTimes[hi]<=tmax)
+            hi += 1;
+
+        TreeEventIndex eventIndex = mtTree.getEventIndex();
+        if (eventIndex != null) {
+            // Lineage counts and window events are read from the index:
+            int first = eventIndex.getFirstEventAtOrAfter(tmin);
+            for (int c=0; c<nTypes; c++)
+                lineageCount[c] = eventIndex.getLineageCountAfter(first-1, c);
+            recomputeLambda();
+
+            copyIndexEvents(eventIndex, first, eventIndex.getFirstEventAfter(tmax));
+        } else {
+            // Count the lineages (by type) crossing the lower window boundary:
+            for (int c=0; c<nTypes; c++)
+                lineageCount[c] = 0;
+
+            for (Node node : mtTree.getNodesAsArray()) {
+                if (!node.isRoot() && node.getHeight()<tmin
+                        && node.getParent().getHeight()>=tmin)
+                    lineageCount[getTypeBelow((MultiTypeNode)node, tmin)] += 1;
             }
+            recomputeLambda();
+
+            // Collect time-ordered events lying within the window:
+            mergeEvents(tmin, tmax);
+        }
+        int nWindow = nSeqEvents;
+
+        int nTail = ec.nEvents-hi;
+        int newNEvents = lo + nWindow + nTail;
 
-            // Event contribution:
-            switch (event.kind) {
+        // Contributions of the events being replaced, to be removed from
+        // the running total:
+        double total = ec.totalContrib;
+        for (int i=lo; i<hi; i++)
+            total -= ec.eventContribs[i];
+        double oldPrevTime = hi>0 ? ec.eventTimes[hi-1] : Double.NaN;
+        int nUpdates = ec.updatesSinceRefresh + 1;
+
+        // Splice new events into a spare cache if the current one is also
+        // the stored cache, otherwise shift the tail in place:
+        EventCache newCache;
+        if (ec == storedCache) {
+            newCache = takeSpareCache();
+            newCache.ensureEventCapacity(newNEvents);
+            newCache.copyEvents(ec, 0, lo, 0);
+        } else {
+            newCache = ec;
+            newCache.ensureEventCapacity(newNEvents);
+        }
+        newCache.copyEvents(ec, hi, nTail, lo + nWindow);
+
+        double prevTime = lo>0 ? newCache.eventTimes[lo-1] : Double.NaN;
+        int idx = lo;
+        for (int e=0; e<nWindow; e++) {
+            double contrib = getIntervalContribution(prevTime, seqTimes[e])
+                    + getEventContribution(seqKinds[e],
+                    seqTypes[e], seqDestTypes[e]);
+            total += contrib;
+
+            updateLineageCounts(seqKinds[e], seqTypes[e], seqDestTypes[e]);
+
+            newCache.eventTimes[idx] = seqTimes[e];
+            newCache.eventContribs[idx] = contrib;
+            newCache.eventKinds[idx] = seqKinds[e];
+            newCache.eventTypes[idx] = seqTypes[e];
+            newCache.eventDestTypes[idx] = seqDestTypes[e];
+            prevTime = seqTimes[e];
+            idx += 1;
+        }
+
+        if (nTail>0) {
+            // The first event above the window follows a modified interval.
+            // Lineage counts in this interval are unaffected, only its
+            // length differs:
+            double tailTime = newCache.eventTimes[idx];
+            double delta = getIntervalContribution(prevTime, tailTime)
+                    - getIntervalContribution(oldPrevTime, tailTime);
+            newCache.eventContribs[idx] += delta;
+            total += delta;
+        }
+
+        newCache.nEvents = newNEvents;
+        if (nUpdates >= CONTRIB_REFRESH_INTERVAL) {
+            newCache.totalContrib = sumContributions(newCache);
+            newCache.updatesSinceRefresh = 0;
+        } else {
+            newCache.totalContrib = total;
+            newCache.updatesSinceRefresh = nUpdates;
+        }
+
+        if (newCache != ec)
+            replaceCache(newCache);
+
+        if (useSufficientStatistics)
+            updateSufficientStatistics();
+
+        updateCachedHeights();
+
+        return cache.totalContrib;
+    }
+
+    /**
+     * Recompute the sufficient statistics of the cached event sequence.
+     * Lineage times are accumulated per type whenever the lineage count of
+     * that type changes, so this takes time linear in the number of events
+     * regardless of the number of types.
+     */
+    private void updateSufficientStatistics() {
+        int nTypes = migrationModel.getNTypes();
+        makeCacheWritable(true);
+        EventCache ec = cache;
+
+        for (int c=0; c<nTypes; c++) {
+            lineageCount[c] = 0;
+            ec.lineageTime[c] = 0.0;
+            ec.pairTime[c] = 0.0;
+            ec.coalCount[c] = 0;
+        }
+        Arrays.fill(ec.migCount, 0);
+        recomputeLambda();
+
+        for (int eventIdx=0; eventIdx<ec.nEvents; eventIdx++) {
+            byte kind = ec.eventKinds[eventIdx];
+            int type = ec.eventTypes[eventIdx];
+            double time = ec.eventTimes[eventIdx];
+
+            accumulateLineageTime(type, time);
+
+            switch (kind) {
                 case COALESCE:
-                    double N = migrationModel.getPopSize(event.type);
-                    logP += Math.log(1.0/N);
+                    ec.coalCount[type] += 1;
                     break;
 
                 case MIGRATE:
-                    double m = migrationModel
-                            .getBackwardRate(event.type, event.destType);
-                    logP += Math.log(m);
+                    int destType = ec.eventDestTypes[eventIdx];
+                    accumulateLineageTime(destType, time);
+                    ec.migCount[type*nTypes + destType] += 1;
                     break;
+            }
 
-                case SAMPLE:
-                    // Do nothing here: only effect of sampling event is
-                    // to change the lineage counts in subsequent intervals.
-                    break;
+            updateLineageCounts(kind, type, ec.eventDestTypes[eventIdx]);
+        }
+    }
+
+    /**
+     * Add the lineage time and lineage pair time spent in the given type
+     * since its lineage count last changed.
+     *
+     * @param type type whose lineage count is about to change
+     * @param time time of change
+     */
+    private void accumulateLineageTime(int type, double time) {
+        int k = lineageCount[type];
+        if (k>0) {
+            double delta_t = time - lastCountChangeTime[type];
+            cache.lineageTime[type] += k*delta_t;
+            cache.pairTime[type] += 0.5*k*(k-1)*delta_t;
+        }
+        lastCountChangeTime[type] = time;
+    }
+
+    /**
+     * Calculate the log density of the (unchanged) tree from its cached
+     * sufficient statistics under the current migration model parameters.
+     *
+     * @return log density of tree
+     */
+    protected double calculateLogPFromStatistics() {
+        int nTypes = migrationModel.getNTypes();
+        EventCache ec = cache;
+
+        double thisLogP = 0.0;
+        for (int c=0; c<nTypes; c++) {
+            thisLogP -= ec.pairTime[c]*invPopSizes[c]
+                    + ec.lineageTime[c]*totalBackwardRates[c];
+            if (ec.coalCount[c]>0)
+                thisLogP += ec.coalCount[c]*logInvPopSizes[c];
+
+            for (int cp=0; cp<nTypes; cp++) {
+                int nMig = ec.migCount[c*nTypes + cp];
+                if (cp!=c && nMig>0)
+                    thisLogP += nMig*logBackwardRates[c*nTypes + cp];
             }
         }
 
-        return logP;
+        return thisLogP;
+    }
+
+    /**
+     * Ensure the sufficient statistics returned by getLineageTime(),
+     * getLineagePairTime(), getCoalescenceCount() and getMigrationCount()
+     * describe the current tree.  Intended for use by operators which
+     * sample migration model parameters from their full conditionals.
+     */
+    public void refreshSufficientStatistics() {
+        fetchRateTables();
+
+        if (!cacheValid || (treeMayBeModified() && findModifiedWindow()))
+            calculateLogPFull();
+
+        if (!useSufficientStatistics)
+            updateSufficientStatistics();
+    }
+
+    /**
+     * @param type type index
+     * @return total time spent by lineages of the given type
+     */
+    public double getLineageTime(int type) {
+        return cache.lineageTime[type];
+    }
+
+    /**
+     * @param type type index
+     * @return total time spent by pairs of lineages of the given type
+     */
+    public double getLineagePairTime(int type) {
+        return cache.pairTime[type];
+    }
+
+    /**
+     * @param type type index
+     * @return number of coalescences occurring in the given type
+     */
+    public int getCoalescenceCount(int type) {
+        return cache.coalCount[type];
+    }
+
+    /**
+     * @param type source type (lower end of branch)
+     * @param destType destination type (upper end of branch)
+     * @return number of (backward-time) migrations from type to destType
+     */
+    public int getMigrationCount(int type, int destType) {
+        return cache.migCount[type*migrationModel.getNTypes() + destType];
+    }
+
+    /**
+     * Contribution of an interval ending at the given time to the log
+     * density, given the current lineage counts (and hence lambda).
+     *
+     * @param startTime start of interval (NaN if there is none)
+     * @param endTime end of interval
+     * @return interval contribution
+     */
+    private double getIntervalContribution(double startTime, double endTime) {
+
+        double delta_t = endTime - startTime;
+        if (!(delta_t>0))
+            return 0.0;
+
+        return -delta_t*lambda;
+    }
+
+    /**
+     * @param type type index
+     * @param k number of lineages of that type
+     * @return total rate of coalescence and migration among k lineages
+     * of the given type
+     */
+    private double getLineageRate(int type, int k) {
+        return 0.5*k*(k-1)*invPopSizes[type] + k*totalBackwardRates[type];
+    }
+
+    /**
+     * Recompute lambda from the current lineage counts.
+     */
+    private void recomputeLambda() {
+        lambda = 0.0;
+        for (int c = 0; c<lineageCount.length; c++)
+            lambda += getLineageRate(c, lineageCount[c]);
+
+        eventsSinceLambdaRefresh = 0;
+    }
+
+    /**
+     * Change lineage count of a type by delta, updating lambda in O(1)
+     * time.
+     */
+    private void changeLineageCount(int type, int delta) {
+        int k = lineageCount[type];
+        lambda += getLineageRate(type, k+delta) - getLineageRate(type, k);
+        lineageCount[type] = k + delta;
+    }
+
+    /**
+     * Contribution of a single event to the log density.
+     *
+     * @param kind kind of event
+     * @param type type of event (source type for migrations)
+     * @param destType destination type of migration events
+     * @return event contribution
+     */
+    private double getEventContribution(byte kind, int type, int destType) {
+        switch (kind) {
+            case COALESCE:
+                return logInvPopSizes[type];
+
+            case MIGRATE:
+                return logBackwardRates[type*lineageCount.length + destType];
+
+            default:
+                // Only effect of sampling event is to change the lineage
+                // counts in subsequent intervals.
+                return 0.0;
+        }
+    }
+
+    /**
+     * Update lineage counts and lambda to account for an event, moving
+     * from the tips towards the root.
+     */
+    private void updateLineageCounts(byte kind, int type, int destType) {
+        switch (kind) {
+            case SAMPLE:
+                changeLineageCount(type, +1);
+                break;
+
+            case COALESCE:
+                changeLineageCount(type, -1);
+                break;
+
+            case MIGRATE:
+                changeLineageCount(type, -1);
+                changeLineageCount(destType, +1);
+                break;
+        }
+
+        eventsSinceLambdaRefresh += 1;
+        if (eventsSinceLambdaRefresh >= LAMBDA_REFRESH_INTERVAL)
+            recomputeLambda();
+    }
+
+    /**
+     * Obtain type of lineage above node immediately below the given time.
+     *
+     * @param node node at base of lineage
+     * @param time time (must be above node height)
+     * @return type
+     */
+    private int getTypeBelow(MultiTypeNode node, double time) {
+        int type = node.getNodeType();
+        int[] changeTypes = node.getChangeTypesArray();
+        double[] changeTimes = node.getChangeTimesArray();
+        int offset = node.getChangeArrayOffset();
+        for (int i=offset; i<offset+node.getChangeCount(); i++) {
+            if (changeTimes[i]>=time)
+                break;
+            type = changeTypes[i];
+        }
+
+        return type;
+    }
+
+    /**
+     * @return index of first cached event with time no less than t
+     */
+    private int lowerBound(double[] times, int n, double t) {
+        int lo = 0, hi = n;
+        while (lo<hi) {
+            int mid = (lo+hi) >>> 1;
+            if (times[mid]<t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return sum of the contributions of the events of a cache
+     */
+    private static double sumContributions(EventCache ec) {
+        double sum = 0.0;
+        for (int i=0; i<ec.nEvents; i++)
+            sum += ec.eventContribs[i];
+
+        return sum;
+    }
+
+    private void updateCachedHeights() {
+        makeCacheWritable(true);
+        for (Node node : mtTree.getNodesAsArray()) {
+            cache.nodeHeights[node.getNr()] = node.getHeight();
+            cache.parentHeights[node.getNr()] = node.isRoot()
+                    ? Double.NaN
+                    : node.getParent().getHeight();
+        }
+    }
+
+    private void ensureSequenceCapacity(int n) {
+        if (seqTimes.length>=n)
+            return;
+
+        seqTimes = Arrays.copyOf(seqTimes, 2*n);
+        seqKinds = Arrays.copyOf(seqKinds, 2*n);
+        seqTypes = Arrays.copyOf(seqTypes, 2*n);
+        seqDestTypes = Arrays.copyOf(seqDestTypes, 2*n);
     }
 
     /**
@@ -151,105 +900,170 @@ public class StructuredCoalescentTreeDensity extends MultiTypeTreeDistribution {
      * which make up the coloured tree.
      */
     protected void updateEventSequence() {
+        TreeEventIndex eventIndex = mtTree.getEventIndex();
+        if (eventIndex != null)
+            copyIndexEvents(eventIndex, 0, eventIndex.getEventCount());
+        else
+            mergeEvents(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Copy events [from,to) of the tree's event index to the event
+     * sequence.
+     *
+     * @param eventIndex event index of tree
+     * @param from index of first event to copy
+     * @param to index following that of the last event to copy
+     */
+    private void copyIndexEvents(TreeEventIndex eventIndex, int from, int to) {
+        nSeqEvents = 0;
+        ensureSequenceCapacity(to-from);
+        for (int i=from; i<to; i++) {
+            seqTimes[nSeqEvents] = eventIndex.getEventTime(i);
+            seqKinds[nSeqEvents] = eventIndex.getEventKind(i);
+            seqTypes[nSeqEvents] = eventIndex.getEventType(i);
+            seqDestTypes[nSeqEvents] = eventIndex.getEventDestType(i);
+            nSeqEvents += 1;
+        }
+    }
 
-        // Clean up previous list:
-        eventList.clear();
-        lineageCountList.clear();
-        Node rootNode = mtTree.getRoot();
+    /**
+     * Assemble the time-ordered sequence of events with times in
+     * [tmin,tmax].  The events on each branch (the node event followed by
+     * the type changes above it) are already time-ordered, so the
+     * sequence is produced by merging the per-branch lists using a heap
+     * of branch cursors.  This takes O(E log n) time for E events on a
+     * tree of n nodes.
+     *
+     * @param tmin lower boundary of time window
+     * @param tmax upper boundary of time window
+     */
+    protected void mergeEvents(double tmin, double tmax) {
 
-        // Initialise map of active nodes to active change indices:
-        Map<Node, Integer> changeIdx = new HashMap<>();
-        changeIdx.put(rootNode, -1);
+        nSeqEvents = 0;
+        heapSize = 0;
 
-        // Initialise lineage count per colour array:
-        Integer[] lineageCount = new Integer[migrationModel.getNTypes()];
-        for (int c = 0; c<migrationModel.getNTypes(); c++)
-            if (c==((MultiTypeNode)rootNode).getNodeType())
-                lineageCount[c] = 1;
-            else
-                lineageCount[c] = 0;
+        for (Node node : mtTree.getNodesAsArray()) {
+            MultiTypeNode mtNode = (MultiTypeNode)node;
 
-        // Calculate event sequence:
-        while (!changeIdx.isEmpty()) {
-
-            SCEvent nextEvent = new SCEvent();
-            nextEvent.time = Double.NEGATIVE_INFINITY;
-            nextEvent.node = rootNode; // Initial assignment not significant
-
-            // Determine next event
-            for (Node node : changeIdx.keySet())
-                if (changeIdx.get(node)<0) {
-                    if (node.isLeaf()) {
-                        // Next event is a sample
-                        if (node.getHeight()>nextEvent.time) {
-                            nextEvent.time = node.getHeight();
-                            nextEvent.kind = SCEventKind.SAMPLE;
-                            nextEvent.type = ((MultiTypeNode)node).getNodeType();
-                            nextEvent.node = node;
-                        }
-                    } else {
-                        // Next event is a coalescence
-                        if (node.getHeight()>nextEvent.time) {
-                            nextEvent.time = node.getHeight();
-                            nextEvent.kind = SCEventKind.COALESCE;
-                            nextEvent.type = ((MultiTypeNode)node).getNodeType();
-                            nextEvent.node = node;
-                        }
-                    }
-                } else {
-                    // Next event is a migration
-                    double thisChangeTime = ((MultiTypeNode)node).getChangeTime(changeIdx.get(node));
-                    if (thisChangeTime>nextEvent.time) {
-                        nextEvent.time = thisChangeTime;
-                        nextEvent.kind = SCEventKind.MIGRATE;
-                        nextEvent.destType = ((MultiTypeNode)node).getChangeType(changeIdx.get(node));
-                        if (changeIdx.get(node)>0)
-                            nextEvent.type = ((MultiTypeNode)node).getChangeType(changeIdx.get(node)-1);
-                        else
-                            nextEvent.type = ((MultiTypeNode)node).getNodeType();
-                        nextEvent.node = node;
-                    }
-                }
-
-            // Update active node list (changeIdx) and lineage count appropriately:
-            switch (nextEvent.kind) {
-                case COALESCE:
-                    Node leftChild = nextEvent.node.getLeft();
-                    Node rightChild = nextEvent.node.getRight();
+            // Cursor value -1 refers to the node itself, otherwise to
+            // the type change with that index.
+            int idx = -1;
+            double time = node.getHeight();
+            double[] changeTimes = mtNode.getChangeTimesArray();
+            int offset = mtNode.getChangeArrayOffset();
+            while (time<tmin && idx+1<mtNode.getChangeCount()) {
+                idx += 1;
+                time = changeTimes[offset+idx];
+            }
 
-                    changeIdx.remove(nextEvent.node);
-                    changeIdx.put(leftChild, ((MultiTypeNode)leftChild).getChangeCount()-1);
-                    changeIdx.put(rightChild, ((MultiTypeNode)rightChild).getChangeCount()-1);
-                    lineageCount[nextEvent.type]++;
-                    break;
+            if (time<tmin || time>tmax)
+                continue;
 
-                case SAMPLE:
-                    changeIdx.remove(nextEvent.node);
-                    lineageCount[nextEvent.type]--;
-                    break;
+            heapTimes[heapSize] = time;
+            heapNodeNrs[heapSize] = node.getNr();
+            heapChangeIdx[heapSize] = idx;
+            heapSize += 1;
+        }
 
-                case MIGRATE:
-                    lineageCount[nextEvent.destType]--;
-                    lineageCount[nextEvent.type]++;
-                    int oldIdx = changeIdx.get(nextEvent.node);
-                    changeIdx.put(nextEvent.node, oldIdx-1);
-                    break;
+        for (int i=heapSize/2-1; i>=0; i--)
+            siftDown(i);
+
+        while (heapSize>0) {
+            MultiTypeNode mtNode = (MultiTypeNode)mtTree.getNode(heapNodeNrs[0]);
+            int idx = heapChangeIdx[0];
+            int[] changeTypes = mtNode.getChangeTypesArray();
+            double[] changeTimes = mtNode.getChangeTimesArray();
+            int offset = mtNode.getChangeArrayOffset();
+
+            ensureSequenceCapacity(nSeqEvents+1);
+            seqTimes[nSeqEvents] = heapTimes[0];
+            if (idx<0) {
+                seqKinds[nSeqEvents] = mtNode.isLeaf() ? SAMPLE : COALESCE;
+                seqTypes[nSeqEvents] = mtNode.getNodeType();
+            } else {
+                seqKinds[nSeqEvents] = MIGRATE;
+                seqTypes[nSeqEvents] = idx>0
+                        ? changeTypes[offset+idx-1]
+                        : mtNode.getNodeType();
+                seqDestTypes[nSeqEvents] = changeTypes[offset+idx];
             }
+            nSeqEvents += 1;
 
-            // Add event to list:
-            eventList.add(nextEvent);
-            lineageCountList.add(Arrays.copyOf(lineageCount, lineageCount.length));
+            // Advance cursor along branch:
+            if (idx+1<mtNode.getChangeCount()
+                    && changeTimes[offset+idx+1]<=tmax) {
+                heapTimes[0] = changeTimes[offset+idx+1];
+                heapChangeIdx[0] = idx+1;
+            } else {
+                heapSize -= 1;
+                heapTimes[0] = heapTimes[heapSize];
+                heapNodeNrs[0] = heapNodeNrs[heapSize];
+                heapChangeIdx[0] = heapChangeIdx[heapSize];
+            }
+            siftDown(0);
         }
+    }
+
+    /**
+     * Restore heap property below element i of branch cursor heap.
+     */
+    private void siftDown(int i) {
+        double time = heapTimes[i];
+        int nodeNr = heapNodeNrs[i];
+        int changeIdx = heapChangeIdx[i];
+
+        while (true) {
+            int child = 2*i + 1;
+            if (child>=heapSize)
+                break;
 
-        // Reverse event and lineage count lists (order them from tips to root):
-        eventList = Lists.reverse(eventList);
-        lineageCountList = Lists.reverse(lineageCountList);
+            if (child+1<heapSize && heapTimes[child+1]<heapTimes[child])
+                child += 1;
 
+            if (heapTimes[child]>=time)
+                break;
+
+            heapTimes[i] = heapTimes[child];
+            heapNodeNrs[i] = heapNodeNrs[child];
+            heapChangeIdx[i] = heapChangeIdx[child];
+            i = child;
+        }
+
+        heapTimes[i] = time;
+        heapNodeNrs[i] = nodeNr;
+        heapChangeIdx[i] = changeIdx;
     }
 
     @Override
     public boolean requiresRecalculation() {
-        return true;
+        return mtTree.somethingIsDirty() || migrationModel.isDirtyCalculation();
+    }
+
+    @Override
+    public void store() {
+        // The cache is not modified in place once stored, so it need
+        // not be copied:
+        if (storedCache != cache) {
+            spareCaches.push(storedCache);
+            storedCache = cache;
+        }
+        storedContribsValid = contribsValid;
+        storedCacheValid = cacheValid;
+
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        if (cache != storedCache) {
+            spareCaches.push(cache);
+            cache = storedCache;
+        }
+        contribsValid = storedContribsValid;
+        cacheValid = storedCacheValid;
+
+        super.restore();
     }
 
     /**
@@ -7,12 +7,20 @@ import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeDistribution;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.util.Randomizer;
-import multitypetree.evolution.tree.MigrationModel;
 import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.SparseRateMatrix;
 
-import org.jblas.MatrixFunctions;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static multitypetree.evolution.tree.TreeEventIndex.COALESCE;
+import static multitypetree.evolution.tree.TreeEventIndex.MIGRATE;
+import static multitypetree.evolution.tree.TreeEventIndex.SAMPLE;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -32,46 +40,127 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
             "typeLabel",
             "Label for type traits (default 'type')", "type");
 
+    public Input<Integer> threadsInput = new Input<>(
+            "threads",
+            "Number of threads used to simulate particles.  Values less "
+            + "than 1 select the number of available processors.  The "
+            + "estimate does not depend on this number. (Default 1.)", 1);
+
+    public Input<Boolean> useSMCInput = new Input<>(
+            "useSMC",
+            "Use sequential importance resampling: lineages are coloured "
+            + "one at a time, with particles weighted by the density of "
+            + "the partially coloured tree and resampled whenever the "
+            + "effective sample size falls below the resampling "
+            + "threshold. (Default false.)", false);
+
+    public Input<Double> resamplingThresholdInput = new Input<>(
+            "resamplingThreshold",
+            "Fraction of nParticles below which the effective sample size "
+            + "must fall to trigger resampling in SMC mode. (Default 0.5.)",
+            0.5);
+
+    public Input<Double> correlationInput = new Input<>(
+            "correlation",
+            "Correlation between the auxiliary random variables used at "
+            + "the current and proposed states in correlated "
+            + "pseudo-marginal mode.  Zero selects independent estimates "
+            + "at each evaluation.  Not available in SMC mode. "
+            + "(Default 0.)", 0.0);
+
+    public Input<Integer> auxiliaryLengthInput = new Input<>(
+            "auxiliaryLength",
+            "Number of auxiliary random variables stored per particle in "
+            + "correlated pseudo-marginal mode.  Particles needing more "
+            + "draw them from a stored stream seed.  Values less than 1 "
+            + "select 4 per leaf, enough for the event count of every "
+            + "branch and about one virtual event per branch. (Default 0.)",
+            0);
+
+    public Input<Double> targetVarianceInput = new Input<>(
+            "targetVariance",
+            "If provided, the number of particles is adjusted during the "
+            + "first adaptationLength evaluations so that the estimated "
+            + "variance of the log density estimate approaches this "
+            + "value, and is fixed thereafter.");
+
+    public Input<Integer> adaptationLengthInput = new Input<>(
+            "adaptationLength",
+            "Number of evaluations during which the number of particles "
+            + "is adjusted when a target variance is given. "
+            + "(Default 1000.)", 1000);
+
+    public Input<Integer> maxParticlesInput = new Input<>(
+            "maxParticles",
+            "Largest number of particles selected when adjusting the "
+            + "number of particles. (Default 100000.)", 100000);
+
     int nParticles;
     double[] logParticleWeights;
     Tree tree;
     SCMigrationModel migrationModel;
 
-    private enum SCEventKind {
-        COALESCE, MIGRATE, SAMPLE
-    };
-
-    private class SCEvent implements Comparable<SCEvent> {
-        double time;
-        int type, destType;
-        SCEventKind kind;
-
-        @Override
-        public int compareTo(SCEvent o) {
-            if (this.time < o.time)
-                return -1;
-
-            if (this.time > o.time)
-                return 1;
-
-            return 0;
-        }
-
-        @Override
-        public String toString() {
-            return kind
-                    + " " + type + (kind == SCEventKind.MIGRATE ? "->" + destType : "")
-                    + " (" + time + ")";
-        }
-    }
-
-    List<SCEvent> eventList;
-    int[] lineageCount;
-    int[] nodeTypes;
-
-    public StructuredCoalescentUntypedTreeDensity() {
-        eventList = new ArrayList<>();
-    }
+    // Types of leaf nodes:
+    int[] leafTypes;
+
+    // Per-thread simulation state, and pool used when there is more than
+    // one thread:
+    ParticleWorker[] workers;
+    ForkJoinPool pool;
+
+    // Particle states and resampling buffers used in SMC mode:
+    SMCParticle[] smcParticles, spareSMCParticles;
+    int[] ancestors;
+
+    // Event lists not in use by any particle:
+    final Deque<SMCEventList> freeEventLists = new ArrayDeque<>();
+    final ParticleRandom resamplingRandom = new ParticleRandom();
+
+    // Auxiliary variables used in correlated pseudo-marginal mode:
+    ParticleAuxiliaryState auxiliary;
+
+    // Diagnostics of the evaluation giving the current estimate, stored
+    // and restored along with it.  The variance of the log density
+    // estimate is approximated by 1/ESS - 1/nParticles, summed over
+    // resampling epochs in SMC mode:
+    private int estimateParticleCount, storedEstimateParticleCount;
+    private double ess, logWeightVariance, maxWeightShare, logPVariance;
+    private double storedEss, storedLogWeightVariance, storedMaxWeightShare,
+            storedLogPVariance;
+
+    // Number of evaluations so far, and sum of log density variance
+    // estimates since the particle count was last adjusted:
+    private long nEvaluations;
+    private double adaptationVarianceSum;
+    private int adaptationWindowSize;
+
+    // Number of evaluations between adjustments of the particle count, and
+    // the smallest count selected:
+    private static final int ADAPTATION_INTERVAL = 50;
+    private static final int MIN_ADAPTED_PARTICLES = 10;
+
+    // Quantities derived from the migration model, fixed for the duration
+    // of each calculation so that workers need not call into the model
+    // (which is not thread safe):
+    private SparseRateMatrix Qs, Rs;
+    private double[] invPopSizes, logInvPopSizes;
+    private double[] totalBackwardRates, logBackwardRates;
+    private double mu;
+    private int nTypes, steadyN, nCachedPowers;
+    private double[] rPowers = new double[0];
+    private SparseRateMatrix cachedPowersRs;
+    private SCMigrationModel.TransitionProbSnapshot transitionProbs;
+
+    // Truncation tolerance for uniformized transition probabilities:
+    private static final double UNIFORMIZATION_TOL = 1e-14;
+
+    // Maximum number of matrix elements held in rPowers:
+    private static final int MAX_CACHED_POWER_ELEMENTS = 1 << 16;
+
+    // Number of events between full recomputations of the total event rate:
+    private static final int LAMBDA_REFRESH_INTERVAL = 100;
+
+    public StructuredCoalescentUntypedTreeDensity() { }
 
 
     @Override
@@ -79,11 +168,12 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
         super.initAndValidate();
 
         nParticles = nParticlesInput.get();
+        estimateParticleCount = nParticles;
         tree = (Tree) treeInput.get();
         migrationModel = migrationModelInput.get();
-        lineageCount = new int[migrationModel.getNTypes()];
+        nTypes = migrationModel.getNTypes();
         logParticleWeights = new double[nParticles];
-        nodeTypes = new int[tree.getNodeCount()];
+        leafTypes = new int[tree.getLeafNodeCount()];
 
         // Fill leaf colour array:
         TraitSet typeTraitSet = null;
@@ -102,7 +192,7 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
             List<String> typeList = new ArrayList<>(typeSet);
 
             for (Node leaf : tree.getExternalNodes()) {
-                nodeTypes[leaf.getNr()] = typeList.indexOf(typeTraitSet.getStringValue(leaf.getID()));
+                leafTypes[leaf.getNr()] = typeList.indexOf(typeTraitSet.getStringValue(leaf.getID()));
             }
         } else {
             throw new IllegalArgumentException(
@@ -110,405 +200,1126 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
                             + "must be provided.");
         }
 
+        int nThreads = threadsInput.get()>0
+                ? threadsInput.get()
+                : Runtime.getRuntime().availableProcessors();
+        nThreads = Math.min(nThreads, nParticles);
+
+        workers = new ParticleWorker[nThreads];
+        for (int i=0; i<nThreads; i++)
+            workers[i] = new ParticleWorker();
+
+        if (pool != null)
+            pool.shutdown();
+        pool = nThreads>1 ? new ForkJoinPool(nThreads) : null;
+
+        if (useSMCInput.get()) {
+            double threshold = resamplingThresholdInput.get();
+            if (threshold<0.0 || threshold>1.0)
+                throw new IllegalArgumentException("Resampling threshold "
+                        + "must lie between 0 and 1.");
+
+            smcParticles = new SMCParticle[nParticles];
+            spareSMCParticles = new SMCParticle[nParticles];
+            for (int p=0; p<nParticles; p++) {
+                smcParticles[p] = new SMCParticle(tree.getNodeCount(), tree.getLeafNodeCount(), nTypes);
+                spareSMCParticles[p] = new SMCParticle(tree.getNodeCount(), tree.getLeafNodeCount(), nTypes);
+            }
+            ancestors = new int[nParticles];
+        } else {
+            smcParticles = null;
+            spareSMCParticles = null;
+            ancestors = null;
+        }
+
+        double correlation = correlationInput.get();
+        if (correlation<0.0 || correlation>=1.0)
+            throw new IllegalArgumentException("Correlation must lie in [0,1).");
+
+        if (correlation>0.0) {
+            if (useSMCInput.get())
+                throw new IllegalArgumentException("Correlated "
+                        + "pseudo-marginal mode is not available in SMC mode.");
+
+            int length = auxiliaryLengthInput.get()>0
+                    ? auxiliaryLengthInput.get()
+                    : 4*tree.getLeafNodeCount();
+            auxiliary = new ParticleAuxiliaryState(nParticles, length);
+
+            long seed = Randomizer.nextLong();
+            runParticles((worker, p) -> {
+                worker.random.setStream(seed, p);
+                auxiliary.sample(p, worker.random);
+            });
+        } else
+            auxiliary = null;
     }
 
 
     @Override
     public double calculateLogP() {
-        logP = 0.0;
+        adaptParticleCount();
+        prepareModel();
 
-        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        logPVariance = 0.0;
 
-        for (int p=0; p<nParticles; p++) {
-            eventList.clear();
-            logParticleWeights[p] = 0;
+        if (auxiliary != null) {
+            logP = calculateLogPCorrelated();
+        } else {
+            // Particle streams are derived from a single draw, so the
+            // estimate does not depend on the order in which particles
+            // are simulated:
+            long seed = Randomizer.nextLong();
+
+            if (useSMCInput.get()) {
+                logP = calculateLogPSMC(seed);
+            } else {
+                runParticles((worker, p) -> logParticleWeights[p] = worker.simulate(seed, p));
+                logP = getLogMeanWeight(logParticleWeights);
+            }
+        }
 
-            // Clear internal node types:
-            for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount(); i++)
-                nodeTypes[i] = -1;
+        recordDiagnostics();
+        nEvaluations += 1;
+        recordAdaptationVariance();
 
-            // Choose random order in which to colour lineages:
-            int leafNrs[] = Randomizer.shuffled(tree.getLeafNodeCount());
+        return logP;
+    }
 
-            boolean isFirst = true;
-            for (int leafNr : leafNrs) {
+    /**
+     * Record diagnostics of the final particle weights.
+     */
+    private void recordDiagnostics() {
+        estimateParticleCount = nParticles;
+        ess = getESS(logParticleWeights);
+        logPVariance += 1.0/ess - 1.0/nParticles;
 
-                if (isFirst) {
-                    logParticleWeights[p] -= colourFirstLineage(leafNr);
-                    isFirst = false;
-                } else {
-                    logParticleWeights[p] -= colourLineage(leafNr);
-//                    printAncestralColours(leafNr);
-                }
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        double sumLogWeights = 0.0;
+        int nFinite = 0;
+        for (int p=0; p<nParticles; p++) {
+            double logWeight = logParticleWeights[p];
+            maxLogWeight = Math.max(maxLogWeight, logWeight);
+            if (logWeight > Double.NEGATIVE_INFINITY) {
+                sumLogWeights += logWeight;
+                nFinite += 1;
             }
+        }
 
-            Collections.sort(eventList);
-
-            for (int c=0; c<migrationModel.getNTypes(); c++)
-                lineageCount[c] = eventList.get(0).type == c ? 1 : 0;
+        if (maxLogWeight == Double.NEGATIVE_INFINITY) {
+            maxWeightShare = Double.NaN;
+            logWeightVariance = Double.NaN;
+            return;
+        }
 
-            for (int eventIdx = 1; eventIdx<eventList.size(); eventIdx++) {
+        double sumWeights = 0.0;
+        double meanLogWeight = sumLogWeights/nFinite;
+        double sumSqDev = 0.0;
+        for (int p=0; p<nParticles; p++) {
+            double logWeight = logParticleWeights[p];
+            sumWeights += Math.exp(logWeight - maxLogWeight);
+            if (logWeight > Double.NEGATIVE_INFINITY)
+                sumSqDev += (logWeight - meanLogWeight)*(logWeight - meanLogWeight);
+        }
 
-                SCEvent event = eventList.get(eventIdx);
-                double delta_t = event.time - eventList.get(eventIdx - 1).time;
+        maxWeightShare = 1.0/sumWeights;
+        logWeightVariance = nFinite>1 ? sumSqDev/(nFinite - 1) : Double.NaN;
+    }
 
-                // Interval contribution:
-                if (delta_t > 0) {
-                    double lambda = 0.0;
-                    for (int c = 0; c < lineageCount.length; c++) {
-                        int k = lineageCount[c];
-                        double Nc = migrationModel.getPopSize(c);
-                        lambda += k * (k - 1) / (2.0 * Nc);
-
-                        for (int cp = 0; cp < lineageCount.length; cp++) {
-                            if (cp == c)
-                                continue;
-
-                            double m = migrationModel.getBackwardRate(c, cp);
-                            lambda += k * m;
-                        }
-                    }
-                    logParticleWeights[p] += -delta_t * lambda;
-                }
+    /**
+     * Adjust the number of particles so that the estimated variance of
+     * the log density estimate approaches the target.  As this variance
+     * is roughly inversely proportional to the number of particles, the
+     * count is rescaled by the ratio of the mean estimated variance since
+     * the last adjustment to the target, changing by at most a factor of
+     * two at a time.
+     */
+    private void adaptParticleCount() {
+        if (targetVarianceInput.get() == null
+                || nEvaluations == 0
+                || nEvaluations > adaptationLengthInput.get())
+            return;
+
+        if (nEvaluations % ADAPTATION_INTERVAL != 0
+                && nEvaluations != adaptationLengthInput.get())
+            return;
+
+        double ratio = adaptationVarianceSum/adaptationWindowSize
+                / targetVarianceInput.get();
+        adaptationVarianceSum = 0.0;
+        adaptationWindowSize = 0;
+
+        double newCount = Math.ceil(nParticles*ratio);
+        newCount = Math.max(newCount, 0.5*nParticles);
+        newCount = Math.min(newCount, 2.0*nParticles);
+        newCount = Math.max(newCount, MIN_ADAPTED_PARTICLES);
+        newCount = Math.min(newCount, maxParticlesInput.get());
+
+        if ((int)newCount != nParticles)
+            setParticleCount((int)newCount);
+    }
 
-                // Event contribution:
-                switch (event.kind) {
-                    case COALESCE:
-                        double N = migrationModel.getPopSize(event.type);
-                        logParticleWeights[p] += Math.log(1.0 / N);
-                        lineageCount[event.type] -= 1;
-                        break;
+    /**
+     * Add the variance estimate of the evaluation just completed to those
+     * from which the particle count is adapted.  This happens before any
+     * restore(), so estimates at rejected states contribute too.
+     */
+    private void recordAdaptationVariance() {
+        if (targetVarianceInput.get() == null
+                || nEvaluations > adaptationLengthInput.get())
+            return;
 
-                    case MIGRATE:
-                        double m = migrationModel
-                                .getBackwardRate(event.type, event.destType);
-                        logParticleWeights[p] += Math.log(m);
-                        lineageCount[event.type] -= 1;
-                        lineageCount[event.destType] += 1;
-                        break;
+        adaptationVarianceSum += logPVariance;
+        adaptationWindowSize += 1;
+    }
 
-                    case SAMPLE:
-                        lineageCount[event.type] += 1;
-                        break;
-                }
+    /**
+     * Change the number of particles, retaining the state of existing
+     * particles where it persists between evaluations.
+     *
+     * @param newCount new number of particles
+     */
+    private void setParticleCount(int newCount) {
+        int oldCount = nParticles;
+        nParticles = newCount;
+        logParticleWeights = new double[newCount];
+
+        if (smcParticles != null) {
+            smcParticles = Arrays.copyOf(smcParticles, newCount);
+            spareSMCParticles = Arrays.copyOf(spareSMCParticles, newCount);
+            for (int p=oldCount; p<newCount; p++) {
+                smcParticles[p] = new SMCParticle(tree.getNodeCount(), tree.getLeafNodeCount(), nTypes);
+                spareSMCParticles[p] = new SMCParticle(tree.getNodeCount(), tree.getLeafNodeCount(), nTypes);
             }
-
-            maxLogWeight = Math.max(logParticleWeights[p], maxLogWeight);
+            ancestors = new int[newCount];
         }
 
-        double sumScaledWeights = 0;
-        for (int p=0; p<nParticles; p++) {
-            sumScaledWeights += Math.exp(logParticleWeights[p] - maxLogWeight);
+        if (auxiliary != null)
+            auxiliary.resize(newCount, Randomizer.nextLong());
+    }
+
+    /**
+     * @return number of particles used to compute the current density
+     * estimate
+     */
+    public int getParticleCount() {
+        return estimateParticleCount;
+    }
+
+    /**
+     * @return effective sample size of the final particle weights behind
+     * the current density estimate
+     */
+    public double getEffectiveSampleSize() {
+        return ess;
+    }
+
+    /**
+     * @return sample variance of the finite final log particle weights
+     * behind the current density estimate
+     */
+    public double getLogWeightVariance() {
+        return logWeightVariance;
+    }
+
+    /**
+     * @return largest share of the total weight held by a single particle
+     * at the end of the evaluation giving the current density estimate
+     */
+    public double getMaxWeightShare() {
+        return maxWeightShare;
+    }
+
+    /**
+     * @return approximate variance of the current log density estimate
+     */
+    public double getLogPVariance() {
+        return logPVariance;
+    }
+
+    /**
+     * Estimate density by importance sampling using the stored auxiliary
+     * variables, first replacing them with a correlated proposal if the
+     * density has been stored since the last proposal.  Evaluations
+     * between proposals therefore give identical estimates.
+     *
+     * @return log of density estimate
+     */
+    private double calculateLogPCorrelated() {
+        if (auxiliary.isProposalPending()) {
+            long seed = Randomizer.nextLong();
+            double rho = correlationInput.get();
+            runParticles((worker, p) -> {
+                worker.random.setStream(seed, p);
+                auxiliary.propose(p, worker.random, rho);
+            });
+            auxiliary.proposalMade();
         }
 
-        logP = Math.log(sumScaledWeights/nParticles) + maxLogWeight;
+        runParticles((worker, p) -> logParticleWeights[p] = worker.simulate(0L, p));
 
-        return logP;
+        return getLogMeanWeight(logParticleWeights);
     }
 
     /**
-     * Colour first lineage of tree.  This is handled specially because
-     * this CTMC is not conditioned on an earlier node type.
+     * Estimate density by sequential importance resampling.  At step m,
+     * each particle colours the lineage of the mth leaf in its ordering
+     * and is weighted by the ratio of the densities of its partially
+     * coloured tree before and after, divided by the probability of the
+     * proposed path.  The partially coloured tree after the final step is
+     * the complete typed tree, so the product over resampling epochs of
+     * the mean weights is an unbiased estimate of the density.
      *
-     * @param leafNr number of starting leaf
-     * @return log probability of simulated path
+     * @param seed seed from which particle streams are derived
+     * @return log of density estimate
      */
-    double colourFirstLineage(int leafNr) {
+    private double calculateLogPSMC(long seed) {
+        int nSteps = tree.getLeafNodeCount();
+        double essThreshold = resamplingThresholdInput.get()*nParticles;
+
+        double logEstimate = 0.0;
+        for (int p=0; p<nParticles; p++)
+            smcParticles[p].logWeight = 0.0;
+
+        for (int m=0; m<nSteps; m++) {
+            int step = m;
+            runParticles((worker, p) -> {
+                // Particles for which no path was found stay at zero weight:
+                SMCParticle particle = smcParticles[p];
+                if (step == 0 || particle.logWeight > Double.NEGATIVE_INFINITY)
+                    particle.logWeight += worker.propagate(particle, step, seed, p);
+            });
+
+            for (int p=0; p<nParticles; p++)
+                logParticleWeights[p] = smcParticles[p].logWeight;
+
+            if (m == nSteps-1)
+                break;
 
-        Node leaf = tree.getNode(leafNr);
-        double time = leaf.getHeight();
-        int type = nodeTypes[leafNr];
-        Node nextNode = leaf.getParent();
+            double stepESS = getESS(logParticleWeights);
+            if (stepESS<essThreshold) {
+                double logMeanWeight = getLogMeanWeight(logParticleWeights);
+                if (logMeanWeight == Double.NEGATIVE_INFINITY)
+                    return Double.NEGATIVE_INFINITY;
 
-        SCEvent event = new SCEvent();
-        event.kind = SCEventKind.SAMPLE;
-        event.type = type;
-        event.time = leaf.getHeight();
-        eventList.add(event);
+                logEstimate += logMeanWeight;
+                logPVariance += 1.0/stepESS - 1.0/nParticles;
+                resample(seed, m);
+            }
+        }
 
+        return logEstimate + getLogMeanWeight(logParticleWeights);
+    }
 
-        double thisLogP = 0.0;
+    /**
+     * Replace particles by a systematic resample, with probabilities
+     * proportional to their weights, and reset weights.
+     *
+     * @param seed seed from which the resampling stream is derived
+     * @param step index of step following which resampling occurs
+     */
+    private void resample(long seed, int step) {
+        // Streams with negative indices are not used by particles:
+        resamplingRandom.setStream(seed, -1L - step);
 
-        while (true) {
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int p=0; p<nParticles; p++)
+            maxLogWeight = Math.max(maxLogWeight, logParticleWeights[p]);
 
-            double aTot = 0;
-            for (int c=0; c<migrationModel.getNTypes(); c++) {
-                if (c == type)
-                    continue;
+        double totalWeight = 0.0;
+        for (int p=0; p<nParticles; p++)
+            totalWeight += Math.exp(logParticleWeights[p] - maxLogWeight);
 
-                aTot += migrationModel.getBackwardRate(type, c);
+        double u = resamplingRandom.nextDouble();
+        double cumulativeWeight = Math.exp(logParticleWeights[0] - maxLogWeight);
+        int ancestor = 0;
+        for (int p=0; p<nParticles; p++) {
+            double target = (u + p)*totalWeight/nParticles;
+            while (cumulativeWeight<target && ancestor<nParticles-1) {
+                ancestor += 1;
+                cumulativeWeight += Math.exp(logParticleWeights[ancestor] - maxLogWeight);
             }
+            ancestors[p] = ancestor;
+        }
 
-            double newTime = time + Randomizer.nextExponential(aTot);
-
-            while (nextNode != null && nextNode.getHeight() < newTime) {
-                nodeTypes[nextNode.getNr()] = type;
+        for (int p=0; p<nParticles; p++) {
+            spareSMCParticles[p].copyFrom(smcParticles[ancestors[p]]);
+            spareSMCParticles[p].logWeight = 0.0;
+        }
 
-                event = new SCEvent();
-                event.kind = SCEventKind.COALESCE;
-                event.type = type;
-                event.time = nextNode.getHeight();
-                eventList.add(event);
+        // Event lists are shared with the offspring of each particle.
+        // Lists left without a particle, and private lists which were
+        // not needed, are returned to the pool, from which each offspring
+        // of a particle with more than one is given a private list:
+        for (int p=0; p<nParticles; p++)
+            smcParticles[p].events.refCount = 0;
+        for (int p=0; p<nParticles; p++)
+            spareSMCParticles[p].events.refCount += 1;
 
-                thisLogP += -aTot*(nextNode.getHeight() - time);
-                time = nextNode.getHeight();
+        for (int p=0; p<nParticles; p++) {
+            SMCParticle particle = smcParticles[p];
+            if (particle.events.refCount == 0) {
+                freeEventLists.push(particle.events);
+                particle.events.refCount = -1;
+            }
+            if (particle.privateEvents != null) {
+                freeEventLists.push(particle.privateEvents);
+                particle.privateEvents = null;
+            }
+        }
 
-                nextNode = nextNode.getParent();
+        for (int p=0; p<nParticles; p++) {
+            SMCParticle particle = spareSMCParticles[p];
+            if (particle.events.refCount>1) {
+                particle.privateEvents = freeEventLists.isEmpty()
+                        ? new SMCEventList(nTypes)
+                        : freeEventLists.pop();
             }
+        }
 
-            if (nextNode == null)
-                break;
+        SMCParticle[] tmp = smcParticles;
+        smcParticles = spareSMCParticles;
+        spareSMCParticles = tmp;
+    }
 
-            thisLogP += -aTot*(newTime - time);
-            time = newTime;
+    /**
+     * @param logWeights log particle weights
+     * @return log of mean particle weight
+     */
+    private double getLogMeanWeight(double[] logWeights) {
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int p=0; p<nParticles; p++)
+            maxLogWeight = Math.max(logWeights[p], maxLogWeight);
 
-            double u = Randomizer.nextDouble()*aTot;
+        if (maxLogWeight == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
 
-            int newType;
-            for (newType=0; newType<migrationModel.getNTypes(); newType++) {
-                if (newType==type)
-                    continue;
+        double sumScaledWeights = 0;
+        for (int p=0; p<nParticles; p++) {
+            sumScaledWeights += Math.exp(logWeights[p] - maxLogWeight);
+        }
 
-                u -= migrationModel.getBackwardRate(type, newType);
-                if (u<0.0)
-                    break;
-            }
+        return Math.log(sumScaledWeights/nParticles) + maxLogWeight;
+    }
 
-            event = new SCEvent();
-            event.kind = SCEventKind.MIGRATE;
-            event.type = type;
-            event.destType = newType;
-            event.time = time;
-            eventList.add(event);
+    /**
+     * @param logWeights log particle weights
+     * @return effective sample size of weighted particles
+     */
+    private double getESS(double[] logWeights) {
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int p=0; p<nParticles; p++)
+            maxLogWeight = Math.max(logWeights[p], maxLogWeight);
 
-            thisLogP += Math.log(migrationModel.getBackwardRate(type, newType));
-            type = newType;
+        if (maxLogWeight == Double.NEGATIVE_INFINITY)
+            return 0.0;
+
+        double sum = 0.0, sumSq = 0.0;
+        for (int p=0; p<nParticles; p++) {
+            double w = Math.exp(logWeights[p] - maxLogWeight);
+            sum += w;
+            sumSq += w*w;
         }
 
-        return thisLogP;
+        return sum*sum/sumSq;
     }
 
-    double colourLineage(int leafNr) {
-        double thisLogP = 0.0;
+    /**
+     * Task performed for each particle by a worker.
+     */
+    private interface ParticleTask {
+        void run(ParticleWorker worker, int p);
+    }
 
-        Node leaf = tree.getNode(leafNr);
+    /**
+     * Perform a task for every particle, using the thread pool if there
+     * is one.  Workers take particles in turn from a shared counter; the
+     * outcome must not depend on which worker handles a particle.
+     */
+    private void runParticles(ParticleTask task) {
+        if (pool == null) {
+            for (int p=0; p<nParticles; p++)
+                task.run(workers[0], p);
+            return;
+        }
 
-        SCEvent event = new SCEvent();
-        event.kind = SCEventKind.SAMPLE;
-        event.type = nodeTypes[leafNr];
-        event.time = leaf.getHeight();
-        eventList.add(event);
+        AtomicInteger nextParticle = new AtomicInteger(0);
 
-        // Find first coloured ancestral node
-        Node firstColouredAncestor = leaf.getParent();
-        while (nodeTypes[firstColouredAncestor.getNr()]<0)
-            firstColouredAncestor = firstColouredAncestor.getParent();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (ParticleWorker worker : workers) {
+            tasks.add(() -> {
+                int p;
+                while ((p = nextParticle.getAndIncrement()) < nParticles)
+                    task.run(worker, p);
+                return null;
+            });
+        }
 
         try {
-            thisLogP += addTypeChanges(nodeTypes[leafNr], nodeTypes[firstColouredAncestor.getNr()],
-                    leaf.getHeight(), firstColouredAncestor.getHeight(), leaf);
-        } catch (NoValidPathException e) {
-            return Double.NEGATIVE_INFINITY;
+            for (Future<Void> future : pool.invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during particle simulation.", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Particle simulation failed.", ex.getCause());
         }
-
-        return thisLogP;
     }
 
     /**
-     * Exception used to signal non-existence of allowed type sequence
-     * between node types.
+     * Bring migration model up to date and copy the quantities used by
+     * the particle simulation, including powers of the uniformized rate
+     * matrix sufficient for all but improbably long event sequences.
      */
-    protected class NoValidPathException extends Exception {
-        @Override
-        public String getMessage() {
-            return "No valid valid type sequence exists between chosen nodes.";
-        }
+    private void prepareModel() {
+        mu = migrationModel.getMu(false);
+        Qs = migrationModel.getSparseQ(false);
+        Rs = migrationModel.getSparseR(false);
+        invPopSizes = migrationModel.getInvPopSizes();
+        logInvPopSizes = migrationModel.getLogInvPopSizes();
+        totalBackwardRates = migrationModel.getTotalBackwardRates();
+        logBackwardRates = migrationModel.getLogBackwardRates();
+        transitionProbs = migrationModel.getTransitionProbSnapshot(false);
+
+        int nn = nTypes*nTypes;
+        double maxMuL = mu*tree.getRoot().getHeight();
+        int nPowers = (int)Math.min(Math.max(1, MAX_CACHED_POWER_ELEMENTS/nn),
+                Math.ceil(maxMuL + 10.0*Math.sqrt(maxMuL) + 10.0));
+
+        // Extend model's cache, possibly establishing steady state:
+        migrationModel.getRpowNElement(nPowers-1, 0, 0, false);
+        steadyN = migrationModel.RpowSteadyN(false);
+        if (steadyN>0)
+            nPowers = Math.min(nPowers, steadyN);
+
+        // Powers need only be copied when the matrix has changed:
+        if (Rs == cachedPowersRs && nPowers == nCachedPowers)
+            return;
+
+        if (rPowers.length<nPowers*nn)
+            rPowers = new double[nPowers*nn];
+
+        for (int n=0; n<nPowers; n++)
+            for (int i=0; i<nTypes; i++)
+                for (int j=0; j<nTypes; j++)
+                    rPowers[n*nn + i*nTypes + j] = migrationModel.getRpowNElement(n, i, j, false);
+
+        nCachedPowers = nPowers;
+        cachedPowersRs = Rs;
     }
 
     /**
-     * Sample the number of virtual events to occur along branch.
-     *
-     * General strategy here is to:
-     * 1. Draw u from Unif(0,1),
-     * 2. Starting from zero, evaluate P(n leq 0|a,b) up until n=thresh
-     * or P(n leq 0|a,b)>u.
-     * 3. If P(n leq 0|a,b) has exceeded u, use that n. If not, use rejection
-     * sampling to draw conditional on n being >= thresh.
-     *
-     * @param typeStart Type at start (bottom) of branch
-     * @param typeEnd Type at end (top) of branch
-     * @param muL Expected unconditioned number of virtual events
-     * @param Pba Probability of final type given start type
-     * @param migrationModel Migration model to use.
-     * @return number of virtual events.
+     * @return element (i,j) of the nth power of the uniformized rate
+     * matrix
      */
-    private int drawEventCount(int typeStart, int typeEnd, double muL, double Pba,
-                               MigrationModel migrationModel, boolean sym) {
+    private double getRpowNElement(int n, int i, int j) {
+        if (n<nCachedPowers)
+            return rPowers[n*nTypes*nTypes + i*nTypes + j];
 
-        int nVirt = 0;
+        // Powers at and beyond steady state are all equal:
+        if (steadyN>0 && steadyN<=nCachedPowers)
+            return rPowers[(nCachedPowers-1)*nTypes*nTypes + i*nTypes + j];
 
-        double u = Randomizer.nextDouble();
-        double P_low_given_ab = 0.0;
-        double acc = - muL - Math.log(Pba);
-        double log_muL = Math.log(muL);
+        synchronized (migrationModel) {
+            return migrationModel.getRpowNElement(n, i, j, false);
+        }
+    }
 
-        do {
-            //double offset = acc + nVirt*log_muL - Gamma.logGamma(nVirt+1);
-            P_low_given_ab += Math.exp(Math.log(migrationModel.getRpowN(nVirt, sym).get(typeStart, typeEnd)) + acc);
+    /**
+     * @return index of first steady-state power of R, or a negative value
+     * if steady state has not yet been reached
+     */
+    private int getRpowSteadyN() {
+        synchronized (migrationModel) {
+            return migrationModel.RpowSteadyN(false);
+        }
+    }
 
-            if (P_low_given_ab>u)
-                return nVirt;
+    /**
+     * Element (i,j) of exp(Qt), computed without locking the migration
+     * model: from the snapshot of its eigendecomposition if there is one,
+     * otherwise by uniformization using the powers of R.
+     */
+    private double getTransitionProb(int i, int j, double t) {
+        if (transitionProbs != null)
+            return transitionProbs.getTransitionProb(i, j, t);
+
+        double muT = mu*t;
+        if (!(muT>0.0))
+            return i == j ? 1.0 : 0.0;
+
+        // Poisson weights are computed in log space to avoid underflow
+        // for large muT:
+        double logMuT = Math.log(muT);
+        double logW = -muT;
+        double cumW = 0.0;
+        double p = 0.0;
+        for (int n=0; ; n++) {
+            if (steadyN>0 && n>=steadyN) {
+                // Remaining terms all involve the same power:
+                p += Math.max(0.0, 1.0-cumW)*getRpowNElement(n, i, j);
+                break;
+            }
 
-            nVirt += 1;
-            acc += log_muL - Math.log(nVirt);
+            double w = Math.exp(logW);
+            p += w*getRpowNElement(n, i, j);
+            cumW += w;
 
-        } while (migrationModel.RpowSteadyN(sym)<0 || nVirt<migrationModel.RpowSteadyN(sym));
+            // Bound on the remaining Poisson mass once weights decrease:
+            double ratio = muT/(n+1);
+            if (ratio<1.0 && w*ratio/(1.0-ratio) < UNIFORMIZATION_TOL)
+                break;
 
-        int thresh = nVirt;
+            logW += logMuT - Math.log(n+1);
+        }
 
-        // P_n_given_ab constant for n>= thresh: only need
-        // to sample P(n|n>=thresh)
-        do {
-            nVirt = (int) Randomizer.nextPoisson(muL);
-        } while (nVirt < thresh);
+        return p < UNIFORMIZATION_TOL ? 0.0 : p;
+    }
 
-        return nVirt;
+    /**
+     * @param k number of lineages of a type
+     * @param invPopSize inverse population size of that type
+     * @param totalBackwardRate total backward migration rate out of that type
+     * @return total rate of coalescence and migration among the k lineages
+     */
+    private static double getLineageRate(int k, double invPopSize,
+            double totalBackwardRate) {
+        return 0.5*k*(k-1)*invPopSize + k*totalBackwardRate;
     }
 
     /**
-     * Retype branch between srcNode and its parent.  Uses the combined
-     * uniformization/forward-backward approach of Fearnhead and Sherlock (2006)
-     * to condition on both the beginning and end states.
-     *
-     * @return Probability of new state.
-     * @throws multitypetree.operators.UniformizationRetypeOperator.NoValidPathException
+     * Simulation state of a single thread.  Particles simulated by a
+     * worker reuse its buffers, and draw random numbers from a stream
+     * specific to the particle.
      */
-    protected double addTypeChanges(int startType, int endType, double startTime, double endTime, Node startNode) throws NoValidPathException {
-        double L = endTime - startTime;
+    class ParticleWorker {
+
+        final ParticleEventBuffer events = new ParticleEventBuffer();
+        final int[] lineageCount = new int[nTypes];
+        final int[] leafOrder = new int[tree.getLeafNodeCount()];
+        final ParticleRandom random = new ParticleRandom();
+
+        // Types of coloured nodes (-1 for uncoloured nodes).  In SMC mode
+        // this refers to the array of the particle being propagated.
+        int[] nodeTypes = new int[tree.getNodeCount()];
+
+        // Type changes on the lineage most recently coloured in SMC mode,
+        // and events added to the particle:
+        double[] pathTimes = new double[16];
+        int[] pathTypes = new int[16];
+        double[] newEventTimes = new double[16];
+        int[] newEventKinds = new int[16];
+        int[] newEventTypes = new int[16];
+        int[] newEventDestTypes = new int[16];
+
+        // Times and types of virtual events drawn by addTypeChanges:
+        double[] virtTimes = new double[16];
+        int[] virtTypes = new int[16];
+
+        /**
+         * Simulate a single particle.
+         *
+         * @param seed seed shared by the particles of this evaluation
+         * (unused in correlated pseudo-marginal mode)
+         * @param p particle index
+         * @return log weight of particle
+         */
+        double simulate(long seed, int p) {
+            if (auxiliary != null)
+                auxiliary.setStream(random, p);
+            else
+                random.setStream(seed, p);
+
+            events.clear();
+            double logWeight = 0;
+
+            // Set leaf types and clear internal node types:
+            System.arraycopy(leafTypes, 0, nodeTypes, 0, leafTypes.length);
+            for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount(); i++)
+                nodeTypes[i] = -1;
 
-        // Pre-calculate some stuff:
-        double muL = migrationModel.getMu(false)*L;
+            // Choose random order in which to colour lineages:
+            random.permutation(leafOrder, leafOrder.length);
 
-        double Pba = MatrixFunctions.expm(
-                migrationModel.getQ(false)
-                        .mul(L)).get(startType,endType);
+            boolean isFirst = true;
+            for (int leafNr : leafOrder) {
 
-        // Abort if transition is impossible.
-        if (Pba == 0.0)
-            throw new NoValidPathException();
+                double logPathProb;
+                if (isFirst) {
+                    logPathProb = colourFirstLineage(leafNr);
+                    isFirst = false;
+                } else {
+                    logPathProb = colourLineage(leafNr);
+//                    printAncestralColours(leafNr);
+                }
 
-        // Catch for numerical errors
-        if (Pba>1.0 || Pba<0.0) {
-            System.err.println("Warning: matrix exponentiation resulted in rubbish.  Aborting move.");
-            return Double.NEGATIVE_INFINITY;
+                // Particle cannot be completed if no path was found:
+                if (logPathProb == Double.NEGATIVE_INFINITY)
+                    return Double.NEGATIVE_INFINITY;
+
+                logWeight -= logPathProb;
+            }
+
+            events.sort();
+
+            for (int c=0; c<nTypes; c++)
+                lineageCount[c] = events.types[0] == c ? 1 : 0;
+
+            // Total event rate, updated incrementally as lineage counts
+            // change and recomputed periodically to limit rounding error:
+            double lambda = 0.0;
+            int eventsSinceLambdaRefresh = 0;
+            for (int c=0; c<nTypes; c++)
+                lambda += getLineageRate(lineageCount[c],
+                        invPopSizes[c], totalBackwardRates[c]);
+
+            double[] eventTimes = events.times;
+            for (int eventIdx = 1; eventIdx<events.size; eventIdx++) {
+
+                double delta_t = eventTimes[eventIdx] - eventTimes[eventIdx - 1];
+
+                // Interval contribution:
+                if (delta_t > 0)
+                    logWeight += -delta_t * lambda;
+
+                // Event contribution:
+                int type = events.types[eventIdx];
+                int k = lineageCount[type];
+                switch (events.kinds[eventIdx]) {
+                    case COALESCE:
+                        logWeight += logInvPopSizes[type];
+                        lineageCount[type] -= 1;
+                        lambda -= getLineageRate(k, invPopSizes[type], totalBackwardRates[type])
+                                - getLineageRate(k-1, invPopSizes[type], totalBackwardRates[type]);
+                        break;
+
+                    case MIGRATE:
+                        int destType = events.destTypes[eventIdx];
+                        int kDest = lineageCount[destType];
+                        logWeight += logBackwardRates[type*nTypes + destType];
+                        lineageCount[type] -= 1;
+                        lineageCount[destType] += 1;
+                        lambda -= getLineageRate(k, invPopSizes[type], totalBackwardRates[type])
+                                - getLineageRate(k-1, invPopSizes[type], totalBackwardRates[type]);
+                        lambda += getLineageRate(kDest+1, invPopSizes[destType], totalBackwardRates[destType])
+                                - getLineageRate(kDest, invPopSizes[destType], totalBackwardRates[destType]);
+                        break;
+
+                    case SAMPLE:
+                        lineageCount[type] += 1;
+                        lambda += getLineageRate(k+1, invPopSizes[type], totalBackwardRates[type])
+                                - getLineageRate(k, invPopSizes[type], totalBackwardRates[type]);
+                        break;
+                }
+
+                eventsSinceLambdaRefresh += 1;
+                if (eventsSinceLambdaRefresh >= LAMBDA_REFRESH_INTERVAL) {
+                    lambda = 0.0;
+                    for (int c=0; c<nTypes; c++)
+                        lambda += getLineageRate(lineageCount[c],
+                                invPopSizes[c], totalBackwardRates[c]);
+                    eventsSinceLambdaRefresh = 0;
+                }
+            }
+
+            return logWeight;
         }
 
-        // Select number of virtual events:
-        int nVirt = drawEventCount(startType, endType, muL, Pba,
-                migrationModel, false);
+        /**
+         * Advance an SMC particle by colouring the lineage of the next
+         * leaf in its ordering, and compute the incremental weight.  The
+         * unnormalised target at each step is the structured coalescent
+         * density of the partially coloured tree, treated as if its
+         * coloured lineages were the only ones present.
+         *
+         * @param particle particle to advance
+         * @param step index of step
+         * @param seed seed shared by the particles of this evaluation
+         * @param p particle index
+         * @return log of incremental weight
+         */
+        double propagate(SMCParticle particle, int step, long seed, int p) {
+            random.setStream(seed, (long)step*nParticles + p);
+
+            int[] ownNodeTypes = nodeTypes;
+            nodeTypes = particle.nodeTypes;
+            try {
+                if (step == 0) {
+                    System.arraycopy(leafTypes, 0, nodeTypes, 0, leafTypes.length);
+                    for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount(); i++)
+                        nodeTypes[i] = -1;
+
+                    random.permutation(particle.leafOrder, particle.leafOrder.length);
+                    particle.clearEvents();
+                }
 
-        if (nVirt<0)
-            return Double.NEGATIVE_INFINITY;
+                int leafNr = particle.leafOrder[step];
+                Node leaf = tree.getNode(leafNr);
 
-        // Select times of virtual events:
-        double[] times = new double[nVirt];
-        for (int i = 0; i<nVirt; i++)
-            times[i] = Randomizer.nextDouble()*L+startTime;
-        Arrays.sort(times);
-
-        // Sample type changes along branch using FB algorithm:
-        int[] types = new int[nVirt];
-        int prevType = startType;
-
-        for (int i = 1; i<=nVirt; i++) {
-
-            double u2 = Randomizer.nextDouble()
-                    *migrationModel.getRpowN(nVirt-i+1, false).get(prevType, endType);
-            int c;
-            boolean fellThrough = true;
-            for (c = 0; c<migrationModel.getNTypes(); c++) {
-                u2 -= migrationModel.getR(false).get(prevType,c)
-                        *migrationModel.getRpowN(nVirt-i, false).get(c,endType);
-                if (u2<0.0) {
-                    fellThrough = false;
-                    break;
+                // Node at which lineage joins the coloured tree:
+                Node attachNode = null;
+                if (step>0) {
+                    attachNode = leaf.getParent();
+                    while (nodeTypes[attachNode.getNr()]<0)
+                        attachNode = attachNode.getParent();
                 }
+
+                events.clear();
+                double logPathProb = step == 0
+                        ? colourFirstLineage(leafNr)
+                        : colourLineage(leafNr);
+
+                if (logPathProb == Double.NEGATIVE_INFINITY)
+                    return Double.NEGATIVE_INFINITY;
+
+                // Type changes on the new lineage (passing nodes adds no
+                // events to the partially coloured tree):
+                events.sort();
+                int nChanges = 0;
+                for (int i=0; i<events.size; i++) {
+                    if (events.kinds[i] != MIGRATE)
+                        continue;
+
+                    if (nChanges == pathTimes.length) {
+                        pathTimes = Arrays.copyOf(pathTimes, 2*nChanges);
+                        pathTypes = Arrays.copyOf(pathTypes, 2*nChanges);
+                    }
+                    pathTimes[nChanges] = events.times[i];
+                    pathTypes[nChanges] = events.destTypes[i];
+                    nChanges += 1;
+                }
+
+                double startTime = leaf.getHeight();
+                double endTime = attachNode != null
+                        ? attachNode.getHeight()
+                        : tree.getRoot().getHeight();
+                int startType = leafTypes[leafNr];
+
+                double logTargetRatio = -particle.integrateAddedRate(
+                        startTime, endTime, startType,
+                        pathTimes, pathTypes, nChanges,
+                        invPopSizes, totalBackwardRates);
+
+                int prevType = startType;
+                for (int i=0; i<nChanges; i++) {
+                    logTargetRatio += logBackwardRates[prevType*nTypes + pathTypes[i]];
+                    prevType = pathTypes[i];
+                }
+
+                if (attachNode != null)
+                    logTargetRatio += logInvPopSizes[nodeTypes[attachNode.getNr()]];
+
+                addLineageEvents(particle, startTime, startType, nChanges,
+                        attachNode);
+
+                return logTargetRatio - logPathProb;
+            } finally {
+                nodeTypes = ownNodeTypes;
             }
+        }
 
-            // Check for FB algorithm error:
-            if (fellThrough) {
-                System.err.println("Warning: FB algorithm failure.  Aborting move.");
-                return Double.NEGATIVE_INFINITY;
+        /**
+         * Merge the events of the most recently coloured lineage into the
+         * event list of a particle.
+         */
+        private void addLineageEvents(SMCParticle particle, double startTime,
+                int startType, int nChanges, Node attachNode) {
+            int n = nChanges + 2;
+            if (newEventTimes.length<n) {
+                newEventTimes = new double[2*n];
+                newEventKinds = new int[2*n];
+                newEventTypes = new int[2*n];
+                newEventDestTypes = new int[2*n];
+            }
+
+            newEventTimes[0] = startTime;
+            newEventKinds[0] = SAMPLE;
+            newEventTypes[0] = startType;
+            newEventDestTypes[0] = -1;
+
+            int prevType = startType;
+            for (int i=0; i<nChanges; i++) {
+                newEventTimes[i+1] = pathTimes[i];
+                newEventKinds[i+1] = MIGRATE;
+                newEventTypes[i+1] = prevType;
+                newEventDestTypes[i+1] = pathTypes[i];
+                prevType = pathTypes[i];
             }
 
-            types[i-1] = c;
-            prevType = c;
+            n = nChanges + 1;
+            if (attachNode != null) {
+                newEventTimes[n] = attachNode.getHeight();
+                newEventKinds[n] = COALESCE;
+                newEventTypes[n] = prevType;
+                newEventDestTypes[n] = -1;
+                n += 1;
+            }
+
+            particle.mergeEvents(newEventTimes, newEventKinds, newEventTypes,
+                    newEventDestTypes, n);
         }
 
-        double logProb = 0.0;
+        /**
+         * Colour first lineage of tree.  This is handled specially because
+         * this CTMC is not conditioned on an earlier node type.
+         *
+         * @param leafNr number of starting leaf
+         * @return log probability of simulated path
+         */
+        double colourFirstLineage(int leafNr) {
 
-        // Add non-virtual type changes to branch, calculating probability
-        // of path conditional on start type:
-        prevType = startType;
-        double prevTime = startTime;
-        Node prevNode = startNode;
-        for (int i = 0; i<nVirt; i++) {
+            Node leaf = tree.getNode(leafNr);
+            double time = leaf.getHeight();
+            int type = nodeTypes[leafNr];
+            Node nextNode = leaf.getParent();
 
-            if (types[i] != prevType) {
+            events.add(SAMPLE, type, -1, leaf.getHeight());
 
-                // Add change to branch:
-                SCEvent event = new SCEvent();
-                event.kind = SCEventKind.MIGRATE;
-                event.type = prevType;
-                event.destType = types[i];
-                event.time = times[i];
-                eventList.add(event);
+            double thisLogP = 0.0;
 
-                // Colour any internal nodes we pass:
-                while (prevNode.getHeight() < times[i]) {
-                    if (!prevNode.isLeaf()) {
-                        nodeTypes[prevNode.getNr()] = prevType;
+            while (true) {
 
-                        event = new SCEvent();
-                        event.kind = SCEventKind.COALESCE;
-                        event.type = prevType;
-                        event.time = prevNode.getHeight();
-                        eventList.add(event);
+                // Only active migration routes need be visited:
+                double aTot = -Qs.getDiagonal(type);
 
-                    }
-                    prevNode = prevNode.getParent();
+                double newTime = time + random.nextExponential(aTot);
+
+                while (nextNode != null && nextNode.getHeight() < newTime) {
+                    nodeTypes[nextNode.getNr()] = type;
+                    events.add(COALESCE, type, -1, nextNode.getHeight());
+
+                    thisLogP += -aTot*(nextNode.getHeight() - time);
+                    time = nextNode.getHeight();
+
+                    nextNode = nextNode.getParent();
+                }
+
+                if (nextNode == null)
+                    break;
+
+                thisLogP += -aTot*(newTime - time);
+                time = newTime;
+
+                double u = random.nextDouble()*aTot;
+
+                int newType = type;
+                for (int k=Qs.getRowStart(type); k<Qs.getRowEnd(type); k++) {
+                    if (Qs.getColumn(k)==type)
+                        continue;
+
+                    newType = Qs.getColumn(k);
+                    u -= Qs.getValue(k);
+                    if (u<0.0)
+                        break;
                 }
 
-                // Add probability contribution:
-                logProb += migrationModel.getQ(false).get(prevType, prevType)*(times[i]-prevTime)
-                        +Math.log(migrationModel.getQ(false).get(prevType, types[i]));
+                events.add(MIGRATE, type, newType, time);
 
-                prevType = types[i];
-                prevTime = times[i];
+                thisLogP += Math.log(Qs.get(type, newType));
+                type = newType;
             }
+
+            return thisLogP;
         }
-        logProb += migrationModel.getQ(false).get(prevType, prevType)*(endTime-prevTime);
 
-        // Colour any internal nodes between last migration time and end time
-        while (prevNode.getHeight() < endTime) {
-            if (!prevNode.isLeaf()) {
-                nodeTypes[prevNode.getNr()] = prevType;
+        double colourLineage(int leafNr) {
+            double thisLogP = 0.0;
 
-                SCEvent event = new SCEvent();
-                event.kind = SCEventKind.COALESCE;
-                event.type = prevType;
-                event.time = prevNode.getHeight();
-                eventList.add(event);
+            Node leaf = tree.getNode(leafNr);
 
-            }
-            prevNode = prevNode.getParent();
+            events.add(SAMPLE, nodeTypes[leafNr], -1, leaf.getHeight());
+
+            // Find first coloured ancestral node
+            Node firstColouredAncestor = leaf.getParent();
+            while (nodeTypes[firstColouredAncestor.getNr()]<0)
+                firstColouredAncestor = firstColouredAncestor.getParent();
+
+            thisLogP += addTypeChanges(nodeTypes[leafNr], nodeTypes[firstColouredAncestor.getNr()],
+                    leaf.getHeight(), firstColouredAncestor.getHeight(), leaf);
+
+            return thisLogP;
+        }
+
+        /**
+         * Sample the number of virtual events to occur along branch.
+         *
+         * General strategy here is to:
+         * 1. Draw u from Unif(0,1),
+         * 2. Starting from zero, evaluate P(n leq 0|a,b) up until n=thresh
+         * or P(n leq 0|a,b)>u.
+         * 3. If P(n leq 0|a,b) has exceeded u, use that n. If not, use rejection
+         * sampling to draw conditional on n being >= thresh.
+         *
+         * @param typeStart Type at start (bottom) of branch
+         * @param typeEnd Type at end (top) of branch
+         * @param muL Expected unconditioned number of virtual events
+         * @param Pba Probability of final type given start type
+         * @return number of virtual events.
+         */
+        private int drawEventCount(int typeStart, int typeEnd, double muL, double Pba) {
+
+            int nVirt = 0;
+
+            double u = random.nextDouble();
+            double P_low_given_ab = 0.0;
+            double acc = - muL - Math.log(Pba);
+            double log_muL = Math.log(muL);
+
+            // Steady state may be reached by powers computed after
+            // prepareModel(), so is re-read once beyond the copied powers:
+            int steady = steadyN;
+
+            do {
+                //double offset = acc + nVirt*log_muL - Gamma.logGamma(nVirt+1);
+                P_low_given_ab += Math.exp(Math.log(getRpowNElement(nVirt, typeStart, typeEnd)) + acc);
+
+                if (P_low_given_ab>u)
+                    return nVirt;
+
+                nVirt += 1;
+                acc += log_muL - Math.log(nVirt);
+
+                if (steady<0 && nVirt>=nCachedPowers)
+                    steady = getRpowSteadyN();
+
+            } while (steady<0 || nVirt<steady);
+
+            int thresh = nVirt;
+
+            // P_n_given_ab constant for n>= thresh: only need
+            // to sample P(n|n>=thresh)
+            do {
+                nVirt = (int) random.nextPoisson(muL);
+            } while (nVirt < thresh);
+
+            return nVirt;
         }
 
-        // Adjust probability to account for end condition:
-        logProb -= Math.log(Pba);
+        /**
+         * Retype branch between srcNode and its parent.  Uses the combined
+         * uniformization/forward-backward approach of Fearnhead and Sherlock (2006)
+         * to condition on both the beginning and end states.
+         *
+         * Events are added to the event list in time order, and no
+         * objects are allocated once the virtual event arrays have grown
+         * to size.
+         *
+         * @return Probability of new state, or negative infinity if no
+         * valid path exists.
+         */
+        protected double addTypeChanges(int startType, int endType, double startTime, double endTime, Node startNode) {
+            double L = endTime - startTime;
+
+            // Pre-calculate some stuff:
+            double muL = mu*L;
+
+            double Pba = getTransitionProb(startType, endType, L);
+
+            // Abort if transition is impossible.
+            if (Pba == 0.0)
+                return Double.NEGATIVE_INFINITY;
+
+            // Catch for numerical errors
+            if (Pba>1.0 || Pba<0.0) {
+                System.err.println("Warning: matrix exponentiation resulted in rubbish.  Aborting move.");
+                return Double.NEGATIVE_INFINITY;
+            }
+
+            // Select number of virtual events:
+            int nVirt = drawEventCount(startType, endType, muL, Pba);
+
+            if (nVirt<0)
+                return Double.NEGATIVE_INFINITY;
+
+            if (virtTimes.length<nVirt) {
+                virtTimes = new double[Math.max(nVirt, 2*virtTimes.length)];
+                virtTypes = new int[virtTimes.length];
+            }
+            double[] times = virtTimes;
+            int[] types = virtTypes;
+
+            // Select times of virtual events:
+            for (int i = 0; i<nVirt; i++)
+                times[i] = random.nextDouble()*L+startTime;
+            Arrays.sort(times, 0, nVirt);
+
+            // Sample type changes along branch using FB algorithm:
+            int prevType = startType;
+
+            for (int i = 1; i<=nVirt; i++) {
+
+                double u2 = random.nextDouble()
+                        *getRpowNElement(nVirt-i+1, prevType, endType);
+                int c = -1;
+                boolean fellThrough = true;
+                for (int k = Rs.getRowStart(prevType); k<Rs.getRowEnd(prevType); k++) {
+                    c = Rs.getColumn(k);
+                    u2 -= Rs.getValue(k)
+                            *getRpowNElement(nVirt-i, c, endType);
+                    if (u2<0.0) {
+                        fellThrough = false;
+                        break;
+                    }
+                }
 
-        // Return probability of path given boundary conditions:
-        return logProb;
+                // Check for FB algorithm error:
+                if (fellThrough) {
+                    System.err.println("Warning: FB algorithm failure.  Aborting move.");
+                    return Double.NEGATIVE_INFINITY;
+                }
+
+                types[i-1] = c;
+                prevType = c;
+            }
+
+            double logProb = 0.0;
+
+            // Add non-virtual type changes to branch, calculating probability
+            // of path conditional on start type:
+            prevType = startType;
+            double prevTime = startTime;
+            Node prevNode = startNode;
+            for (int i = 0; i<nVirt; i++) {
+
+                if (types[i] != prevType) {
+
+                    // Colour any internal nodes we pass:
+                    while (prevNode.getHeight() < times[i]) {
+                        if (!prevNode.isLeaf()) {
+                            nodeTypes[prevNode.getNr()] = prevType;
+                            events.add(COALESCE, prevType, -1, prevNode.getHeight());
+                        }
+                        prevNode = prevNode.getParent();
+                    }
+
+                    // Add change to branch:
+                    events.add(MIGRATE, prevType, types[i], times[i]);
+
+                    // Add probability contribution:
+                    logProb += Qs.getDiagonal(prevType)*(times[i]-prevTime)
+                            +Math.log(Qs.get(prevType, types[i]));
+
+                    prevType = types[i];
+                    prevTime = times[i];
+                }
+            }
+            logProb += Qs.getDiagonal(prevType)*(endTime-prevTime);
+
+            // Colour any internal nodes between last migration time and end time
+            while (prevNode.getHeight() < endTime) {
+                if (!prevNode.isLeaf()) {
+                    nodeTypes[prevNode.getNr()] = prevType;
+                    events.add(COALESCE, prevType, -1, prevNode.getHeight());
+                }
+                prevNode = prevNode.getParent();
+            }
+
+            // Adjust probability to account for end condition:
+            logProb -= Math.log(Pba);
+
+            // Return probability of path given boundary conditions:
+            return logProb;
+        }
     }
 
     public void printAncestralColours(int leafNr) {
@@ -517,7 +1328,7 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
         while (node != null) {
             if (!node.isLeaf())
                 System.out.print(", ");
-            System.out.print(node.getNr() + " " + nodeTypes[node.getNr()]);
+            System.out.print(node.getNr() + " " + workers[0].nodeTypes[node.getNr()]);
             node = node.getParent();
         }
         System.out.println();
@@ -528,6 +1339,42 @@ public class StructuredCoalescentUntypedTreeDensity extends TreeDistribution {
         return true;
     }
 
+    @Override
+    public void store() {
+        if (auxiliary != null)
+            auxiliary.store();
+
+        storedEstimateParticleCount = estimateParticleCount;
+        storedEss = ess;
+        storedLogWeightVariance = logWeightVariance;
+        storedMaxWeightShare = maxWeightShare;
+        storedLogPVariance = logPVariance;
+
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        if (auxiliary != null)
+            auxiliary.restore();
+
+        estimateParticleCount = storedEstimateParticleCount;
+        ess = storedEss;
+        logWeightVariance = storedLogWeightVariance;
+        maxWeightShare = storedMaxWeightShare;
+        logPVariance = storedLogPVariance;
+
+        super.restore();
+    }
+
+    @Override
+    protected void accept() {
+        if (auxiliary != null)
+            auxiliary.accept();
+
+        super.accept();
+    }
+
     @Override
     public boolean isStochastic() {
         return true;
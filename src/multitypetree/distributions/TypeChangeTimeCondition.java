@@ -6,6 +6,7 @@ import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.tree.Node;
 import multitypetree.evolution.tree.MultiTypeNode;
+import multitypetree.evolution.tree.TreeEventIndex;
 
 import java.util.Arrays;
 import java.util.HashSet;
@@ -71,6 +72,23 @@ public class TypeChangeTimeCondition extends MultiTypeTreeDistribution {
 
         logP = 0.0;
 
+        TreeEventIndex eventIndex = mtTree.getEventIndex();
+        if (eventIndex != null) {
+            // Visit only the events lying strictly between h1 and h2:
+            int end = eventIndex.getFirstEventAtOrAfter(h2.getValue());
+            for (int i=eventIndex.getFirstEventAfter(h1.getValue()); i<end; i++) {
+                if (eventIndex.getEventKind(i) == TreeEventIndex.MIGRATE
+                        && eventIndex.getEventNodeNr(i) != mtTree.getRoot().getNr()
+                        && toTypes.contains(eventIndex.getEventType(i))
+                        && fromTypes.contains(eventIndex.getEventDestType(i))) {
+                    logP = Double.NEGATIVE_INFINITY;
+                    return logP;
+                }
+            }
+
+            return logP;
+        }
+
         for (Node node : mtTree.getNodesAsArray()) {
             if (node.isRoot())
                 continue;
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * Tracks the validity of each branch of a multi-type tree, allowing the
+ * validity of the whole tree to be determined without walking it.  A
+ * branch is valid if its type changes are time-ordered and lie between
+ * the heights of its end nodes, and if the final type on the branch
+ * matches the type of its parent node.
+ *
+ * The validity of the branch above a node depends only on that node and
+ * its parent, so only the branches above and below modified nodes are
+ * rechecked.  Nodes modified since the last store() are rechecked again
+ * following restore().
+ */
+class BranchValidity {
+
+    private final boolean[] valid;
+    private int nInvalid;
+
+    // Nodes whose adjoining branches need rechecking:
+    private final boolean[] pending;
+    private final int[] pendingNrs;
+    private int nPending;
+    private boolean allPending;
+
+    // Nodes modified since the last store():
+    private final boolean[] modified;
+    private final int[] modifiedNrs;
+    private int nModified;
+
+    BranchValidity(int nodeCount) {
+        valid = new boolean[nodeCount];
+        nInvalid = 0;
+        for (int nr=0; nr<nodeCount; nr++)
+            valid[nr] = true;
+
+        pending = new boolean[nodeCount];
+        pendingNrs = new int[nodeCount];
+        modified = new boolean[nodeCount];
+        modifiedNrs = new int[nodeCount];
+        allPending = true;
+    }
+
+    /**
+     * Record modification of a node.
+     *
+     * @param nr node number
+     */
+    void nodeModified(int nr) {
+        markPending(nr);
+
+        if (!modified[nr]) {
+            modified[nr] = true;
+            modifiedNrs[nModified++] = nr;
+        }
+    }
+
+    private void markPending(int nr) {
+        if (!allPending && !pending[nr]) {
+            pending[nr] = true;
+            pendingNrs[nPending++] = nr;
+        }
+    }
+
+    /**
+     * Require every branch to be rechecked.
+     */
+    void markAllPending() {
+        clearPending();
+        allPending = true;
+    }
+
+    private void clearPending() {
+        for (int i=0; i<nPending; i++)
+            pending[pendingNrs[i]] = false;
+
+        nPending = 0;
+    }
+
+    /**
+     * Called when the tree is stored.
+     */
+    void store() {
+        for (int i=0; i<nModified; i++)
+            modified[modifiedNrs[i]] = false;
+
+        nModified = 0;
+    }
+
+    /**
+     * Called when the tree is restored.  Branches adjoining nodes modified
+     * by the rejected proposal are rechecked against their restored state.
+     */
+    void restore() {
+        for (int i=0; i<nModified; i++)
+            markPending(modifiedNrs[i]);
+
+        store();
+    }
+
+    /**
+     * Recheck pending branches and report validity of the tree.
+     *
+     * @param nodes tree nodes, indexed by number
+     * @return true if every branch is valid
+     */
+    boolean isValid(Node[] nodes) {
+        if (allPending) {
+            for (Node node : nodes)
+                recheck(node);
+
+            allPending = false;
+        } else {
+            for (int i=0; i<nPending; i++) {
+                Node node = nodes[pendingNrs[i]];
+                recheck(node);
+                for (Node child : node.getChildren())
+                    recheck(child);
+            }
+        }
+        clearPending();
+
+        return nInvalid == 0;
+    }
+
+    /**
+     * @return number of branches found invalid when last checked
+     */
+    int getInvalidCount() {
+        return nInvalid;
+    }
+
+    private void recheck(Node node) {
+        int nr = node.getNr();
+        boolean isValid = branchIsValid((MultiTypeNode)node);
+        if (isValid != valid[nr]) {
+            valid[nr] = isValid;
+            nInvalid += isValid ? -1 : 1;
+        }
+    }
+
+    /**
+     * @param node node below branch
+     * @return true if branch above node is valid (root branches are
+     * always valid)
+     */
+    static boolean branchIsValid(MultiTypeNode node) {
+        Node parent = node.getParent();
+        if (parent == null)
+            return true;
+
+        double lastHeight = parent.getHeight();
+        for (int idx=node.getChangeCount()-1; idx>=0; idx--) {
+            double thisHeight = node.getChangeTime(idx);
+            if (thisHeight>lastHeight)
+                return false;
+            lastHeight = thisHeight;
+        }
+        if (node.getHeight()>lastHeight)
+            return false;
+
+        return ((MultiTypeNode)parent).getNodeType() == node.getFinalType();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+/**
+ * Fenwick (binary indexed) tree over the number of type changes on the
+ * branch above each node of a multi-type tree, indexed by node number.
+ * Supports O(log n) updates, prefix sums and location of the node
+ * holding the k-th change, and keeps the total in O(1).
+ *
+ * Updates made since the last call to store() are journaled so that
+ * restore() can undo them in time proportional to their number.  If the
+ * journal grows larger than the tree, restoring rebuilds the index from
+ * the node counts instead.
+ */
+class ChangeCountIndex {
+
+    private final int n;
+    private final int[] fenwick;
+    private int total;
+
+    private final int[] journalNrs, journalDeltas;
+    private int journalSize;
+    private boolean journalOverflow;
+
+    ChangeCountIndex(int nodeCount) {
+        n = nodeCount;
+        fenwick = new int[n+1];
+        journalNrs = new int[n];
+        journalDeltas = new int[n];
+    }
+
+    /**
+     * Rebuild index from the change counts of the given nodes, which must
+     * be indexed by node number.  Takes O(n) time.
+     *
+     * @param nodes tree nodes
+     */
+    void rebuild(MultiTypeNode[] nodes) {
+        total = 0;
+        for (int i=1; i<=n; i++)
+            fenwick[i] = 0;
+
+        for (int nr=0; nr<n; nr++) {
+            int count = nodes[nr].getChangeCount();
+            total += count;
+
+            // Linear-time construction: push partial sums to parents.
+            int i = nr+1;
+            fenwick[i] += count;
+            int parent = i + (i & -i);
+            if (parent<=n)
+                fenwick[parent] += fenwick[i];
+        }
+    }
+
+    /**
+     * Record a change in the number of changes above a node.
+     *
+     * @param nr node number
+     * @param delta change in count
+     */
+    void update(int nr, int delta) {
+        applyUpdate(nr, delta);
+
+        if (journalOverflow)
+            return;
+
+        if (journalSize<journalNrs.length) {
+            journalNrs[journalSize] = nr;
+            journalDeltas[journalSize] = delta;
+            journalSize += 1;
+        } else
+            journalOverflow = true;
+    }
+
+    private void applyUpdate(int nr, int delta) {
+        total += delta;
+        for (int i=nr+1; i<=n; i += i & -i)
+            fenwick[i] += delta;
+    }
+
+    /**
+     * @return total number of changes on all branches
+     */
+    int getTotal() {
+        return total;
+    }
+
+    /**
+     * @param nr node number
+     * @return total number of changes above nodes numbered less than nr
+     */
+    int getPrefixSum(int nr) {
+        int sum = 0;
+        for (int i=nr; i>0; i -= i & -i)
+            sum += fenwick[i];
+
+        return sum;
+    }
+
+    /**
+     * Find node on whose branch the k-th change lies, counting in node
+     * number order.
+     *
+     * @param k change index, 0&lt;=k&lt;getTotal()
+     * @return node number
+     */
+    int findNode(int k) {
+        if (k<0 || k>=total)
+            throw new IndexOutOfBoundsException("Change index " + k
+                    + " out of range (total " + total + ").");
+
+        int pos = 0;
+        int step = Integer.highestOneBit(n);
+        for (; step>0; step >>= 1) {
+            if (pos+step<=n && fenwick[pos+step]<=k) {
+                pos += step;
+                k -= fenwick[pos];
+            }
+        }
+
+        // pos is the number of leading nodes holding no more than the
+        // original k changes, so the change lies above node number pos.
+        return pos;
+    }
+
+    /**
+     * Mark the current counts as those to return to on restore().
+     */
+    void store() {
+        journalSize = 0;
+        journalOverflow = false;
+    }
+
+    /**
+     * Undo updates made since the last store().
+     *
+     * @param nodes tree nodes following restoration, indexed by number
+     */
+    void restore(MultiTypeNode[] nodes) {
+        if (journalOverflow) {
+            rebuild(nodes);
+        } else {
+            for (int i=journalSize-1; i>=0; i--)
+                applyUpdate(journalNrs[i], -journalDeltas[i]);
+        }
+
+        store();
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import org.jblas.DoubleMatrix;
+
+/**
+ * Cache of the successive powers R^0, R^1, R^2, ... of a square matrix,
+ * stored contiguously in a single array.  Powers are computed on demand
+ * and the buffer is reused when the matrix is replaced.  At most a fixed
+ * number of bytes is used to hold cached powers; powers beyond this limit
+ * are recomputed from the highest cached power when requested.
+ *
+ * Steady state (R^n == R^(n-1)) is detected while each new power is being
+ * computed, so no separate pass over the difference of successive powers
+ * is needed.
+ *
+ * If the matrix is supplied in sparse form, each new power is computed by
+ * sparse multiplication, taking time proportional to n times the number of
+ * stored elements rather than n^3.
+ */
+public class MatrixPowerCache {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int n, nn;
+    private final int maxPowers;
+    private final double[] R;
+    private SparseRateMatrix sparseR;
+
+    // Powers R^0 ... R^(nPowers-1), each stored row-major:
+    private double[] powers;
+    private int nPowers;
+
+    // Smallest power index k such that R^k == R^(k-1), or -1 if steady
+    // state has not yet been reached, together with the steady power:
+    private int steadyN;
+    private double[] steadyArray;
+    private int steadyOffset;
+
+    // Power beyond the memory limit most recently computed:
+    private double[] tailPower, tailScratch;
+    private int tailN;
+
+    /**
+     * Construct cache for powers of n by n matrices.
+     *
+     * @param n matrix dimension
+     * @param maxBytes maximum number of bytes used to store powers
+     */
+    public MatrixPowerCache(int n, long maxBytes) {
+        this.n = n;
+        this.nn = n*n;
+        this.maxPowers = (int)Math.max(2, Math.min(Integer.MAX_VALUE/nn,
+                maxBytes/(8L*nn)));
+
+        R = new double[nn];
+        powers = new double[Math.min(INITIAL_CAPACITY, maxPowers)*nn];
+        tailPower = new double[nn];
+        tailScratch = new double[nn];
+
+        clear();
+    }
+
+    /**
+     * Replace matrix whose powers are cached, discarding cached powers.
+     *
+     * @param mat new matrix
+     */
+    public void setMatrix(DoubleMatrix mat) {
+        for (int i=0; i<n; i++)
+            for (int j=0; j<n; j++)
+                R[i*n+j] = mat.get(i, j);
+
+        sparseR = null;
+        clear();
+    }
+
+    /**
+     * Replace matrix whose powers are cached with a sparse matrix,
+     * discarding cached powers.
+     *
+     * @param mat new matrix
+     */
+    public void setMatrix(SparseRateMatrix mat) {
+        sparseR = mat;
+        clear();
+    }
+
+    private void clear() {
+        // Power sequence initially contains R^0 = I
+        for (int i=0; i<nn; i++)
+            powers[i] = 0.0;
+        for (int i=0; i<n; i++)
+            powers[i*n+i] = 1.0;
+
+        nPowers = 1;
+        steadyN = -1;
+        tailN = -1;
+    }
+
+    /**
+     * Obtain element (i,j) of R^k.
+     *
+     * @param k power
+     * @param i row
+     * @param j column
+     * @return element of matrix power
+     */
+    public double get(int k, int i, int j) {
+        if (k<nPowers)
+            return powers[k*nn + i*n + j];
+
+        if (steadyN<0)
+            extend(k);
+
+        if (k<nPowers)
+            return powers[k*nn + i*n + j];
+
+        if (steadyN>=0 && k>=steadyN-1)
+            return steadyArray[steadyOffset + i*n + j];
+
+        return getTailPower(k)[i*n + j];
+    }
+
+    /**
+     * Obtain a copy of R^k as a jblas matrix.
+     *
+     * @param k power
+     * @return new matrix containing R^k
+     */
+    public DoubleMatrix getMatrix(int k) {
+        DoubleMatrix mat = new DoubleMatrix(n, n);
+        for (int i=0; i<n; i++)
+            for (int j=0; j<n; j++)
+                mat.put(i, j, get(k, i, j));
+
+        return mat;
+    }
+
+    /**
+     * @return power index above which all powers are known to be equal,
+     * or -1 if steady state has not been reached.
+     */
+    public int getSteadyN() {
+        return steadyN;
+    }
+
+    /**
+     * @return number of powers currently cached
+     */
+    public int getPowerCount() {
+        return nPowers;
+    }
+
+    /**
+     * @return number of bytes currently allocated to hold powers
+     */
+    public long getMemoryUse() {
+        return 8L*(powers.length + R.length + tailPower.length + tailScratch.length);
+    }
+
+    /**
+     * Compute and cache powers up to R^k, stopping early if steady state
+     * is reached or if the memory limit is hit.
+     */
+    private void extend(int k) {
+        while (nPowers<=k && nPowers<maxPowers) {
+            if (powers.length<(nPowers+1)*nn) {
+                int newCapacity = (int)Math.min(maxPowers, 2L*nPowers);
+                double[] newPowers = new double[newCapacity*nn];
+                System.arraycopy(powers, 0, newPowers, 0, nPowers*nn);
+                powers = newPowers;
+            }
+
+            boolean changed = multiply(powers, (nPowers-1)*nn,
+                    powers, nPowers*nn);
+            nPowers += 1;
+
+            if (!changed) {
+                steadyN = nPowers;
+                steadyArray = powers;
+                steadyOffset = (nPowers-1)*nn;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compute R^k for k beyond the memory limit, starting from the highest
+     * cached power or from the previously computed tail power.
+     */
+    private double[] getTailPower(int k) {
+        if (tailN<0 || tailN>k) {
+            System.arraycopy(powers, (nPowers-1)*nn, tailPower, 0, nn);
+            tailN = nPowers-1;
+        }
+
+        while (tailN<k) {
+            boolean changed = multiply(tailPower, 0, tailScratch, 0);
+            double[] tmp = tailPower;
+            tailPower = tailScratch;
+            tailScratch = tmp;
+            tailN += 1;
+
+            if (!changed) {
+                steadyN = tailN+1;
+                steadyArray = tailPower.clone();
+                steadyOffset = 0;
+                break;
+            }
+        }
+
+        return tailPower;
+    }
+
+    /**
+     * Compute dest = src R.
+     *
+     * @return true if dest differs from src
+     */
+    private boolean multiply(double[] src, int srcOffset,
+            double[] dest, int destOffset) {
+        boolean changed = false;
+
+        if (sparseR != null) {
+            for (int i=0; i<n; i++) {
+                sparseR.multiplyLeft(src, srcOffset + i*n, dest, destOffset + i*n);
+                for (int j=0; j<n && !changed; j++)
+                    changed = dest[destOffset + i*n + j] != src[srcOffset + i*n + j];
+            }
+
+            return changed;
+        }
+
+        for (int i=0; i<n; i++) {
+            for (int j=0; j<n; j++) {
+                double el = 0.0;
+                for (int l=0; l<n; l++)
+                    el += src[srcOffset + i*n + l]*R[l*n + j];
+
+                dest[destOffset + i*n + j] = el;
+                changed = changed || el != src[srcOffset + i*n + j];
+            }
+        }
+
+        return changed;
+    }
+}
@@ -2,8 +2,13 @@ package multitypetree.evolution.tree;
 
 import beast.base.core.BEASTInterface;
 import org.jblas.DoubleMatrix;
+import org.jblas.MatrixFunctions;
 
 /**
+ * Methods beyond those operating on dense matrices have default
+ * implementations in terms of getQ(), getR() and getRpowN(), so that
+ * existing implementations need only override them for efficiency.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public interface MigrationModel extends BEASTInterface {
@@ -23,6 +28,80 @@ public interface MigrationModel extends BEASTInterface {
 
     DoubleMatrix getRpowN(int n, boolean symmetric);
 
+    /**
+     * Obtain the backward transition rate matrix Q in sparse form, storing
+     * only the diagonal and the active migration routes.
+     *
+     * @param symmetric if true, use symmetrized rate matrix
+     * @return sparse rate matrix
+     */
+    default SparseRateMatrix getSparseQ(boolean symmetric) {
+        DoubleMatrix Q = getQ(symmetric);
+        int n = Q.getRows();
+
+        double[] rates = new double[n*n];
+        for (int i=0; i<n; i++)
+            for (int j=0; j<n; j++)
+                if (i != j)
+                    rates[i*n+j] = Q.get(i, j);
+
+        return SparseRateMatrix.fromRates(n, rates);
+    }
+
+    /**
+     * Obtain the uniformized transition matrix R in sparse form, with the
+     * same sparsity pattern as getSparseQ().
+     *
+     * @param symmetric if true, use symmetrized rate matrix
+     * @return sparse uniformized matrix
+     */
+    default SparseRateMatrix getSparseR(boolean symmetric) {
+        return getSparseQ(symmetric).uniformize(getMu(symmetric));
+    }
+
+    /**
+     * Obtain element (i,j) of the nth power of the uniformized transition
+     * matrix without allocating a copy of the power.
+     *
+     * @param n power
+     * @param i row
+     * @param j column
+     * @param symmetric if true, use symmetrized rate matrix
+     * @return matrix power element
+     */
+    default double getRpowNElement(int n, int i, int j, boolean symmetric) {
+        return getRpowN(n, symmetric).get(i, j);
+    }
+
     int RpowSteadyN(boolean symmetric);
 
+    /**
+     * Obtain the probability of being in type j a time t after being in
+     * type i, i.e. element (i,j) of exp(Qt).
+     *
+     * @param i start type
+     * @param j end type
+     * @param t elapsed time
+     * @param symmetric if true, use symmetrized rate matrix
+     * @return transition probability
+     */
+    default double getTransitionProb(int i, int j, double t, boolean symmetric) {
+        return MatrixFunctions.expm(getQ(symmetric).mul(t)).get(i, j);
+    }
+
+    /**
+     * Obtain row i of exp(Qt).
+     *
+     * @param i start type
+     * @param t elapsed time
+     * @param symmetric if true, use symmetrized rate matrix
+     * @param probs array of length getNTypes() in which to place result
+     */
+    default void getTransitionProbs(int i, double t, boolean symmetric,
+            double[] probs) {
+        DoubleMatrix P = MatrixFunctions.expm(getQ(symmetric).mul(t));
+        for (int j=0; j<P.getColumns(); j++)
+            probs[j] = P.get(i, j);
+    }
+
 }
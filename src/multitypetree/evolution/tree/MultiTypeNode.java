@@ -18,9 +18,9 @@ package multitypetree.evolution.tree;
 
 import beast.base.core.Description;
 import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  *
@@ -29,12 +29,30 @@ import java.util.List;
 @Description("A node in a multi-type phylogenetic tree.")
 public class MultiTypeNode extends Node {
 
-    // Type metadata:
+    private static final int INITIAL_CHANGE_CAPACITY = 4;
+    private static final int[] NO_TYPES = new int[0];
+    private static final double[] NO_TIMES = new double[0];
+
+    // Type metadata.  Changes occupy elements changeOffset to
+    // changeOffset+nTypeChanges-1 of the backing arrays, which hold room
+    // for changeCapacity changes.  The arrays belong to this node unless
+    // it is attached to a TypeChangeArena, in which case they are shared
+    // with the other nodes of the tree.
     int nTypeChanges = 0;
-    List<Integer> changeTypes = new ArrayList<Integer>();
-    List<Double> changeTimes = new ArrayList<Double>();
+    int[] changeTypes = NO_TYPES;
+    double[] changeTimes = NO_TIMES;
+    int changeOffset = 0;
+    int changeCapacity = 0;
+    TypeChangeArena arena = null;
     int nodeType = 0;
 
+    // Set when the node type or the type changes on the branch above this
+    // node are modified.  Kept apart from the dirty flag of Node so that
+    // calculation nodes which ignore types (e.g. tree likelihoods) are
+    // not triggered by type-only proposals.  Cleared by the tree along
+    // with the dirty flags.
+    boolean typeDirty = false;
+
     /**
      * Retrieve the total number of changes on the branch above this node.
      *
@@ -52,7 +70,11 @@ public class MultiTypeNode extends Node {
      * @return change type
      */
     public int getChangeType(int idx) {
-        return changeTypes.get(idx);
+        if (idx>=nTypeChanges)
+            throw new IndexOutOfBoundsException("Index: " + idx
+                    + ", Size: " + nTypeChanges);
+
+        return changeTypes[changeOffset+idx];
     }
 
     /**
@@ -63,7 +85,63 @@ public class MultiTypeNode extends Node {
      * @return time of change
      */
     public double getChangeTime(int idx) {
-        return changeTimes.get(idx);
+        if (idx>=nTypeChanges)
+            throw new IndexOutOfBoundsException("Index: " + idx
+                    + ", Size: " + nTypeChanges);
+
+        return changeTimes[changeOffset+idx];
+    }
+
+    /**
+     * Obtain array holding destination types of changes on the branch
+     * above this node, starting at getChangeArrayOffset().  The array may
+     * be shared with other nodes and must not be modified.  It is only
+     * valid until changes on this branch are next modified.
+     *
+     * @return backing array of change types
+     */
+    public int[] getChangeTypesArray() {
+        return changeTypes;
+    }
+
+    /**
+     * Obtain array holding times of changes on the branch above this node,
+     * starting at getChangeArrayOffset().  The array may be shared with
+     * other nodes and must not be modified.  It is only valid until
+     * changes on this branch are next modified.
+     *
+     * @return backing array of change times
+     */
+    public double[] getChangeTimesArray() {
+        return changeTimes;
+    }
+
+    /**
+     * @return index of first change in the arrays returned by
+     * getChangeTypesArray() and getChangeTimesArray()
+     */
+    public int getChangeArrayOffset() {
+        return changeOffset;
+    }
+
+    /**
+     * Copy types of changes on the branch above this node into an array.
+     *
+     * @param dest destination array
+     * @param destPos position in destination at which to place first type
+     */
+    public void copyChangeTypes(int[] dest, int destPos) {
+        System.arraycopy(changeTypes, changeOffset, dest, destPos, nTypeChanges);
+    }
+
+    /**
+     * Copy times of changes on the branch above this node into an array.
+     *
+     * @param dest destination array
+     * @param destPos position in destination at which to place first time
+     */
+    public void copyChangeTimes(double[] dest, int destPos) {
+        System.arraycopy(changeTimes, changeOffset, dest, destPos, nTypeChanges);
     }
 
     /**
@@ -73,7 +151,7 @@ public class MultiTypeNode extends Node {
      */
     public int getFinalType() {
         if (nTypeChanges>0)
-            return changeTypes.get(nTypeChanges-1);
+            return changeTypes[changeOffset+nTypeChanges-1];
         else
             return nodeType;
     }
@@ -86,7 +164,7 @@ public class MultiTypeNode extends Node {
      */
     public double getFinalChangeTime() {
         if (nTypeChanges>0)
-            return changeTimes.get(nTypeChanges-1);
+            return changeTimes[changeOffset+nTypeChanges-1];
         else
             return getHeight();
     }
@@ -108,6 +186,7 @@ public class MultiTypeNode extends Node {
      */
     public void setNodeType(int nodeType) {
         startEditing();
+        markTypesModified();
         this.nodeType = nodeType;
     }
 
@@ -119,9 +198,12 @@ public class MultiTypeNode extends Node {
      */
     public void addChange(int newType, double time) {
         startEditing();
-        changeTypes.add(newType);
-        changeTimes.add(time);
+        markTypesModified();
+        ensureChangeCapacity(nTypeChanges+1);
+        changeTypes[changeOffset+nTypeChanges] = newType;
+        changeTimes[changeOffset+nTypeChanges] = time;
         nTypeChanges += 1;
+        notifyChangeCountChanged(1);
     }
 
     /**
@@ -129,8 +211,8 @@ public class MultiTypeNode extends Node {
      */
     public void clearChanges() {
         startEditing();
-        changeTypes.clear();
-        changeTimes.clear();
+        markTypesModified();
+        notifyChangeCountChanged(-nTypeChanges);
         nTypeChanges = 0;
     }
 
@@ -142,7 +224,12 @@ public class MultiTypeNode extends Node {
      */
     public void setChangeTime(int idx, double newTime) {
         startEditing();
-        changeTimes.set(idx, newTime);
+        markTypesModified();
+        if (idx>=nTypeChanges)
+            throw new IndexOutOfBoundsException("Index: " + idx
+                    + ", Size: " + nTypeChanges);
+
+        changeTimes[changeOffset+idx] = newTime;
     }
 
     /**
@@ -153,7 +240,12 @@ public class MultiTypeNode extends Node {
      */
     public void setChangeType(int idx, int newType) {
         startEditing();
-        changeTypes.set(idx, newType);
+        markTypesModified();
+        if (idx>=nTypeChanges)
+            throw new IndexOutOfBoundsException("Index: " + idx
+                    + ", Size: " + nTypeChanges);
+
+        changeTypes[changeOffset+idx] = newType;
     }
 
     /**
@@ -164,11 +256,12 @@ public class MultiTypeNode extends Node {
      */
     public void truncateChanges(int newNChanges) {
         startEditing();
+        markTypesModified();
 
-        while (nTypeChanges>newNChanges) {
-            changeTypes.remove(nTypeChanges-1);
-            changeTimes.remove(nTypeChanges-1);
-            nTypeChanges -= 1;
+        if (nTypeChanges>newNChanges) {
+            int oldNChanges = nTypeChanges;
+            nTypeChanges = Math.max(newNChanges, 0);
+            notifyChangeCountChanged(nTypeChanges-oldNChanges);
         }
     }
 
@@ -182,13 +275,19 @@ public class MultiTypeNode extends Node {
      */
     public void insertChange(int idx, int newType, double newTime) {
         startEditing();
+        markTypesModified();
 
         if (idx>nTypeChanges)
             throw new IllegalArgumentException("Index to insertChange() out of range.");
 
-        changeTimes.add(idx, newTime);
-        changeTypes.add(idx, newType);
+        ensureChangeCapacity(nTypeChanges+1);
+        int pos = changeOffset+idx;
+        System.arraycopy(changeTimes, pos, changeTimes, pos+1, nTypeChanges-idx);
+        System.arraycopy(changeTypes, pos, changeTypes, pos+1, nTypeChanges-idx);
+        changeTimes[pos] = newTime;
+        changeTypes[pos] = newType;
         nTypeChanges += 1;
+        notifyChangeCountChanged(1);
     }
 
     /**
@@ -198,14 +297,165 @@ public class MultiTypeNode extends Node {
      */
     public void removeChange(int idx) {
         startEditing();
+        markTypesModified();
 
         if (idx>=nTypeChanges)
             throw new IllegalArgumentException("Index to removeChange() out of range.");
 
-        changeTimes.remove(idx);
-        changeTypes.remove(idx);
+        int pos = changeOffset+idx;
+        System.arraycopy(changeTimes, pos+1, changeTimes, pos, nTypeChanges-idx-1);
+        System.arraycopy(changeTypes, pos+1, changeTypes, pos, nTypeChanges-idx-1);
         nTypeChanges -= 1;
+        notifyChangeCountChanged(-1);
+
+    }
 
+    /**
+     * Inform the tree containing this node of a change in the number of
+     * type changes on its branch.
+     *
+     * @param delta change in count
+     */
+    private void notifyChangeCountChanged(int delta) {
+        if (delta != 0 && m_tree instanceof MultiTypeTree)
+            ((MultiTypeTree)m_tree).changeCountChanged(this, delta);
+    }
+
+    /**
+     * @return true if the node type or the type changes on the branch
+     * above this node have been modified since the tree was last cleaned
+     */
+    public boolean isTypeDirty() {
+        return typeDirty;
+    }
+
+    /**
+     * @return true if this node, the branch above it or the types on that
+     * branch have been modified since the tree was last cleaned
+     */
+    public boolean isModified() {
+        return typeDirty || isDirty() != Tree.IS_CLEAN;
+    }
+
+    /**
+     * Record modification of the type of this node or of the type changes
+     * on the branch above it.
+     */
+    private void markTypesModified() {
+        typeDirty = true;
+        notifyModified();
+    }
+
+    /**
+     * Inform the tree containing this node that the node or the branch
+     * above it has been modified.
+     */
+    private void notifyModified() {
+        if (m_tree instanceof MultiTypeTree)
+            ((MultiTypeTree)m_tree).nodeModified(this);
+    }
+
+    @Override
+    public void makeDirty(int dirty) {
+        super.makeDirty(dirty);
+        notifyModified();
+    }
+
+    @Override
+    public void setHeight(double height) {
+        super.setHeight(height);
+        notifyModified();
+    }
+
+    @Override
+    public void setParent(Node parent) {
+        super.setParent(parent);
+        notifyModified();
+    }
+
+    @Override
+    public void setParent(Node parent, boolean inOperator) {
+        super.setParent(parent, inOperator);
+        notifyModified();
+    }
+
+    @Override
+    public int scale(double scale) {
+        int dirtyCount = super.scale(scale);
+        notifyModified();
+        return dirtyCount;
+    }
+
+    /**
+     * Ensure backing arrays can hold at least the given number of changes.
+     *
+     * @param capacity required capacity
+     */
+    private void ensureChangeCapacity(int capacity) {
+        if (changeCapacity>=capacity)
+            return;
+
+        int newCapacity = Math.max(capacity,
+                Math.max(INITIAL_CHANGE_CAPACITY, 2*changeCapacity));
+
+        if (arena != null) {
+            arena.relocate(this, newCapacity);
+        } else {
+            changeTypes = Arrays.copyOf(changeTypes, newCapacity);
+            changeTimes = Arrays.copyOf(changeTimes, newCapacity);
+            changeCapacity = newCapacity;
+        }
+    }
+
+    /**
+     * Point this node at a region of the buffers of a type change arena.
+     * Called only by TypeChangeArena, which is responsible for copying
+     * existing changes into the region.
+     *
+     * @param arena arena owning buffers
+     * @param types change type buffer
+     * @param times change time buffer
+     * @param offset start of region
+     * @param capacity size of region
+     */
+    void attachToArena(TypeChangeArena arena, int[] types, double[] times,
+            int offset, int capacity) {
+        this.arena = arena;
+        changeTypes = types;
+        changeTimes = times;
+        changeOffset = offset;
+        changeCapacity = capacity;
+    }
+
+    /**
+     * Move changes out of any arena into arrays owned by this node.
+     */
+    void detachFromArena() {
+        if (arena == null)
+            return;
+
+        changeTypes = Arrays.copyOfRange(changeTypes, changeOffset,
+                changeOffset+changeCapacity);
+        changeTimes = Arrays.copyOfRange(changeTimes, changeOffset,
+                changeOffset+changeCapacity);
+        changeOffset = 0;
+        arena = null;
+    }
+
+    /**
+     * Replace type changes on this branch with copies of those on the
+     * branch above another node.  Does not mark the node as dirty; used
+     * when copying, storing and restoring trees.
+     *
+     * @param src node whose changes to copy
+     */
+    void copyChangesFrom(MultiTypeNode src) {
+        ensureChangeCapacity(src.nTypeChanges);
+        System.arraycopy(src.changeTypes, src.changeOffset,
+                changeTypes, changeOffset, src.nTypeChanges);
+        System.arraycopy(src.changeTimes, src.changeOffset,
+                changeTimes, changeOffset, src.nTypeChanges);
+        nTypeChanges = src.nTypeChanges;
     }
     
     /**
@@ -217,9 +467,7 @@ public class MultiTypeNode extends Node {
         node.parent = parent;        
         node.children.addAll(children);
 
-        node.nTypeChanges = nTypeChanges;
-        node.changeTimes.addAll(changeTimes);
-        node.changeTypes.addAll(changeTypes);
+        node.copyChangesFrom(this);
         node.nodeType = nodeType;
                 
         node.labelNr = labelNr;
@@ -247,9 +495,7 @@ public class MultiTypeNode extends Node {
         node.metaDataString = metaDataString;
         node.parent = null;
         node.ID = ID;
-        node.nTypeChanges = nTypeChanges;
-        node.changeTimes.addAll(changeTimes);
-        node.changeTypes.addAll(changeTypes);
+        node.copyChangesFrom(this);
         node.nodeType = nodeType;
         if (getLeft()!=null) {
             node.setLeft(getLeft().copy());
@@ -276,11 +522,7 @@ public class MultiTypeNode extends Node {
         ID = node.getID();
         
         MultiTypeNode mtNode = (MultiTypeNode)node;
-        nTypeChanges = mtNode.nTypeChanges;
-        changeTimes.clear();
-        changeTimes.addAll(mtNode.changeTimes);
-        changeTypes.clear();
-        changeTypes.addAll(mtNode.changeTypes);
+        copyChangesFrom(mtNode);
         nodeType = mtNode.nodeType;
         
         if (node.getLeft()!=null) {
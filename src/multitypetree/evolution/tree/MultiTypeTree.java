@@ -27,6 +27,7 @@ import beast.base.evolution.tree.TraitSet;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
 import com.google.common.collect.Lists;
+import multitypetree.util.AsyncLoggable;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -44,7 +45,7 @@ import java.util.logging.Logger;
 @Citation("Timothy G. Vaughan, Denise Kuhnert, Alex Popinga, David Welch and \n"
         + "Alexei J. Drummond, 'Efficient Bayesian inference under the \n"
         + "structured coalescent', Bioinformatics 30:2272, 2014.")
-public class MultiTypeTree extends Tree {
+public class MultiTypeTree extends Tree implements AsyncLoggable {
 
     /*
      * Inputs:
@@ -60,6 +61,31 @@ public class MultiTypeTree extends Tree {
             "typeSet", "Type set input."
     );
 
+    public Input<Boolean> useChangeArenaInput = new Input<>(
+            "useChangeArena",
+            "Store the type changes of all branches in a single shared "
+            + "buffer, making store/restore and full-tree scans cheaper "
+            + "for trees with many type changes. (Default false.)", false);
+
+    public Input<Boolean> checkStoreInvariantsInput = new Input<>(
+            "checkStoreInvariants",
+            "Check after each store() that the stored tree is identical to "
+            + "the current tree, even though only modified nodes are copied. "
+            + "For debugging only. (Default false.)", false);
+
+    public Input<Boolean> maintainEventIndexInput = new Input<>(
+            "maintainEventIndex",
+            "Maintain a time-ordered index of the events on the tree, "
+            + "allowing distributions to look up events and lineage counts "
+            + "without reassembling the event sequence. (Default false.)",
+            false);
+
+    public Input<Boolean> binaryStateInput = new Input<>(
+            "binaryState",
+            "Write the tree to state files in an exact binary encoding "
+            + "rather than as Newick, making resumption faster for large "
+            + "trees.  Either form can be read. (Default false.)", false);
+
     /*
      * Non-input fields:
      */
@@ -67,6 +93,32 @@ public class MultiTypeTree extends Tree {
     protected TraitSet typeTraitSet;
     protected TypeSet typeSet;
 
+    // Shared type change storage for current and stored nodes, or null
+    // if each node stores its own changes:
+    protected TypeChangeArena arena, storedArena;
+
+    // Index over change counts of current nodes:
+    protected ChangeCountIndex changeCountIndex;
+
+    // Validity of each branch, rechecked as nodes are modified:
+    protected BranchValidity branchValidity;
+
+    // Writer used for logging (possibly from a background thread) and
+    // reusable snapshot used when logging from the sampling thread:
+    protected final MultiTypeTreeNewickWriter newickWriter
+            = new MultiTypeTreeNewickWriter();
+    protected MultiTypeTreeSnapshot newickSnapshot;
+
+    // Time-ordered event index, null unless maintained:
+    protected TreeEventIndex eventIndex;
+
+    // Numbers of nodes whose stored copies may differ from the current
+    // nodes, used to limit the work done by store():
+    protected boolean[] storePending;
+    protected int[] storePendingNrs;
+    protected int nStorePending;
+    protected boolean storeAllPending;
+
     public MultiTypeTree() { };
     
     public MultiTypeTree(Node rootNode) {
@@ -261,6 +313,29 @@ public class MultiTypeTree extends Tree {
         m_storedNodes = new MultiTypeNode[nodeCount];
         Node copy = root.copy();
         listNodes((MultiTypeNode)copy, (MultiTypeNode[])m_storedNodes);
+
+        if (useChangeArenaInput.get()) {
+            arena = new TypeChangeArena((MultiTypeNode[])m_nodes);
+            storedArena = new TypeChangeArena((MultiTypeNode[])m_storedNodes);
+        } else {
+            arena = null;
+            storedArena = null;
+        }
+
+        changeCountIndex = new ChangeCountIndex(nodeCount);
+        changeCountIndex.rebuild((MultiTypeNode[])m_nodes);
+
+        branchValidity = new BranchValidity(nodeCount);
+
+        if (maintainEventIndexInput.get())
+            eventIndex = new TreeEventIndex(this);
+        else
+            eventIndex = null;
+
+        storePending = new boolean[nodeCount];
+        storePendingNrs = new int[nodeCount];
+        nStorePending = 0;
+        storeAllPending = true;
     }
 
     /**
@@ -342,8 +417,6 @@ public class MultiTypeTree extends Tree {
         
         MultiTypeNode mtRoot = (MultiTypeNode)root;
         mtRoot.nodeType = ((MultiTypeNode)(otherNodes[iRoot])).nodeType;
-        mtRoot.changeTimes.clear();
-        mtRoot.changeTypes.clear();
         mtRoot.nTypeChanges = 0;
         
         if (otherNodes[iRoot].getLeft() != null) {
@@ -357,6 +430,12 @@ public class MultiTypeTree extends Tree {
             root.setRight(null);
         }
         assignFromFragileHelper(iRoot + 1, nodeCount, otherNodes);
+
+        changeCountIndex.rebuild((MultiTypeNode[])m_nodes);
+        if (eventIndex != null)
+            eventIndex.markAllStale();
+        branchValidity.markAllPending();
+        storeAllPending = true;
     }
 
     /**
@@ -370,11 +449,7 @@ public class MultiTypeTree extends Tree {
             sink.setHeight(src.getHeight());
             sink.setParent(m_nodes[src.getParent().getNr()]);
             
-            sink.nTypeChanges = src.nTypeChanges;
-            sink.changeTimes.clear();
-            sink.changeTimes.addAll(src.changeTimes);
-            sink.changeTypes.clear();
-            sink.changeTypes.addAll(src.changeTypes);
+            sink.copyChangesFrom(src);
             sink.nodeType = src.nodeType;
             
             if (src.getLeft() != null) {
@@ -394,7 +469,26 @@ public class MultiTypeTree extends Tree {
      * @return true if types and times are "valid"
      */
     public boolean isValid() {
-        return timesAreValid(root) && typesAreValid(root);
+        // Trees whose node arrays have not been set up are checked in full:
+        if (branchValidity == null)
+            return timesAreValid(root) && typesAreValid(root);
+
+        return branchValidity.isValid(m_nodes);
+    }
+
+    /**
+     * Called by nodes of this tree when they or the branches above them
+     * are modified.
+     *
+     * @param node modified node
+     */
+    void nodeModified(MultiTypeNode node) {
+        int nr = node.getNr();
+        if (branchValidity == null || nr<0 || nr>=m_nodes.length
+                || m_nodes[nr] != node)
+            return;
+
+        branchValidity.nodeModified(nr);
     }
     
     private boolean timesAreValid(Node node) {
@@ -687,23 +781,64 @@ public class MultiTypeTree extends Tree {
     }
     
     /**
-     * Obtain total number of type changes along nodes on tree.
+     * Obtain total number of type changes along nodes on tree.  Takes
+     * constant time.
      * 
      * @return total change count
      */
     public int getTotalNumberOfChanges() {
-        int count = 0;        
+        return changeCountIndex.getTotal()
+                - ((MultiTypeNode)root).getChangeCount();
+    }
+
+    /**
+     * Locate the k-th type change on the tree.  Changes are counted in node
+     * number order, skipping the root, and from the bottom to the top of
+     * each branch.  The index of the change on its branch is
+     * k - getChangeCountBefore(nr).  Takes O(log n) time.
+     *
+     * @param k change index, 0&lt;=k&lt;getTotalNumberOfChanges()
+     * @return number of node on whose branch the change lies
+     */
+    public int getChangeNodeNr(int k) {
+        int rootNr = root.getNr();
+        int rootCount = ((MultiTypeNode)root).getChangeCount();
+        if (rootCount>0 && k>=changeCountIndex.getPrefixSum(rootNr))
+            k += rootCount;
+
+        return changeCountIndex.findNode(k);
+    }
+
+    /**
+     * @param nr node number
+     * @return number of type changes on branches of non-root nodes with
+     * numbers less than nr
+     */
+    public int getChangeCountBefore(int nr) {
+        int count = changeCountIndex.getPrefixSum(nr);
+        if (root.getNr()<nr)
+            count -= ((MultiTypeNode)root).getChangeCount();
 
-        for (Node node : m_nodes) {
-            if (node.isRoot())
-                continue;
-            
-            count += ((MultiTypeNode)node).getChangeCount();
-        }
-        
         return count;
     }
 
+    /**
+     * Called by nodes of this tree when the number of type changes on
+     * their branch is modified.
+     *
+     * @param node modified node
+     * @param delta change in number of type changes
+     */
+    void changeCountChanged(MultiTypeNode node, int delta) {
+        // Stored nodes and nodes not yet listed are not indexed:
+        int nr = node.getNr();
+        if (changeCountIndex == null || nr<0 || nr>=m_nodes.length
+                || m_nodes[nr] != node)
+            return;
+
+        changeCountIndex.update(nr, delta);
+    }
+
     /**
      * Return string representation of multi-type tree.  We use reflection
      * here to determine whether this is being called as part of writing
@@ -729,11 +864,36 @@ public class MultiTypeTree extends Tree {
     /////////////////////////////////////////////////
     @Override
     protected void store() {
-        storedRoot = m_storedNodes[root.getNr()];
         int iRoot = root.getNr();
 
-        storeNodes(0, iRoot);
-        
+        if (storeAllPending) {
+            storeNodes(0, iRoot);
+            storeNodes(iRoot+1, nodeCount);
+        } else {
+            // Only nodes modified since the stored copy was last made need
+            // to be copied, along with their old and new parents (whose
+            // child links may have changed) and the old and new roots.
+            markDirtyNodesPending();
+            markStorePending(iRoot);
+            markStorePending(storedRoot.getNr());
+
+            int nModified = nStorePending;
+            for (int i=0; i<nModified; i++) {
+                int nr = storePendingNrs[i];
+                if (m_nodes[nr].getParent() != null)
+                    markStorePending(m_nodes[nr].getParent().getNr());
+                if (m_storedNodes[nr].getParent() != null)
+                    markStorePending(m_storedNodes[nr].getParent().getNr());
+            }
+
+            for (int i=0; i<nStorePending; i++) {
+                int nr = storePendingNrs[i];
+                if (nr != iRoot)
+                    storeNodes(nr, nr+1);
+            }
+        }
+
+        storedRoot = m_storedNodes[iRoot];
         storedRoot.setHeight( m_nodes[iRoot].getHeight());
         storedRoot.setParent(null);
 
@@ -747,16 +907,165 @@ public class MultiTypeTree extends Tree {
             storedRoot.setRight(null);
         
         MultiTypeNode mtStoredRoot = (MultiTypeNode)storedRoot;
-        mtStoredRoot.changeTimes.clear();
-        mtStoredRoot.changeTimes.addAll(((MultiTypeNode)m_nodes[iRoot]).changeTimes);
-
-        mtStoredRoot.changeTypes.clear();
-        mtStoredRoot.changeTypes.addAll(((MultiTypeNode)m_nodes[iRoot]).changeTypes);
-        
-        mtStoredRoot.nTypeChanges = ((MultiTypeNode)m_nodes[iRoot]).nTypeChanges;
+        if (arena == null)
+            mtStoredRoot.copyChangesFrom((MultiTypeNode)m_nodes[iRoot]);
         mtStoredRoot.nodeType = ((MultiTypeNode)m_nodes[iRoot]).nodeType;
-        
-        storeNodes(iRoot+1, nodeCount);
+
+        // Type changes of all nodes are copied in one go when stored in
+        // an arena:
+        if (arena != null)
+            storedArena.assignFrom(arena);
+
+        clearStorePending();
+        changeCountIndex.store();
+        branchValidity.store();
+
+        if (checkStoreInvariantsInput.get())
+            checkStoredNodes();
+    }
+
+    @Override
+    public void restore() {
+        // Nodes modified by the rejected proposal differ between the
+        // current and stored node arrays once these are exchanged:
+        markDirtyNodesPending();
+        markDirtyNodesEventsStale();
+
+        super.restore();
+
+        changeCountIndex.restore((MultiTypeNode[])m_nodes);
+        branchValidity.restore();
+
+        // Node arrays have been exchanged, so exchange their arenas too:
+        if (arena != null) {
+            TypeChangeArena tmp = arena;
+            arena = storedArena;
+            storedArena = tmp;
+        }
+    }
+
+    @Override
+    public void setEverythingDirty(boolean isDirty) {
+        // Dirty flags are about to be cleared following acceptance of a
+        // proposal, so record the nodes whose stored copies are now stale:
+        if (isDirty) {
+            storeAllPending = true;
+            if (eventIndex != null)
+                eventIndex.markAllStale();
+        } else {
+            markDirtyNodesPending();
+            markDirtyNodesEventsStale();
+        }
+
+        super.setEverythingDirty(isDirty);
+
+        for (Node node : m_nodes)
+            ((MultiTypeNode)node).typeDirty = isDirty;
+        if (m_storedNodes != null) {
+            for (Node node : m_storedNodes)
+                ((MultiTypeNode)node).typeDirty = false;
+        }
+    }
+
+    /**
+     * Mark events of nodes currently flagged as dirty (or with modified
+     * types) as requiring refreshing in the event index.  Called before
+     * dirty flags are cleared.
+     */
+    private void markDirtyNodesEventsStale() {
+        if (eventIndex == null)
+            return;
+
+        for (Node node : m_nodes) {
+            if (((MultiTypeNode)node).isModified())
+                eventIndex.markStale(node.getNr());
+        }
+    }
+
+    /**
+     * Obtain time-ordered index of the events on this tree, bringing it up
+     * to date with any modifications made since it was last requested.
+     * Only branches flagged as dirty (for instance by the topology helpers
+     * of MultiTypeTreeOperator) or modified by rejected or accepted
+     * proposals are revisited.
+     *
+     * @return event index, or null if maintainEventIndex is false
+     */
+    public TreeEventIndex getEventIndex() {
+        if (eventIndex == null)
+            return null;
+
+        eventIndex.update();
+        return eventIndex;
+    }
+
+    /**
+     * Mark nodes currently flagged as dirty (or with modified types) as
+     * requiring storage.
+     */
+    private void markDirtyNodesPending() {
+        if (storeAllPending)
+            return;
+
+        for (Node node : m_nodes) {
+            if (((MultiTypeNode)node).isModified())
+                markStorePending(node.getNr());
+        }
+    }
+
+    /**
+     * Mark node as requiring storage.
+     *
+     * @param nr node number
+     */
+    private void markStorePending(int nr) {
+        if (!storePending[nr]) {
+            storePending[nr] = true;
+            storePendingNrs[nStorePending++] = nr;
+        }
+    }
+
+    private void clearStorePending() {
+        for (int i=0; i<nStorePending; i++)
+            storePending[storePendingNrs[i]] = false;
+
+        nStorePending = 0;
+        storeAllPending = false;
+    }
+
+    /**
+     * Check that every stored node is identical to the corresponding
+     * current node.
+     *
+     * @throws IllegalStateException if a discrepancy is found
+     */
+    private void checkStoredNodes() {
+        if (storedRoot.getNr() != root.getNr())
+            throw new IllegalStateException("Stored root differs from root.");
+
+        for (int nr=0; nr<nodeCount; nr++) {
+            MultiTypeNode node = (MultiTypeNode)m_nodes[nr];
+            MultiTypeNode stored = (MultiTypeNode)m_storedNodes[nr];
+
+            boolean same = node.getHeight() == stored.getHeight()
+                    && node.nodeType == stored.nodeType
+                    && node.getChildCount() == stored.getChildCount()
+                    && node.getChangeCount() == stored.getChangeCount()
+                    && (node.isRoot()
+                    ? stored.isRoot()
+                    : !stored.isRoot() && node.getParent().getNr() == stored.getParent().getNr());
+
+            for (int i=0; same && i<node.getChildCount(); i++)
+                same = node.getChild(i).getNr() == stored.getChild(i).getNr();
+
+            for (int i=0; same && i<node.getChangeCount(); i++)
+                same = node.getChangeType(i) == stored.getChangeType(i)
+                        && node.getChangeTime(i) == stored.getChangeTime(i);
+
+            if (!same)
+                throw new IllegalStateException("Stored copy of node " + nr
+                        + " differs from current node following store().");
+        }
     }
 
     /**
@@ -778,13 +1087,8 @@ public class MultiTypeTree extends Tree {
                     sink.setRight(null);
             }
             
-            sink.changeTimes.clear();
-            sink.changeTimes.addAll(src.changeTimes);
-            
-            sink.changeTypes.clear();
-            sink.changeTypes.addAll(src.changeTypes);
-            
-            sink.nTypeChanges = src.nTypeChanges;
+            if (arena == null)
+                sink.copyChangesFrom(src);
             sink.nodeType = src.nodeType;
         }
     }
@@ -794,22 +1098,38 @@ public class MultiTypeTree extends Tree {
     /////////////////////////////////////////////////
     @Override
     public void init(PrintStream printStream) {
+        String[] taxonIDs = new String[getLeafNodeCount()];
+        for (int i = 0; i<getLeafNodeCount(); i++)
+            taxonIDs[i] = getNodesAsArray()[i].getID();
+
+        writeNexusHeader(taxonIDs, printStream);
+    }
+
+    /**
+     * Write the NEXUS taxa block and the start of the trees block
+     * (including the translate table) produced by init().  Leaf i is
+     * assumed to have node number i.
+     *
+     * @param taxonIDs IDs of leaf nodes, in node number order
+     * @param printStream stream to write to
+     */
+    public static void writeNexusHeader(String[] taxonIDs, PrintStream printStream) {
 
         printStream.println("#NEXUS\n");
         printStream.println("Begin taxa;");
-        printStream.println("\tDimensions ntax="+getLeafNodeCount()+";");
+        printStream.println("\tDimensions ntax="+taxonIDs.length+";");
         printStream.println("\t\tTaxlabels");
-        for (int i = 0; i<getLeafNodeCount(); i++)
-            printStream.println("\t\t\t"+getNodesAsArray()[i].getID());
+        for (int i = 0; i<taxonIDs.length; i++)
+            printStream.println("\t\t\t"+taxonIDs[i]);
         printStream.println("\t\t\t;");
         printStream.println("End;");
 
         printStream.println("Begin trees;");
         printStream.println("\tTranslate");
-        for (int i = 0; i<getLeafNodeCount(); i++) {
-            printStream.print("\t\t\t"+(getNodesAsArray()[i].getNr()+1)
-                    +" "+getNodesAsArray()[i].getID());
-            if (i<getLeafNodeCount()-1)
+        for (int i = 0; i<taxonIDs.length; i++) {
+            printStream.print("\t\t\t"+(i+1)
+                    +" "+taxonIDs[i]);
+            if (i<taxonIDs.length-1)
                 printStream.print(",");
             printStream.print("\n");
         }
@@ -818,11 +1138,26 @@ public class MultiTypeTree extends Tree {
 
     @Override
     public void log(long i, PrintStream printStream) {
-        printStream.print("tree STATE_"+i+" = ");
-        printStream.print(toString());
-        printStream.print(";");
+        if (newickSnapshot == null)
+            newickSnapshot = new MultiTypeTreeSnapshot(this);
+        else
+            newickSnapshot.assignFrom(this);
+
+        logSnapshot(i, newickSnapshot, printStream);
+    }
 
+    @Override
+    public Object getLogSnapshot(long sample) {
+        return new MultiTypeTreeSnapshot(this);
+    }
 
+    @Override
+    public void logSnapshot(long sample, Object snapshot, PrintStream printStream) {
+        // Output is identical to that of toString(), but is written
+        // without constructing the flattened tree:
+        printStream.print("tree STATE_"+sample+" = ");
+        newickWriter.write((MultiTypeTreeSnapshot)snapshot, printStream);
+        printStream.print(";");
     }
 
     @Override
@@ -835,12 +1170,47 @@ public class MultiTypeTree extends Tree {
     // Serialization and deserialization for state //
     /////////////////////////////////////////////////
     
+    /**
+     * Store tree in XML format, either as Newick (via toString()) or, if
+     * binaryState is set, using MultiTypeTreeStateCodec.
+     *
+     * @return XML state node
+     */
+    @Override
+    public String toXML() {
+        if (!binaryStateInput.get())
+            return super.toXML();
+
+        return "<statenode id='" + String.valueOf(getID()).replace("&", "&amp;")
+                .replace("'", "&apos;").replace("<", "&lt;")
+                + "' format='" + MultiTypeTreeStateCodec.FORMAT + "'>"
+                + MultiTypeTreeStateCodec.encode(this)
+                + "</statenode>\n";
+    }
+
     /**
      * reconstruct tree from XML fragment in the form of a DOM node *
      * @param node
      */
     @Override
     public void fromXML(org.w3c.dom.Node node) {
+        org.w3c.dom.Node format = node.getAttributes() != null
+                ? node.getAttributes().getNamedItem("format")
+                : null;
+        if (format != null) {
+            if (!format.getNodeValue().equals(MultiTypeTreeStateCodec.FORMAT))
+                throw new IllegalArgumentException("Unrecognised multi-type "
+                        + "tree state format '" + format.getNodeValue() + "'.");
+
+            MultiTypeNode newRoot = MultiTypeTreeStateCodec.decode(node.getTextContent());
+            root = newRoot;
+            nodeCount = newRoot.getNodeCount();
+            leafNodeCount = newRoot.getLeafNodeCount();
+            internalNodeCount = nodeCount - leafNodeCount;
+            initArrays();
+            return;
+        }
+
         try {
             String sNewick = node.getTextContent();
 
@@ -10,7 +10,6 @@ import beast.base.util.Randomizer;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
-import org.jblas.MatrixFunctions;
 
 import java.util.Arrays;
 import java.util.List;
@@ -151,13 +150,9 @@ public class MultiTypeTreeFromUntypedNewick extends MultiTypeTree implements Sta
 
         while (true) {
 
-            double aTot = 0;
-            for (int c=0; c<migrationModel.getNTypes(); c++) {
-                if (c == type)
-                    continue;
-
-                aTot += migrationModel.getBackwardRate(type, c);
-            }
+            // Only active migration routes need be visited:
+            SparseRateMatrix Qs = migrationModel.getSparseQ(false);
+            double aTot = -Qs.getDiagonal(type);
 
             double newTime = time + Randomizer.nextExponential(aTot);
 
@@ -174,12 +169,13 @@ public class MultiTypeTreeFromUntypedNewick extends MultiTypeTree implements Sta
 
             double u = Randomizer.nextDouble()*aTot;
 
-            int newType;
-            for (newType=0; newType<migrationModel.getNTypes(); newType++) {
-                if (newType==type)
+            int newType = type;
+            for (int k=Qs.getRowStart(type); k<Qs.getRowEnd(type); k++) {
+                if (Qs.getColumn(k)==type)
                     continue;
 
-                u -= migrationModel.getBackwardRate(type, newType);
+                newType = Qs.getColumn(k);
+                u -= Qs.getValue(k);
                 if (u<0.0)
                     break;
             }
@@ -241,7 +237,7 @@ public class MultiTypeTreeFromUntypedNewick extends MultiTypeTree implements Sta
 
         do {
             //double offset = acc + nVirt*log_muL - Gamma.logGamma(nVirt+1);
-            P_low_given_ab += Math.exp(Math.log(migrationModel.getRpowN(nVirt, sym).get(typeStart, typeEnd)) + acc);
+            P_low_given_ab += Math.exp(Math.log(migrationModel.getRpowNElement(nVirt, typeStart, typeEnd, sym)) + acc);
 
             if (P_low_given_ab>u)
                 return nVirt;
@@ -275,9 +271,8 @@ public class MultiTypeTreeFromUntypedNewick extends MultiTypeTree implements Sta
         // Pre-calculate some stuff:
         double muL = migrationModel.getMu(false)*L;
 
-        double Pba = MatrixFunctions.expm(
-                migrationModel.getQ(false)
-                        .mul(L)).get(startType,endType);
+        double Pba = migrationModel.getTransitionProb(startType, endType,
+                L, false);
 
         // Abort if transition is impossible.
         if (Pba == 0.0)
@@ -309,12 +304,14 @@ public class MultiTypeTreeFromUntypedNewick extends MultiTypeTree implements Sta
         for (int i = 1; i<=nVirt; i++) {
 
             double u2 = Randomizer.nextDouble()
-                    *migrationModel.getRpowN(nVirt-i+1, false).get(prevType, endType);
-            int c;
+                    *migrationModel.getRpowNElement(nVirt-i+1, prevType, endType, false);
+            int c = -1;
             boolean fellThrough = true;
-            for (c = 0; c<migrationModel.getNTypes(); c++) {
-                u2 -= migrationModel.getR(false).get(prevType,c)
-                        *migrationModel.getRpowN(nVirt-i, false).get(c,endType);
+            SparseRateMatrix Rs = migrationModel.getSparseR(false);
+            for (int k = Rs.getRowStart(prevType); k<Rs.getRowEnd(prevType); k++) {
+                c = Rs.getColumn(k);
+                u2 -= Rs.getValue(k)
+                        *migrationModel.getRpowNElement(nVirt-i, c, endType, false);
                 if (u2<0.0) {
                     fellThrough = false;
                     break;
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import java.io.PrintStream;
+
+/**
+ * Writes the sorted Newick representation of a multi-type tree in which
+ * type changes appear as single-child nodes, as produced by
+ * getFlattenedTree(true).getRoot().toSortedNewick(), without constructing
+ * the flattened tree.  Alternatively, type changes can be omitted, giving
+ * a tree annotated only with node types.  The tree is read from a
+ * MultiTypeTreeSnapshot and the string is assembled in a buffer which is
+ * reused between calls.
+ *
+ * Type change nodes are numbered as in getFlattenedTree(): following the
+ * original nodes, in node number order and from the bottom to the top of
+ * each branch.
+ */
+public class MultiTypeTreeNewickWriter {
+
+    private final boolean includeTypeChanges;
+    private final StringBuilder buf = new StringBuilder();
+
+    private MultiTypeTreeSnapshot tree;
+
+    // Smallest leaf number below each node, used to order children:
+    private int[] minLeafNr = new int[0];
+
+    // Metadata strings for each type, built on demand:
+    private TypeSet metaDataTypeSet;
+    private String[] typeMetaData = new String[0];
+
+    /**
+     * Construct writer including type changes as single-child nodes.
+     */
+    public MultiTypeTreeNewickWriter() {
+        this(true);
+    }
+
+    /**
+     * @param includeTypeChanges if false, type changes are omitted and
+     * only node types are written
+     */
+    public MultiTypeTreeNewickWriter(boolean includeTypeChanges) {
+        this.includeTypeChanges = includeTypeChanges;
+    }
+
+    /**
+     * Write Newick representation (without trailing semicolon) of a tree
+     * snapshot to a stream.
+     *
+     * @param snapshot snapshot of tree to write
+     * @param printStream stream to write to
+     */
+    public synchronized void write(MultiTypeTreeSnapshot snapshot,
+            PrintStream printStream) {
+        printStream.append(assemble(snapshot));
+    }
+
+    /**
+     * @param snapshot snapshot of tree to write
+     * @return Newick representation of tree (without trailing semicolon)
+     */
+    public synchronized String toNewick(MultiTypeTreeSnapshot snapshot) {
+        return assemble(snapshot).toString();
+    }
+
+    private CharSequence assemble(MultiTypeTreeSnapshot snapshot) {
+        tree = snapshot;
+
+        if (minLeafNr.length<tree.nodeCount)
+            minLeafNr = new int[tree.nodeCount];
+
+        int nTypes = tree.typeSet.getNTypes();
+        if (metaDataTypeSet != tree.typeSet || typeMetaData.length != nTypes) {
+            metaDataTypeSet = tree.typeSet;
+            typeMetaData = new String[nTypes];
+        }
+
+        buf.setLength(0);
+        findMinLeafNrs(tree.rootNr);
+        writeBranch(tree.rootNr);
+
+        tree = null;
+        return buf;
+    }
+
+    private int findMinLeafNrs(int nr) {
+        int min;
+        if (tree.leftNrs[nr]<0)
+            min = nr;
+        else {
+            min = findMinLeafNrs(tree.leftNrs[nr]);
+            if (tree.rightNrs[nr]>=0)
+                min = Math.min(min, findMinLeafNrs(tree.rightNrs[nr]));
+        }
+
+        minLeafNr[nr] = min;
+        return min;
+    }
+
+    /**
+     * @return number of type changes on branch above node which appear
+     * in the output
+     */
+    private int getWrittenChangeCount(int nr) {
+        // Type changes on the root branch are not part of the flattened tree:
+        if (!includeTypeChanges || nr == tree.rootNr)
+            return 0;
+
+        return tree.getChangeCount(nr);
+    }
+
+    /**
+     * Write subtree below node together with the type change nodes on the
+     * branch above it.
+     */
+    private void writeBranch(int nr) {
+        int count = getWrittenChangeCount(nr);
+
+        for (int i=0; i<count; i++)
+            buf.append('(');
+
+        writeNode(nr);
+
+        if (count == 0)
+            return;
+
+        // Change nodes are numbered consecutively, skipping the root:
+        int firstChangeNr = tree.nodeCount + tree.changeStarts[nr];
+        if (tree.rootNr<nr)
+            firstChangeNr -= tree.getChangeCount(tree.rootNr);
+
+        double parentHeight = tree.heights[tree.parentNrs[nr]];
+        for (int i=0; i<count; i++) {
+            double time = tree.getChangeTime(nr, i);
+            double upperTime = i+1<count ? tree.getChangeTime(nr, i+1) : parentHeight;
+
+            buf.append(')').append(firstChangeNr + i + 1);
+            appendTypeMetaData(tree.getChangeType(nr, i));
+            buf.append(':').append(upperTime - time);
+        }
+    }
+
+    /**
+     * Write subtree below node, ending with the length of the branch
+     * between the node and the first type change above it.
+     */
+    private void writeNode(int nr) {
+        int left = tree.leftNrs[nr];
+        int right = tree.rightNrs[nr];
+
+        if (left<0) {
+            buf.append(nr + 1);
+        } else {
+            buf.append('(');
+            if (right>=0) {
+                if (minLeafNr[left]>minLeafNr[right]) {
+                    writeBranch(right);
+                    buf.append(',');
+                    writeBranch(left);
+                } else {
+                    writeBranch(left);
+                    buf.append(',');
+                    writeBranch(right);
+                }
+            } else
+                writeBranch(left);
+            buf.append(')');
+
+            if (tree.hasID[nr])
+                buf.append(nr + 1);
+        }
+
+        appendTypeMetaData(tree.nodeTypes[nr]);
+
+        double length;
+        if (nr == tree.rootNr)
+            length = 0.0;
+        else if (getWrittenChangeCount(nr)>0)
+            length = tree.getChangeTime(nr, 0) - tree.heights[nr];
+        else
+            length = tree.heights[tree.parentNrs[nr]] - tree.heights[nr];
+        buf.append(':').append(length);
+    }
+
+    private void appendTypeMetaData(int type) {
+        if (type>=typeMetaData.length) {
+            buf.append("[&").append(tree.typeLabel).append("=\"")
+                    .append(tree.typeSet.getTypeName(type)).append("\"]");
+            return;
+        }
+
+        if (typeMetaData[type] == null)
+            typeMetaData[type] = "[&" + tree.typeLabel + "=\""
+                    + tree.typeSet.getTypeName(type) + "\"]";
+
+        buf.append(typeMetaData[type]);
+    }
+}
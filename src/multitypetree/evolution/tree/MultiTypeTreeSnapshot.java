@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * Copy of the topology, heights, node types and type changes of a
+ * multi-type tree held in primitive arrays.  Taking a snapshot costs a
+ * few array copies, after which the snapshot is independent of the tree
+ * and may be read (for instance formatted for logging) on another thread.
+ */
+public class MultiTypeTreeSnapshot {
+
+    int nodeCount, leafNodeCount, rootNr;
+    int[] parentNrs, leftNrs, rightNrs;
+    double[] heights;
+    int[] nodeTypes;
+    boolean[] hasID;
+
+    // Changes of node nr occupy [changeStarts[nr], changeStarts[nr+1]):
+    int[] changeStarts;
+    int[] changeTypes;
+    double[] changeTimes;
+
+    String typeLabel;
+    TypeSet typeSet;
+
+    /**
+     * Construct snapshot of given tree.
+     *
+     * @param mtTree tree to copy
+     */
+    public MultiTypeTreeSnapshot(MultiTypeTree mtTree) {
+        assignFrom(mtTree);
+    }
+
+    /**
+     * Construct snapshot from its component arrays, which are used
+     * directly rather than copied.  Child links are derived from the
+     * parent numbers.
+     *
+     * @param rootNr number of root node
+     * @param parentNrs parent number of each node, -1 for the root
+     * @param heights height of each node
+     * @param nodeTypes type of each node
+     * @param hasID whether each node has an ID (which determines whether
+     * internal node numbers appear in Newick output)
+     * @param changeStarts offsets of the changes of each node into
+     * changeTypes and changeTimes, with a final element holding the total
+     * number of changes
+     * @param changeTypes destination types of changes
+     * @param changeTimes times of changes
+     * @param typeLabel type label used in metadata
+     * @param typeSet type set used to name types
+     */
+    public MultiTypeTreeSnapshot(int rootNr, int[] parentNrs, double[] heights,
+            int[] nodeTypes, boolean[] hasID, int[] changeStarts,
+            int[] changeTypes, double[] changeTimes,
+            String typeLabel, TypeSet typeSet) {
+        this.nodeCount = parentNrs.length;
+        this.rootNr = rootNr;
+        this.parentNrs = parentNrs;
+        this.heights = heights;
+        this.nodeTypes = nodeTypes;
+        this.hasID = hasID;
+        this.changeStarts = changeStarts;
+        this.changeTypes = changeTypes;
+        this.changeTimes = changeTimes;
+        this.typeLabel = typeLabel;
+        this.typeSet = typeSet;
+
+        leftNrs = new int[nodeCount];
+        rightNrs = new int[nodeCount];
+        for (int nr=0; nr<nodeCount; nr++) {
+            leftNrs[nr] = -1;
+            rightNrs[nr] = -1;
+        }
+        for (int nr=0; nr<nodeCount; nr++) {
+            int parentNr = parentNrs[nr];
+            if (parentNr<0)
+                continue;
+            if (leftNrs[parentNr]<0)
+                leftNrs[parentNr] = nr;
+            else
+                rightNrs[parentNr] = nr;
+        }
+
+        leafNodeCount = 0;
+        for (int nr=0; nr<nodeCount; nr++)
+            if (leftNrs[nr]<0)
+                leafNodeCount += 1;
+    }
+
+    /**
+     * Overwrite this snapshot with the current state of a tree, reusing
+     * existing arrays where possible.
+     *
+     * @param mtTree tree to copy
+     */
+    public final void assignFrom(MultiTypeTree mtTree) {
+        nodeCount = mtTree.getNodeCount();
+        leafNodeCount = mtTree.getLeafNodeCount();
+        rootNr = mtTree.getRoot().getNr();
+        typeLabel = mtTree.getTypeLabel();
+        typeSet = mtTree.getTypeSet();
+
+        if (heights == null || heights.length<nodeCount) {
+            parentNrs = new int[nodeCount];
+            leftNrs = new int[nodeCount];
+            rightNrs = new int[nodeCount];
+            heights = new double[nodeCount];
+            nodeTypes = new int[nodeCount];
+            hasID = new boolean[nodeCount];
+            changeStarts = new int[nodeCount+1];
+        }
+
+        Node[] nodes = mtTree.getNodesAsArray();
+        int nChanges = 0;
+        for (Node node : nodes)
+            nChanges += ((MultiTypeNode)node).getChangeCount();
+
+        if (changeTypes == null || changeTypes.length<nChanges) {
+            changeTypes = new int[nChanges];
+            changeTimes = new double[nChanges];
+        }
+
+        int pos = 0;
+        for (int nr=0; nr<nodeCount; nr++) {
+            MultiTypeNode node = (MultiTypeNode)nodes[nr];
+            parentNrs[nr] = node.isRoot() ? -1 : node.getParent().getNr();
+            leftNrs[nr] = node.getLeft() != null ? node.getLeft().getNr() : -1;
+            rightNrs[nr] = node.getRight() != null ? node.getRight().getNr() : -1;
+            heights[nr] = node.getHeight();
+            nodeTypes[nr] = node.getNodeType();
+            hasID[nr] = node.getID() != null;
+
+            changeStarts[nr] = pos;
+            node.copyChangeTypes(changeTypes, pos);
+            node.copyChangeTimes(changeTimes, pos);
+            pos += node.getChangeCount();
+        }
+        changeStarts[nodeCount] = pos;
+    }
+
+    /**
+     * @return number of nodes in tree
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return number of the root node
+     */
+    public int getRootNr() {
+        return rootNr;
+    }
+
+    /**
+     * @param nr node number
+     * @return height of node
+     */
+    public double getHeight(int nr) {
+        return heights[nr];
+    }
+
+    /**
+     * @param nr node number
+     * @return number of parent of node, or -1 for the root
+     */
+    public int getParentNr(int nr) {
+        return parentNrs[nr];
+    }
+
+    /**
+     * @param nr node number
+     * @return true if node has an ID
+     */
+    public boolean hasID(int nr) {
+        return hasID[nr];
+    }
+
+    /**
+     * @return type label used in metadata
+     */
+    public String getTypeLabel() {
+        return typeLabel;
+    }
+
+    /**
+     * @return type set used to name types
+     */
+    public TypeSet getTypeSet() {
+        return typeSet;
+    }
+
+    /**
+     * @param nr node number
+     * @return type of node
+     */
+    public int getNodeType(int nr) {
+        return nodeTypes[nr];
+    }
+
+    /**
+     * @param nr node number
+     * @return number of type changes on branch above node
+     */
+    public int getChangeCount(int nr) {
+        return changeStarts[nr+1] - changeStarts[nr];
+    }
+
+    /**
+     * @param nr node number
+     * @param idx change index
+     * @return destination type of change
+     */
+    public int getChangeType(int nr, int idx) {
+        return changeTypes[changeStarts[nr] + idx];
+    }
+
+    /**
+     * @param nr node number
+     * @param idx change index
+     * @return time of change
+     */
+    public double getChangeTime(int nr, int idx) {
+        return changeTimes[changeStarts[nr] + idx];
+    }
+}
@@ -23,12 +23,16 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.parameter.BooleanParameter;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.inference.util.InputUtil;
 
-import java.util.ArrayList;
-import java.util.List;
+import org.jblas.ComplexDoubleMatrix;
 import org.jblas.DoubleMatrix;
+import org.jblas.Eigen;
 import org.jblas.MatrixFunctions;
 
+import java.util.Arrays;
+import org.jblas.Solve;
+
 /**
  * @author Tim Vaughan
  */
@@ -65,6 +69,18 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
     public Input<Boolean> useForwardMigrationRatesInput = new Input<>("useForwardMigrationRateMatrix",
             "Specifies, whether the forward (true) or backward (false) migration rate matrix is used.", false);
 
+    public Input<Double> maxPowerCacheSizeInput = new Input<>("maxPowerCacheSize",
+            "Maximum memory (in MB) used to cache powers of each uniformized "
+            + "rate matrix.  Higher powers are recomputed on demand. "
+            + "(Default 64.)", 64.0);
+
+    public Input<Boolean> useSparseRateMatrixInput = new Input<>(
+            "useSparseRateMatrix",
+            "Avoid dense rate matrix computations, using only the active "
+            + "migration routes.  Useful for large deme counts when most "
+            + "rates are switched off by BSSVS flags. (Default false.)",
+            false);
+
     protected boolean useForwardMigrationRateMatrix;
     protected TypeSet typeSet;
     protected Function rateMatrix, popSizes;
@@ -74,9 +90,39 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
     protected int nTypes;
     protected DoubleMatrix Q, R;
     protected DoubleMatrix Qsym, Rsym;
-    protected List<DoubleMatrix> RpowN, RsymPowN;
-    protected DoubleMatrix RpowMax, RsymPowMax;
-    protected boolean RpowSteady, RsymPowSteady;
+    protected SparseRateMatrix Qsparse, Rsparse, QsymSparse, RsymSparse;
+    protected boolean useSparseRateMatrix;
+    protected double[] symBackwardRates;
+    protected MatrixPowerCache RpowCache, RsymPowCache;
+    protected EigenDecomposition QEigen, QsymEigen;
+
+    // Derived quantities as they were when store() was last called.  The
+    // cache objects are double-buffered: the first rebuild following
+    // store() swaps in the spare objects, leaving the stored ones intact.
+    protected double storedMu, storedMuSym;
+    protected DoubleMatrix storedQ, storedR, storedQsym, storedRsym;
+    protected SparseRateMatrix storedQsparse, storedRsparse;
+    protected SparseRateMatrix storedQsymSparse, storedRsymSparse;
+    protected MatrixPowerCache spareRpowCache, spareRsymPowCache;
+    protected EigenDecomposition spareQEigen, spareQsymEigen;
+    protected boolean storedDirty, rebuiltSinceStore;
+
+    // Truncation tolerance for uniformization, relative to the smallest
+    // non-zero transition probability computed, and scratch space:
+    private static final double UNIFORMIZATION_TOL = 1e-14;
+    private double[] uniformizedRow, uniformizedVec, uniformizedVecNext;
+
+    // Dense tables used by likelihood calculations, rebuilt whenever any
+    // input changes: backward migration rates (row-major), their logs,
+    // total backward migration rate out of each type, and inverse
+    // population sizes and their logs.  Double-buffered like the caches
+    // above.
+    protected double[] backwardRates, logBackwardRates, totalBackwardRates;
+    protected double[] invPopSizes, logInvPopSizes;
+    protected double[] storedBackwardRates, storedLogBackwardRates;
+    protected double[] storedTotalBackwardRates;
+    protected double[] storedInvPopSizes, storedLogInvPopSizes;
+    protected boolean tablesDirty, storedTablesDirty, tablesRebuiltSinceStore;
     
     protected boolean rateMatrixIsSquare, symmetricRateMatrix;
     
@@ -84,10 +130,11 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
     protected boolean dirty;
 
     public SCMigrationModel() {
-        // Initialise caching array for powers of uniformized
-        // transition matrix:
-        RpowN = new ArrayList<>();
-        RsymPowN = new ArrayList<>();
+        // Initialise (lazily computed) eigendecompositions of Q and Qsym:
+        QEigen = new EigenDecomposition(false);
+        QsymEigen = new EigenDecomposition(true);
+        spareQEigen = new EigenDecomposition(false);
+        spareQsymEigen = new EigenDecomposition(true);
     }
 
     @Override
@@ -100,6 +147,7 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
         popSizes = popSizesInput.get();
         rateMatrix = rateMatrixInput.get();
         useForwardMigrationRateMatrix = useForwardMigrationRatesInput.get();
+        useSparseRateMatrix = useSparseRateMatrixInput.get();
 
         if (popSizesScaleFactorInput.get() != null)
             popSizesScaleFactor = popSizesScaleFactorInput.get();
@@ -139,6 +187,31 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
                         + " migration rate matrix.");
         }
 
+        // Initialise caches for powers of uniformized transition matrices:
+        long maxPowerCacheBytes = (long)(maxPowerCacheSizeInput.get()*1024*1024);
+        RpowCache = new MatrixPowerCache(nTypes, maxPowerCacheBytes);
+        RsymPowCache = new MatrixPowerCache(nTypes, maxPowerCacheBytes);
+        spareRpowCache = new MatrixPowerCache(nTypes, maxPowerCacheBytes);
+        spareRsymPowCache = new MatrixPowerCache(nTypes, maxPowerCacheBytes);
+
+        // Initialise likelihood tables:
+        backwardRates = new double[nTypes*nTypes];
+        logBackwardRates = new double[nTypes*nTypes];
+        totalBackwardRates = new double[nTypes];
+        invPopSizes = new double[nTypes];
+        logInvPopSizes = new double[nTypes];
+        storedBackwardRates = new double[nTypes*nTypes];
+        storedLogBackwardRates = new double[nTypes*nTypes];
+        storedTotalBackwardRates = new double[nTypes];
+        storedInvPopSizes = new double[nTypes];
+        storedLogInvPopSizes = new double[nTypes];
+        tablesDirty = true;
+
+        symBackwardRates = new double[nTypes*nTypes];
+        uniformizedRow = new double[nTypes];
+        uniformizedVec = new double[nTypes];
+        uniformizedVecNext = new double[nTypes];
+
         dirty = true;
         updateMatrices();
     }
@@ -152,54 +225,145 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
         if (!dirty)
             return;
 
+        // Preserve stored caches in case the current state is restored:
+        if (!rebuiltSinceStore) {
+            swapCaches();
+            rebuiltSinceStore = true;
+        }
+
+        // Set up sparse backward transition rate matrix and its
+        // symmetrized counterpart, containing only active routes.  (Any
+        // change requiring this also invalidates the rate tables.)
+        tablesDirty = true;
+        double[] rates = getBackwardRates();
+        for (int i = 0; i < nTypes; i++)
+            for (int j = 0; j < nTypes; j++)
+                symBackwardRates[i*nTypes+j] = 0.5*(rates[i*nTypes+j] + rates[j*nTypes+i]);
+        Qsparse = SparseRateMatrix.fromRates(nTypes, rates);
+        QsymSparse = SparseRateMatrix.fromRates(nTypes, symBackwardRates);
+
         mu = 0.0;
         muSym = 0.0;
-        Q = new DoubleMatrix(nTypes, nTypes);
-        Qsym = new DoubleMatrix(nTypes, nTypes);
-
-        // Set up backward transition rate matrix Q and symmetrized backward
-        // transition rate matrix Qsym:
         for (int i = 0; i < nTypes; i++) {
-            Q.put(i,i, 0.0);
-            Qsym.put(i,i, 0.0);
-            for (int j = 0; j < nTypes; j++) {
-                if (i != j) {
-                    Q.put(i, j, getBackwardRate(i, j));
-                    Q.put(i, i, Q.get(i, i) - Q.get(i, j));
-                    
-                    Qsym.put(i, j, 0.5*(getBackwardRate(i, j) + getBackwardRate(j, i)));
-                    Qsym.put(i, i, Qsym.get(i, i) - Qsym.get(i, j));
-                }
-            }
+            if (-Qsparse.getDiagonal(i) > mu)
+                mu = -Qsparse.getDiagonal(i);
 
-            if (-Q.get(i, i) > mu)
-                mu = -Q.get(i, i);
-            
-            if (-Qsym.get(i,i) > muSym)
-                muSym = -Qsym.get(i, i);
+            if (-QsymSparse.getDiagonal(i) > muSym)
+                muSym = -QsymSparse.getDiagonal(i);
         }
 
-        // Set up uniformized backward transition rate matrices R and Rsym:
-        R = Q.mul(1.0/mu).add(DoubleMatrix.eye(nTypes));
-        Rsym = Qsym.mul(1.0/muSym).add(DoubleMatrix.eye(nTypes));
-        
-        // Clear cached powers of R and Rsym and steady state flag:
-        RpowN.clear();
-        RsymPowN.clear();
-        
-        RpowSteady = false;
-        RsymPowSteady = false;
-        
-        // Power sequences initially contain R^0 = I
-        RpowN.add(DoubleMatrix.eye(nTypes));
-        RsymPowN.add(DoubleMatrix.eye(nTypes));
-        
-        RpowMax = DoubleMatrix.eye(nTypes);
-        RsymPowMax = DoubleMatrix.eye(nTypes);
+        // Set up uniformized backward transition rate matrices:
+        Rsparse = Qsparse.uniformize(mu);
+        RsymSparse = QsymSparse.uniformize(muSym);
+
+        if (useSparseRateMatrix) {
+            // Dense matrices are only built if requested:
+            Q = null;
+            R = null;
+            Qsym = null;
+            Rsym = null;
+
+            RpowCache.setMatrix(Rsparse);
+            RsymPowCache.setMatrix(RsymSparse);
+
+            dirty = false;
+            return;
+        }
+
+        Q = Qsparse.toDense();
+        Qsym = QsymSparse.toDense();
+        R = Rsparse.toDense();
+        Rsym = RsymSparse.toDense();
+
+        // Clear cached powers of R and Rsym:
+        RpowCache.setMatrix(R);
+        RsymPowCache.setMatrix(Rsym);
+
+        // Eigendecompositions are recomputed on demand:
+        QEigen.setMatrix(Q, Rsparse, mu);
+        QsymEigen.setMatrix(Qsym, RsymSparse, muSym);
 
         dirty = false;
     }
 
+    /**
+     * Ensure likelihood tables are consistent with current values held by
+     * inputs.
+     */
+    protected void updateTables() {
+
+        if (!tablesDirty)
+            return;
+
+        // Preserve stored tables in case the current state is restored:
+        if (!tablesRebuiltSinceStore) {
+            swapTables();
+            tablesRebuiltSinceStore = true;
+        }
+
+        for (int i=0; i<nTypes; i++) {
+            invPopSizes[i] = 1.0/getPopSize(i);
+            logInvPopSizes[i] = Math.log(invPopSizes[i]);
+
+            double totalRate = 0.0;
+            for (int j=0; j<nTypes; j++) {
+                double rate = getBackwardRate(i, j);
+                backwardRates[i*nTypes+j] = rate;
+                logBackwardRates[i*nTypes+j] = Math.log(rate);
+                totalRate += rate;
+            }
+            totalBackwardRates[i] = totalRate;
+        }
+
+        tablesDirty = false;
+    }
+
+    /**
+     * Obtain table of backward migration rates, with element i*D+j
+     * holding the rate from type i to type j (zero for i==j).  The table
+     * must not be modified and is only valid until the next change to the
+     * model parameters.
+     *
+     * @return backward rate table
+     */
+    public double[] getBackwardRates() {
+        updateTables();
+        return backwardRates;
+    }
+
+    /**
+     * @return table of logs of backward migration rates, laid out as for
+     * getBackwardRates()
+     */
+    public double[] getLogBackwardRates() {
+        updateTables();
+        return logBackwardRates;
+    }
+
+    /**
+     * @return table of total backward migration rates out of each type
+     */
+    public double[] getTotalBackwardRates() {
+        updateTables();
+        return totalBackwardRates;
+    }
+
+    /**
+     * @return table of inverse (scaled) population sizes 1/N of each type
+     */
+    public double[] getInvPopSizes() {
+        updateTables();
+        return invPopSizes;
+    }
+
+    /**
+     * @return table of log(1/N) for each type
+     */
+    public double[] getLogInvPopSizes() {
+        updateTables();
+        return logInvPopSizes;
+    }
+
     /**
      * @return number of demes in the migration model.
      */
@@ -321,7 +485,7 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
      * @param j
      * @return Offset (or -1 if i==j)
      */
-    protected int getArrayOffset(int i, int j) {
+    public int getArrayOffset(int i, int j) {
         
         if (i==j)
             throw new RuntimeException("Programmer error: requested migration "
@@ -386,69 +550,220 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
     @Override
     public DoubleMatrix getR(boolean symmetric) {
         updateMatrices();
-        if (symmetric)
+        if (symmetric) {
+            if (Rsym == null)
+                Rsym = RsymSparse.toDense();
             return Rsym;
-        else
+        } else {
+            if (R == null)
+                R = Rsparse.toDense();
             return R;
+        }
     }
     
     @Override
     public DoubleMatrix getQ(boolean symmetric) {
         updateMatrices();
-        if (symmetric)
+        if (symmetric) {
+            if (Qsym == null)
+                Qsym = QsymSparse.toDense();
             return Qsym;
-        else
+        } else {
+            if (Q == null)
+                Q = Qsparse.toDense();
             return Q;
+        }
+    }
+
+    @Override
+    public SparseRateMatrix getSparseQ(boolean symmetric) {
+        updateMatrices();
+        if (symmetric)
+            return QsymSparse;
+        else
+            return Qsparse;
+    }
+
+    @Override
+    public SparseRateMatrix getSparseR(boolean symmetric) {
+        updateMatrices();
+        if (symmetric)
+            return RsymSparse;
+        else
+            return Rsparse;
     }
     
     @Override
     public DoubleMatrix getRpowN(int n, boolean symmetric) {
         updateMatrices();
-        
-        List <DoubleMatrix> matPowerList;
-        DoubleMatrix mat, matPowerMax;
-        if (symmetric) {
-            matPowerList = RsymPowN;
-            mat = Rsym;
-            matPowerMax = RsymPowMax;
-        } else {
-            matPowerList = RpowN;
-            mat = R;
-            matPowerMax = RpowMax;
+        if (symmetric)
+            return RsymPowCache.getMatrix(n);
+        else
+            return RpowCache.getMatrix(n);
+    }
+
+    @Override
+    public double getRpowNElement(int n, int i, int j, boolean symmetric) {
+        updateMatrices();
+        if (symmetric)
+            return RsymPowCache.get(n, i, j);
+        else
+            return RpowCache.get(n, i, j);
+    }
+
+    /**
+     * @return number of bytes currently used to cache powers of the
+     * uniformized transition matrices.
+     */
+    public long getPowerCacheMemoryUse() {
+        return RpowCache.getMemoryUse() + RsymPowCache.getMemoryUse();
+    }
+
+    @Override
+    public double getTransitionProb(int i, int j, double t, boolean symmetric) {
+        updateMatrices();
+        if (useSparseRateMatrix) {
+            computeUniformizedTransitionProbs(i, t, symmetric, uniformizedRow);
+            return uniformizedRow[j];
         }
-        
-        if (n>=matPowerList.size()) {
-                
-            // Steady state of matrix iteration already reached
-            if ((symmetric && RsymPowSteady) || (!symmetric && RpowSteady)) {
-                //System.out.println("Assuming R SS.");
-                return matPowerList.get(matPowerList.size()-1);
-            }
-                
-            int startN = matPowerList.size();
-            for (int i=startN; i<=n; i++) {
-                matPowerList.add(matPowerList.get(i-1).mmul(mat));
-                
-                matPowerMax.maxi(matPowerList.get(i));
-                    
-                // Occasionally check whether matrix iteration has reached steady state
-                if (i%10 == 0) {
-                    double maxDiff = 0.0;
-                    for (double el : matPowerList.get(i).sub(matPowerList.get(i-1)).toArray())
-                        maxDiff = Math.max(maxDiff, Math.abs(el));
-                        
-                    if (!(maxDiff>0)) {
-                        if (symmetric)
-                            RsymPowSteady = true;
-                        else
-                            RpowSteady = true;
-                        
-                        return matPowerList.get(i);
-                    }
+
+        if (symmetric)
+            return QsymEigen.getTransitionProb(i, j, t);
+        else
+            return QEigen.getTransitionProb(i, j, t);
+    }
+
+    /**
+     * Obtain an immutable copy of the eigendecomposition used to compute
+     * transition probabilities, which may be used by several threads at
+     * once without further access to this model.
+     *
+     * @param symmetric true for symmetrized rate matrix
+     * @return snapshot, or null if transition probabilities are not
+     * computed from an eigendecomposition (sparse mode, or a decomposition
+     * that is unavailable or inaccurate)
+     */
+    public TransitionProbSnapshot getTransitionProbSnapshot(boolean symmetric) {
+        updateMatrices();
+        if (useSparseRateMatrix)
+            return null;
+
+        if (symmetric)
+            return QsymEigen.getSnapshot();
+        else
+            return QEigen.getSnapshot();
+    }
+
+    @Override
+    public void getTransitionProbs(int i, double t, boolean symmetric,
+            double[] probs) {
+        updateMatrices();
+        if (useSparseRateMatrix) {
+            computeUniformizedTransitionProbs(i, t, symmetric, probs);
+            return;
+        }
+
+        if (symmetric)
+            QsymEigen.getTransitionProbs(i, t, probs);
+        else
+            QEigen.getTransitionProbs(i, t, probs);
+    }
+
+    /**
+     * Compute row i of exp(Qt) by uniformization from the sparse
+     * uniformized matrix.
+     */
+    private void computeUniformizedTransitionProbs(int i, double t,
+            boolean symmetric, double[] probs) {
+        computeUniformizedTransitionProbs(symmetric ? RsymSparse : Rsparse,
+                symmetric ? muSym : mu, i, t, probs,
+                uniformizedVec, uniformizedVecNext);
+    }
+
+    /**
+     * Compute row i of exp(Qt) by uniformization, summing Poisson-weighted
+     * products of the unit vector e_i with successive powers of the sparse
+     * uniformized matrix R = I + Q/mu.  Each term takes time proportional
+     * to the number of active routes.
+     *
+     * All terms are non-negative, so small elements are obtained to full
+     * relative precision.  Summation continues until the set of reachable
+     * types stops growing and the remaining Poisson mass is negligible
+     * relative to the smallest non-zero element, so an element is only
+     * zero if its type cannot be reached from type i.
+     *
+     * @param Rs uniformized matrix
+     * @param mu uniformization rate
+     * @param i start type
+     * @param t time
+     * @param probs array in which to place the row
+     * @param v scratch vector of the same length
+     * @param vNext scratch vector of the same length
+     */
+    private static void computeUniformizedTransitionProbs(SparseRateMatrix Rs,
+            double mu, int i, double t, double[] probs,
+            double[] v, double[] vNext) {
+
+        int n = Rs.getDimension();
+        double muT = mu*t;
+
+        for (int j=0; j<n; j++) {
+            v[j] = j == i ? 1.0 : 0.0;
+            probs[j] = 0.0;
+        }
+
+        if (!(muT>0.0)) {
+            probs[i] = 1.0;
+            return;
+        }
+
+        // Poisson weights are computed in log space to avoid underflow
+        // for large muT:
+        double logMuT = Math.log(muT);
+        double logW = -muT;
+        double cumW = 0.0;
+        int nReached = 0;
+        for (int m=0; ; m++) {
+            double w = Math.exp(logW);
+            int prevReached = nReached;
+            nReached = 0;
+            double minProb = Double.POSITIVE_INFINITY;
+            for (int j=0; j<n; j++) {
+                probs[j] += w*v[j];
+                if (probs[j]>0.0 || v[j]>0.0) {
+                    nReached += 1;
+                    if (probs[j]>0.0)
+                        minProb = Math.min(minProb, probs[j]);
                 }
             }
+            cumW += w;
+
+            // Bound on the remaining Poisson mass once weights decrease:
+            double ratio = muT/(m+1);
+            if (nReached == prevReached && ratio<1.0
+                    && w*ratio/(1.0-ratio) < UNIFORMIZATION_TOL*minProb)
+                break;
+
+            Rs.multiplyLeft(v, 0, vNext, 0);
+
+            boolean changed = false;
+            for (int j=0; j<n && !changed; j++)
+                changed = vNext[j] != v[j];
+
+            if (!changed) {
+                // Remaining terms all involve the same vector:
+                double remaining = Math.max(0.0, 1.0-cumW);
+                for (int j=0; j<n; j++)
+                    probs[j] += remaining*v[j];
+                break;
+            }
+
+            double[] tmp = v;
+            v = vNext;
+            vNext = tmp;
+
+            logW += logMuT - Math.log(m+1);
         }
-        return matPowerList.get(n);
     }
 
     /**
@@ -459,17 +774,11 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
      */
     @Override
     public int RpowSteadyN(boolean symmetric) {
-        if (symmetric) {
-            if (RsymPowSteady)
-                return RsymPowN.size();
-            else
-                return -1;
-        } else {
-            if (RpowSteady)
-                return RpowN.size();
-            else
-                return -1;
-        }
+        updateMatrices();
+        if (symmetric)
+            return RsymPowCache.getSteadyN();
+        else
+            return RpowCache.getSteadyN();
     }
 
     /*
@@ -478,17 +787,492 @@ public class SCMigrationModel extends CalculationNode implements MigrationModel
     
     @Override
     protected boolean requiresRecalculation() {
-        // we only get here if something is dirty
-        dirty = true;
+        // we only get here if something is dirty, but population sizes
+        // only enter Q when forward migration rates are in use.
+        if (InputUtil.isDirty(rateMatrixInput)
+                || InputUtil.isDirty(rateMatrixScaleFactorInput)
+                || InputUtil.isDirty(rateMatrixFlagsInput)
+                || (useForwardMigrationRateMatrix
+                && (InputUtil.isDirty(popSizesInput)
+                || InputUtil.isDirty(popSizesScaleFactorInput))))
+            dirty = true;
+
+        tablesDirty = true;
+
         return true;
     }
 
+    @Override
+    protected void store() {
+        storedMu = mu;
+        storedMuSym = muSym;
+        storedQ = Q;
+        storedR = R;
+        storedQsym = Qsym;
+        storedRsym = Rsym;
+        storedQsparse = Qsparse;
+        storedRsparse = Rsparse;
+        storedQsymSparse = QsymSparse;
+        storedRsymSparse = RsymSparse;
+        storedDirty = dirty;
+        rebuiltSinceStore = false;
+
+        storedTablesDirty = tablesDirty;
+        tablesRebuiltSinceStore = false;
+
+        super.store();
+    }
+
     @Override
     protected void restore() {
-        dirty = true;
+        if (rebuiltSinceStore) {
+            swapCaches();
+            rebuiltSinceStore = false;
+        }
+
+        mu = storedMu;
+        muSym = storedMuSym;
+        Q = storedQ;
+        R = storedR;
+        Qsym = storedQsym;
+        Rsym = storedRsym;
+        Qsparse = storedQsparse;
+        Rsparse = storedRsparse;
+        QsymSparse = storedQsymSparse;
+        RsymSparse = storedRsymSparse;
+        dirty = storedDirty;
+
+        if (tablesRebuiltSinceStore) {
+            swapTables();
+            tablesRebuiltSinceStore = false;
+        }
+        tablesDirty = storedTablesDirty;
+
         super.restore();
     }
 
+    /**
+     * Exchange current and stored likelihood tables.
+     */
+    private void swapTables() {
+        double[] tmp = backwardRates;
+        backwardRates = storedBackwardRates;
+        storedBackwardRates = tmp;
+
+        tmp = logBackwardRates;
+        logBackwardRates = storedLogBackwardRates;
+        storedLogBackwardRates = tmp;
+
+        tmp = totalBackwardRates;
+        totalBackwardRates = storedTotalBackwardRates;
+        storedTotalBackwardRates = tmp;
+
+        tmp = invPopSizes;
+        invPopSizes = storedInvPopSizes;
+        storedInvPopSizes = tmp;
+
+        tmp = logInvPopSizes;
+        logInvPopSizes = storedLogInvPopSizes;
+        storedLogInvPopSizes = tmp;
+    }
+
+    /**
+     * Exchange current and spare cache objects.
+     */
+    private void swapCaches() {
+        MatrixPowerCache tmpPowCache = RpowCache;
+        RpowCache = spareRpowCache;
+        spareRpowCache = tmpPowCache;
+
+        tmpPowCache = RsymPowCache;
+        RsymPowCache = spareRsymPowCache;
+        spareRsymPowCache = tmpPowCache;
+
+        EigenDecomposition tmpEigen = QEigen;
+        QEigen = spareQEigen;
+        spareQEigen = tmpEigen;
+
+        tmpEigen = QsymEigen;
+        QsymEigen = spareQsymEigen;
+        spareQsymEigen = tmpEigen;
+    }
+
+    /**
+     * Eigendecomposition Q = V diag(lambda) V^-1 of a transition rate
+     * matrix, used to compute elements of P(t) = exp(Qt) in O(D) time
+     * without allocation.  Eigenvalues and eigenvectors of non-symmetric
+     * rate matrices may be complex, so real and imaginary parts are stored
+     * separately.  If the decomposition is unavailable or inaccurate (Q
+     * defective or V ill-conditioned), falls back to computing exp(Qt)
+     * directly, caching the result for the most recent t.
+     */
+    protected static class EigenDecomposition {
+
+        // Maximum tolerated error in reconstruction of Q, relative to the
+        // largest element of Q:
+        private static final double RECONSTRUCTION_TOL = 1e-10;
+
+        private final boolean symmetric;
+        private DoubleMatrix Q;
+        private boolean decomposed, useFallback;
+
+        private int n;
+        private double[] evalRe, evalIm;
+        private double[][] vRe, vIm, vInvRe, vInvIm;
+        private double[] expRe, expIm;
+
+        private double fallbackT = Double.NaN;
+        private DoubleMatrix fallbackP;
+
+        // Uniformized matrix used to recompute small elements, and
+        // scratch space:
+        private SparseRateMatrix R;
+        private double mu;
+        private double[] uniformizedRow, uniformizedVec, uniformizedVecNext;
+
+        private TransitionProbSnapshot snapshot;
+
+        public EigenDecomposition(boolean symmetric) {
+            this.symmetric = symmetric;
+        }
+
+        /**
+         * Set rate matrix to decompose.  Decomposition is deferred until
+         * the first transition probability is requested.
+         *
+         * @param Q transition rate matrix
+         * @param R uniformized matrix I + Q/mu
+         * @param mu uniformization rate
+         */
+        public void setMatrix(DoubleMatrix Q, SparseRateMatrix R, double mu) {
+            this.Q = Q;
+            this.R = R;
+            this.mu = mu;
+            decomposed = false;
+            fallbackT = Double.NaN;
+            snapshot = null;
+        }
+
+        /**
+         * @return immutable copy of decomposition, or null if the
+         * fallback is in use
+         */
+        public TransitionProbSnapshot getSnapshot() {
+            decompose();
+
+            if (useFallback)
+                return null;
+
+            if (snapshot == null)
+                snapshot = new TransitionProbSnapshot(n, evalRe, evalIm,
+                        vRe, vIm, vInvRe, vInvIm, R, mu);
+
+            return snapshot;
+        }
+
+        /**
+         * @param i start state
+         * @param j end state
+         * @param t time
+         * @return element (i,j) of exp(Qt)
+         */
+        public double getTransitionProb(int i, int j, double t) {
+            decompose();
+
+            if (useFallback)
+                return cleanProb(getFallbackP(t).get(i, j), i, j, t);
+
+            double p = 0.0;
+            for (int k=0; k<n; k++) {
+                double eRe = Math.exp(evalRe[k]*t);
+                if (evalIm[k] == 0.0) {
+                    p += eRe*(vRe[i][k]*vInvRe[k][j] - vIm[i][k]*vInvIm[k][j]);
+                } else {
+                    double eIm = eRe*Math.sin(evalIm[k]*t);
+                    eRe *= Math.cos(evalIm[k]*t);
+                    double wRe = vRe[i][k]*vInvRe[k][j] - vIm[i][k]*vInvIm[k][j];
+                    double wIm = vRe[i][k]*vInvIm[k][j] + vIm[i][k]*vInvRe[k][j];
+                    p += wRe*eRe - wIm*eIm;
+                }
+            }
+
+            return cleanProb(p, i, j, t);
+        }
+
+        /**
+         * Compute row i of exp(Qt).
+         *
+         * @param i start state
+         * @param t time
+         * @param probs array in which to place the D row elements
+         */
+        public void getTransitionProbs(int i, double t, double[] probs) {
+            decompose();
+
+            if (useFallback) {
+                DoubleMatrix P = getFallbackP(t);
+                for (int j=0; j<n; j++)
+                    probs[j] = P.get(i, j);
+                cleanProbs(probs, i, t);
+                return;
+            }
+
+            for (int k=0; k<n; k++) {
+                double eRe = Math.exp(evalRe[k]*t);
+                if (evalIm[k] == 0.0) {
+                    expRe[k] = eRe;
+                    expIm[k] = 0.0;
+                } else {
+                    expRe[k] = eRe*Math.cos(evalIm[k]*t);
+                    expIm[k] = eRe*Math.sin(evalIm[k]*t);
+                }
+            }
+
+            for (int j=0; j<n; j++) {
+                double p = 0.0;
+                for (int k=0; k<n; k++) {
+                    double wRe = vRe[i][k]*vInvRe[k][j] - vIm[i][k]*vInvIm[k][j];
+                    double wIm = vRe[i][k]*vInvIm[k][j] + vIm[i][k]*vInvRe[k][j];
+                    p += wRe*expRe[k] - wIm*expIm[k];
+                }
+                probs[j] = p;
+            }
+            cleanProbs(probs, i, t);
+        }
+
+        /**
+         * Replace an element of exp(Qt) too small to be trusted (including
+         * negative rounding noise) with its value computed by
+         * uniformization.
+         */
+        private double cleanProb(double p, int i, int j, double t) {
+            if (p >= SMALL_PROB_TOL)
+                return p;
+
+            computeUniformizedRow(i, t);
+            return uniformizedRow[j];
+        }
+
+        /**
+         * Replace elements of a row of exp(Qt) too small to be trusted with
+         * their values computed by uniformization.
+         */
+        private void cleanProbs(double[] probs, int i, double t) {
+            boolean computed = false;
+            for (int j=0; j<n; j++) {
+                if (probs[j] >= SMALL_PROB_TOL)
+                    continue;
+
+                if (!computed) {
+                    computeUniformizedRow(i, t);
+                    computed = true;
+                }
+                probs[j] = uniformizedRow[j];
+            }
+        }
+
+        private void computeUniformizedRow(int i, double t) {
+            if (uniformizedRow == null || uniformizedRow.length != n) {
+                uniformizedRow = new double[n];
+                uniformizedVec = new double[n];
+                uniformizedVecNext = new double[n];
+            }
+            computeUniformizedTransitionProbs(R, mu, i, t, uniformizedRow,
+                    uniformizedVec, uniformizedVecNext);
+        }
+
+        private DoubleMatrix getFallbackP(double t) {
+            if (t != fallbackT) {
+                fallbackP = MatrixFunctions.expm(Q.mul(t));
+                fallbackT = t;
+            }
+            return fallbackP;
+        }
+
+        /**
+         * Decompose Q if this has not been done since it was last set.
+         */
+        private void decompose() {
+            if (decomposed)
+                return;
+
+            decomposed = true;
+            useFallback = false;
+
+            n = Q.getRows();
+            if (evalRe == null || evalRe.length != n) {
+                evalRe = new double[n];
+                evalIm = new double[n];
+                vRe = new double[n][n];
+                vIm = new double[n][n];
+                vInvRe = new double[n][n];
+                vInvIm = new double[n][n];
+                expRe = new double[n];
+                expIm = new double[n];
+            }
+
+            try {
+                if (symmetric) {
+                    // Real eigensystem with orthogonal eigenvectors:
+                    DoubleMatrix[] eig = Eigen.symmetricEigenvectors(Q);
+                    for (int k=0; k<n; k++) {
+                        evalRe[k] = eig[1].get(k, k);
+                        evalIm[k] = 0.0;
+                        for (int i=0; i<n; i++) {
+                            vRe[i][k] = eig[0].get(i, k);
+                            vIm[i][k] = 0.0;
+                            vInvRe[k][i] = eig[0].get(i, k);
+                            vInvIm[k][i] = 0.0;
+                        }
+                    }
+                } else {
+                    ComplexDoubleMatrix[] eig = Eigen.eigenvectors(Q);
+                    DoubleMatrix Vre = eig[0].real();
+                    DoubleMatrix Vim = eig[0].imag();
+                    DoubleMatrix Lre = eig[1].real();
+                    DoubleMatrix Lim = eig[1].imag();
+
+                    // Invert V by solving the equivalent real system
+                    // [Vre -Vim; Vim Vre][Xre; Xim] = [I; 0]:
+                    DoubleMatrix A = new DoubleMatrix(2*n, 2*n);
+                    DoubleMatrix B = new DoubleMatrix(2*n, n);
+                    for (int i=0; i<n; i++) {
+                        for (int j=0; j<n; j++) {
+                            A.put(i, j, Vre.get(i, j));
+                            A.put(i, n+j, -Vim.get(i, j));
+                            A.put(n+i, j, Vim.get(i, j));
+                            A.put(n+i, n+j, Vre.get(i, j));
+                        }
+                        B.put(i, i, 1.0);
+                    }
+                    DoubleMatrix X = Solve.solve(A, B);
+
+                    for (int k=0; k<n; k++) {
+                        evalRe[k] = Lre.get(k, k);
+                        evalIm[k] = Lim.get(k, k);
+                        for (int i=0; i<n; i++) {
+                            vRe[i][k] = Vre.get(i, k);
+                            vIm[i][k] = Vim.get(i, k);
+                            vInvRe[k][i] = X.get(k, i);
+                            vInvIm[k][i] = X.get(n+k, i);
+                        }
+                    }
+                }
+            } catch (RuntimeException ex) {
+                useFallback = true;
+                return;
+            }
+
+            useFallback = !reconstructsQ();
+        }
+
+        /**
+         * @return true if V diag(lambda) V^-1 matches Q to within tolerance
+         */
+        private boolean reconstructsQ() {
+            double scale = 1.0;
+            for (int i=0; i<n; i++)
+                for (int j=0; j<n; j++)
+                    scale = Math.max(scale, Math.abs(Q.get(i, j)));
+
+            for (int i=0; i<n; i++) {
+                for (int j=0; j<n; j++) {
+                    double re = 0.0, im = 0.0;
+                    for (int k=0; k<n; k++) {
+                        // (V_ik lambda_k) * Vinv_kj
+                        double aRe = vRe[i][k]*evalRe[k] - vIm[i][k]*evalIm[k];
+                        double aIm = vRe[i][k]*evalIm[k] + vIm[i][k]*evalRe[k];
+                        re += aRe*vInvRe[k][j] - aIm*vInvIm[k][j];
+                        im += aRe*vInvIm[k][j] + aIm*vInvRe[k][j];
+                    }
+
+                    if (!(Math.abs(re - Q.get(i, j)) <= RECONSTRUCTION_TOL*scale)
+                            || !(Math.abs(im) <= RECONSTRUCTION_TOL*scale))
+                        return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    // Elements of exp(Qt) obtained from an eigendecomposition or from expm
+    // carry absolute rounding errors of around 1e-15, so values smaller
+    // than this (such as those of multi-jump paths on short branches) are
+    // recomputed by uniformization to retain their relative precision:
+    private static final double SMALL_PROB_TOL = 1e-8;
+
+    /**
+     * Immutable copy of an eigendecomposition Q = V diag(lambda) V^-1,
+     * holding the products V_ik*Vinv_kj for each (i,j,k), from which
+     * elements of exp(Qt) are computed exactly as by EigenDecomposition.
+     * The (immutable) uniformized matrix is kept to recompute small
+     * elements.
+     */
+    public static final class TransitionProbSnapshot {
+
+        private final int n;
+        private final double[] evalRe, evalIm;
+        private final double[] wRe, wIm;
+        private final SparseRateMatrix R;
+        private final double mu;
+
+        TransitionProbSnapshot(int n, double[] evalRe, double[] evalIm,
+                double[][] vRe, double[][] vIm,
+                double[][] vInvRe, double[][] vInvIm,
+                SparseRateMatrix R, double mu) {
+            this.n = n;
+            this.R = R;
+            this.mu = mu;
+            this.evalRe = Arrays.copyOf(evalRe, n);
+            this.evalIm = Arrays.copyOf(evalIm, n);
+
+            wRe = new double[n*n*n];
+            wIm = new double[n*n*n];
+            for (int i=0; i<n; i++) {
+                for (int j=0; j<n; j++) {
+                    for (int k=0; k<n; k++) {
+                        int idx = (i*n + j)*n + k;
+                        wRe[idx] = vRe[i][k]*vInvRe[k][j] - vIm[i][k]*vInvIm[k][j];
+                        wIm[idx] = vRe[i][k]*vInvIm[k][j] + vIm[i][k]*vInvRe[k][j];
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param i start state
+         * @param j end state
+         * @param t time
+         * @return element (i,j) of exp(Qt)
+         */
+        public double getTransitionProb(int i, int j, double t) {
+            int offset = (i*n + j)*n;
+
+            double p = 0.0;
+            for (int k=0; k<n; k++) {
+                double eRe = Math.exp(evalRe[k]*t);
+                if (evalIm[k] == 0.0) {
+                    p += eRe*wRe[offset + k];
+                } else {
+                    double eIm = eRe*Math.sin(evalIm[k]*t);
+                    eRe *= Math.cos(evalIm[k]*t);
+                    p += wRe[offset + k]*eRe - wIm[offset + k]*eIm;
+                }
+            }
+
+            if (p >= SMALL_PROB_TOL)
+                return p;
+
+            // Scratch space is allocated here so that snapshots may be
+            // shared between threads:
+            double[] row = new double[n];
+            computeUniformizedTransitionProbs(R, mu, i, t, row,
+                    new double[n], new double[n]);
+            return row[j];
+        }
+    }
+
     /**
      * Main for debugging.
      *
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import org.jblas.DoubleMatrix;
+
+/**
+ * Square matrix stored in compressed sparse row (CSR) form, used to hold
+ * rate matrices in which most off-diagonal elements are zero, as happens
+ * when BSSVS switches off most migration routes.  The diagonal element of
+ * every row is always stored (even if zero) so that uniformized matrices
+ * can be iterated over without special-casing the diagonal.
+ *
+ * Instances are immutable once built.
+ */
+public class SparseRateMatrix {
+
+    private final int n;
+    private final int[] rowStart;
+    private final int[] cols;
+    private final double[] values;
+    private final int[] diagIdx;
+
+    private SparseRateMatrix(int n, int[] rowStart, int[] cols,
+            double[] values, int[] diagIdx) {
+        this.n = n;
+        this.rowStart = rowStart;
+        this.cols = cols;
+        this.values = values;
+        this.diagIdx = diagIdx;
+    }
+
+    /**
+     * Build transition rate matrix from a row-major table of off-diagonal
+     * rates, such as SCMigrationModel.getBackwardRates().  Diagonal
+     * elements are set to minus the row sums.  Entries of the table on the
+     * diagonal are ignored.
+     *
+     * @param n matrix dimension
+     * @param rates row-major table of rates
+     * @return new sparse rate matrix
+     */
+    public static SparseRateMatrix fromRates(int n, double[] rates) {
+        int nnz = n;
+        for (int i=0; i<n; i++)
+            for (int j=0; j<n; j++)
+                if (i != j && rates[i*n+j] != 0.0)
+                    nnz += 1;
+
+        int[] rowStart = new int[n+1];
+        int[] cols = new int[nnz];
+        double[] values = new double[nnz];
+        int[] diagIdx = new int[n];
+
+        int k = 0;
+        for (int i=0; i<n; i++) {
+            rowStart[i] = k;
+            double rowSum = 0.0;
+            for (int j=0; j<n; j++) {
+                if (i == j) {
+                    diagIdx[i] = k;
+                    cols[k++] = i;
+                } else if (rates[i*n+j] != 0.0) {
+                    cols[k] = j;
+                    values[k++] = rates[i*n+j];
+                    rowSum += rates[i*n+j];
+                }
+            }
+            values[diagIdx[i]] = -rowSum;
+        }
+        rowStart[n] = k;
+
+        return new SparseRateMatrix(n, rowStart, cols, values, diagIdx);
+    }
+
+    /**
+     * Build the uniformized matrix I + Q/mu from this rate matrix Q.
+     *
+     * @param mu uniformization rate
+     * @return new sparse matrix with the same sparsity pattern
+     */
+    public SparseRateMatrix uniformize(double mu) {
+        double muInv = 1.0/mu;
+        double[] newValues = new double[values.length];
+        for (int k=0; k<values.length; k++)
+            newValues[k] = values[k]*muInv;
+        for (int i=0; i<n; i++)
+            newValues[diagIdx[i]] += 1.0;
+
+        return new SparseRateMatrix(n, rowStart, cols, newValues, diagIdx);
+    }
+
+    /**
+     * @return matrix dimension
+     */
+    public int getDimension() {
+        return n;
+    }
+
+    /**
+     * @return number of stored elements, including the diagonal
+     */
+    public int getNonZeroCount() {
+        return values.length;
+    }
+
+    /**
+     * @param i row
+     * @return index of first stored element of row i
+     */
+    public int getRowStart(int i) {
+        return rowStart[i];
+    }
+
+    /**
+     * @param i row
+     * @return index one past the last stored element of row i
+     */
+    public int getRowEnd(int i) {
+        return rowStart[i+1];
+    }
+
+    /**
+     * @param k stored element index
+     * @return column of stored element
+     */
+    public int getColumn(int k) {
+        return cols[k];
+    }
+
+    /**
+     * @param k stored element index
+     * @return value of stored element
+     */
+    public double getValue(int k) {
+        return values[k];
+    }
+
+    /**
+     * @param i row
+     * @return diagonal element (i,i)
+     */
+    public double getDiagonal(int i) {
+        return values[diagIdx[i]];
+    }
+
+    /**
+     * Obtain element (i,j).  Takes time proportional to the number of
+     * elements stored in row i.
+     *
+     * @param i row
+     * @param j column
+     * @return matrix element
+     */
+    public double get(int i, int j) {
+        for (int k=rowStart[i]; k<rowStart[i+1]; k++)
+            if (cols[k] == j)
+                return values[k];
+
+        return 0.0;
+    }
+
+    /**
+     * Compute the row vector product dest = src M.
+     *
+     * @param src source vector of length n
+     * @param srcOffset offset of vector in src
+     * @param dest destination vector of length n
+     * @param destOffset offset of vector in dest
+     */
+    public void multiplyLeft(double[] src, int srcOffset,
+            double[] dest, int destOffset) {
+        for (int j=0; j<n; j++)
+            dest[destOffset + j] = 0.0;
+
+        for (int l=0; l<n; l++) {
+            double s = src[srcOffset + l];
+            if (s == 0.0)
+                continue;
+
+            for (int k=rowStart[l]; k<rowStart[l+1]; k++)
+                dest[destOffset + cols[k]] += s*values[k];
+        }
+    }
+
+    /**
+     * @return dense copy of this matrix
+     */
+    public DoubleMatrix toDense() {
+        DoubleMatrix mat = new DoubleMatrix(n, n);
+        for (int i=0; i<n; i++)
+            for (int k=rowStart[i]; k<rowStart[i+1]; k++)
+                mat.put(i, cols[k], values[k]);
+
+        return mat;
+    }
+}
@@ -0,0 +1,696 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+
+import java.util.Arrays;
+
+/**
+ * Time-ordered index of the sampling, coalescence and migration events
+ * making up a multi-type tree, together with the number of lineages of
+ * each type present between consecutive events.
+ *
+ * Events are held in a treap (a randomised balanced search tree) ordered
+ * by time, with each treap node recording the size of its subtree and the
+ * net change in the number of lineages of each type over the events in
+ * that subtree.  The events are also linked in time order, so that
+ * consecutive events can be visited in constant time.
+ *
+ * The index is kept up to date by its tree: branches modified since the
+ * last update are marked stale, and on the next update their events are
+ * removed from the treap and reinserted at their new positions.
+ * Refreshing k events takes O(k log E) time (times the number of types,
+ * for the lineage count sums), while locating events by time or position
+ * and computing lineage counts takes O(log E) time.
+ *
+ * Events with equal times are ordered by node number and then by position
+ * along the branch, with the node event preceding the type changes above
+ * it.
+ */
+public class TreeEventIndex {
+
+    // Event kinds:
+    public static final byte SAMPLE = 0, COALESCE = 1, MIGRATE = 2;
+
+    private static final int NIL = -1;
+
+    private final MultiTypeTree mtTree;
+
+    // Events, indexed by slot:
+    private int capacity;
+    private double[] times;
+    private byte[] kinds;
+    private int[] types, destTypes, nodeNrs, changeIdx;
+
+    // Treap structure, subtree sizes and time-ordered links:
+    private int[] priorities, left, right, sizes, prev, next;
+    private int root, head, nEvents;
+
+    // Net change in lineage counts over each subtree, nTypes per slot:
+    private int nTypes;
+    private int[] deltaSums;
+
+    // Slots holding the events of each branch, chained through branchNext:
+    private final int[] branchHead;
+    private int[] branchNext;
+
+    private int[] freeSlots;
+    private int nFree;
+
+    // Most recently accessed position, making sequential access cheap:
+    private int cursorPos, cursorSlot;
+
+    // Results of split():
+    private int splitLeft, splitRight;
+
+    // State of generator used for treap priorities.  Kept separate from
+    // Randomizer so that maintaining the index does not perturb the
+    // random number sequence seen by the rest of the analysis:
+    private int priorityState = 0x2545F491;
+
+    // Numbers of nodes whose events need to be refreshed:
+    private final boolean[] stale;
+    private final int[] staleNrs;
+    private int nStale;
+    private boolean allStale;
+
+    /**
+     * Construct index for given tree.  The index is populated on the first
+     * call to update().
+     *
+     * @param mtTree tree to index
+     */
+    TreeEventIndex(MultiTypeTree mtTree) {
+        this.mtTree = mtTree;
+
+        int nNodes = mtTree.getNodeCount();
+        stale = new boolean[nNodes];
+        staleNrs = new int[nNodes];
+        nStale = 0;
+        allStale = true;
+
+        branchHead = new int[nNodes];
+        Arrays.fill(branchHead, NIL);
+
+        nTypes = 1;
+        capacity = 0;
+        nFree = 0;
+        allocateSlots(2*nNodes);
+
+        root = NIL;
+        head = NIL;
+        nEvents = 0;
+        cursorSlot = NIL;
+    }
+
+    /**
+     * Increase number of event slots, adding the new slots to the free
+     * list.
+     *
+     * @param newCapacity new number of slots
+     */
+    private void allocateSlots(int newCapacity) {
+        times = Arrays.copyOf(times == null ? new double[0] : times, newCapacity);
+        kinds = Arrays.copyOf(kinds == null ? new byte[0] : kinds, newCapacity);
+        types = Arrays.copyOf(types == null ? new int[0] : types, newCapacity);
+        destTypes = Arrays.copyOf(destTypes == null ? new int[0] : destTypes, newCapacity);
+        nodeNrs = Arrays.copyOf(nodeNrs == null ? new int[0] : nodeNrs, newCapacity);
+        changeIdx = Arrays.copyOf(changeIdx == null ? new int[0] : changeIdx, newCapacity);
+
+        priorities = Arrays.copyOf(priorities == null ? new int[0] : priorities, newCapacity);
+        left = Arrays.copyOf(left == null ? new int[0] : left, newCapacity);
+        right = Arrays.copyOf(right == null ? new int[0] : right, newCapacity);
+        sizes = Arrays.copyOf(sizes == null ? new int[0] : sizes, newCapacity);
+        prev = Arrays.copyOf(prev == null ? new int[0] : prev, newCapacity);
+        next = Arrays.copyOf(next == null ? new int[0] : next, newCapacity);
+        branchNext = Arrays.copyOf(branchNext == null ? new int[0] : branchNext, newCapacity);
+        deltaSums = Arrays.copyOf(deltaSums == null ? new int[0] : deltaSums, newCapacity*nTypes);
+
+        freeSlots = Arrays.copyOf(freeSlots == null ? new int[0] : freeSlots, newCapacity);
+        for (int s=newCapacity-1; s>=capacity; s--)
+            freeSlots[nFree++] = s;
+
+        capacity = newCapacity;
+    }
+
+    private int allocateSlot() {
+        if (nFree == 0)
+            allocateSlots(2*capacity);
+
+        return freeSlots[--nFree];
+    }
+
+    /**
+     * Mark the events on the branch above a node as requiring refreshing.
+     *
+     * @param nr node number
+     */
+    void markStale(int nr) {
+        if (!allStale && !stale[nr]) {
+            stale[nr] = true;
+            staleNrs[nStale++] = nr;
+        }
+    }
+
+    /**
+     * Mark the events of every branch as requiring refreshing.
+     */
+    void markAllStale() {
+        clearStale();
+        allStale = true;
+    }
+
+    private void clearStale() {
+        for (int i=0; i<nStale; i++)
+            stale[staleNrs[i]] = false;
+
+        nStale = 0;
+    }
+
+    /**
+     * Bring index up to date with the tree.  Branches of nodes currently
+     * flagged as dirty or with modified types are refreshed along with
+     * those explicitly marked stale.
+     */
+    void update() {
+        Node[] nodes = mtTree.getNodesAsArray();
+
+        if (allStale) {
+            clear();
+            for (Node node : nodes) {
+                stale[node.getNr()] = true;
+                staleNrs[nStale++] = node.getNr();
+            }
+            allStale = false;
+        } else {
+            for (Node node : nodes) {
+                if (((MultiTypeNode)node).isModified())
+                    markStale(node.getNr());
+            }
+        }
+
+        if (nStale == 0)
+            return;
+
+        cursorSlot = NIL;
+
+        for (int i=0; i<nStale; i++)
+            removeBranchEvents(staleNrs[i]);
+
+        for (int i=0; i<nStale; i++)
+            insertBranchEvents((MultiTypeNode)nodes[staleNrs[i]]);
+
+        clearStale();
+    }
+
+    /**
+     * Remove all events from the index.
+     */
+    private void clear() {
+        Arrays.fill(branchHead, NIL);
+        nFree = 0;
+        for (int s=capacity-1; s>=0; s--)
+            freeSlots[nFree++] = s;
+
+        root = NIL;
+        head = NIL;
+        nEvents = 0;
+        cursorSlot = NIL;
+    }
+
+    /**
+     * Remove indexed events of the branch above the given node.
+     *
+     * @param nr node number
+     */
+    private void removeBranchEvents(int nr) {
+        for (int s=branchHead[nr]; s!=NIL; s=branchNext[s]) {
+            root = remove(root, s);
+
+            if (prev[s] != NIL)
+                next[prev[s]] = next[s];
+            else
+                head = next[s];
+            if (next[s] != NIL)
+                prev[next[s]] = prev[s];
+
+            freeSlots[nFree++] = s;
+            nEvents -= 1;
+        }
+
+        branchHead[nr] = NIL;
+    }
+
+    /**
+     * Insert events of the branch above the given node.
+     *
+     * @param node node
+     */
+    private void insertBranchEvents(MultiTypeNode node) {
+        int count = node.getChangeCount();
+        int[] changeTypes = node.getChangeTypesArray();
+        double[] changeTimes = node.getChangeTimesArray();
+        int offset = node.getChangeArrayOffset();
+
+        int maxType = node.getNodeType();
+        for (int i=0; i<count; i++)
+            maxType = Math.max(maxType, changeTypes[offset+i]);
+        if (maxType>=nTypes)
+            setTypeCount(maxType+1);
+
+        int s = allocateSlot();
+        times[s] = node.getHeight();
+        kinds[s] = node.isLeaf() ? SAMPLE : COALESCE;
+        types[s] = node.getNodeType();
+        destTypes[s] = node.getNodeType();
+        nodeNrs[s] = node.getNr();
+        changeIdx[s] = -1;
+        branchNext[s] = NIL;
+        branchHead[node.getNr()] = s;
+        insertSlot(s);
+
+        int prevType = node.getNodeType();
+        int last = s;
+        for (int i=0; i<count; i++) {
+            s = allocateSlot();
+            times[s] = changeTimes[offset+i];
+            kinds[s] = MIGRATE;
+            types[s] = prevType;
+            destTypes[s] = changeTypes[offset+i];
+            nodeNrs[s] = node.getNr();
+            changeIdx[s] = i;
+            branchNext[s] = NIL;
+            branchNext[last] = s;
+            insertSlot(s);
+
+            prevType = changeTypes[offset+i];
+            last = s;
+        }
+    }
+
+    /**
+     * Increase number of types for which lineage counts are maintained,
+     * recomputing the subtree sums of the events already indexed.
+     *
+     * @param newNTypes new number of types
+     */
+    private void setTypeCount(int newNTypes) {
+        nTypes = newNTypes;
+        deltaSums = new int[capacity*nTypes];
+        recomputeSubtree(root);
+    }
+
+    private void recomputeSubtree(int t) {
+        if (t == NIL)
+            return;
+
+        recomputeSubtree(left[t]);
+        recomputeSubtree(right[t]);
+        pull(t);
+    }
+
+    /**
+     * @return priority for a newly inserted treap node
+     */
+    private int nextPriority() {
+        priorityState ^= priorityState << 13;
+        priorityState ^= priorityState >>> 17;
+        priorityState ^= priorityState << 5;
+        return priorityState;
+    }
+
+    /**
+     * @return true if event in slot a precedes event in slot b
+     */
+    private boolean precedes(int a, int b) {
+        if (times[a] != times[b])
+            return times[a] < times[b];
+        if (nodeNrs[a] != nodeNrs[b])
+            return nodeNrs[a] < nodeNrs[b];
+        return changeIdx[a] < changeIdx[b];
+    }
+
+    /**
+     * Recompute size and lineage count changes of subtree rooted at t from
+     * those of its children.
+     */
+    private void pull(int t) {
+        int l = left[t], r = right[t];
+        int row = t*nTypes;
+
+        sizes[t] = 1;
+        if (l != NIL)
+            sizes[t] += sizes[l];
+        if (r != NIL)
+            sizes[t] += sizes[r];
+
+        for (int c=0; c<nTypes; c++) {
+            int sum = 0;
+            if (l != NIL)
+                sum += deltaSums[l*nTypes + c];
+            if (r != NIL)
+                sum += deltaSums[r*nTypes + c];
+            deltaSums[row + c] = sum;
+        }
+
+        switch (kinds[t]) {
+            case SAMPLE:
+                deltaSums[row + types[t]] += 1;
+                break;
+
+            case COALESCE:
+                deltaSums[row + types[t]] -= 1;
+                break;
+
+            case MIGRATE:
+                deltaSums[row + types[t]] -= 1;
+                deltaSums[row + destTypes[t]] += 1;
+                break;
+        }
+    }
+
+    /**
+     * Add event in slot s to the treap and to the time-ordered links.
+     */
+    private void insertSlot(int s) {
+        int pred = NIL;
+        for (int t=root; t!=NIL; ) {
+            if (precedes(t, s)) {
+                pred = t;
+                t = right[t];
+            } else
+                t = left[t];
+        }
+
+        int succ = pred == NIL ? head : next[pred];
+        prev[s] = pred;
+        next[s] = succ;
+        if (pred == NIL)
+            head = s;
+        else
+            next[pred] = s;
+        if (succ != NIL)
+            prev[succ] = s;
+
+        left[s] = NIL;
+        right[s] = NIL;
+        priorities[s] = nextPriority();
+        pull(s);
+
+        root = insert(root, s);
+        nEvents += 1;
+    }
+
+    private int insert(int t, int s) {
+        if (t == NIL)
+            return s;
+
+        if (priorities[s] > priorities[t]) {
+            split(t, s);
+            left[s] = splitLeft;
+            right[s] = splitRight;
+            pull(s);
+            return s;
+        }
+
+        if (precedes(s, t))
+            left[t] = insert(left[t], s);
+        else
+            right[t] = insert(right[t], s);
+        pull(t);
+
+        return t;
+    }
+
+    /**
+     * Split subtree rooted at t into the events preceding that in slot s
+     * (splitLeft) and the remainder (splitRight).
+     */
+    private void split(int t, int s) {
+        if (t == NIL) {
+            splitLeft = NIL;
+            splitRight = NIL;
+            return;
+        }
+
+        if (precedes(t, s)) {
+            split(right[t], s);
+            right[t] = splitLeft;
+            pull(t);
+            splitLeft = t;
+        } else {
+            split(left[t], s);
+            left[t] = splitRight;
+            pull(t);
+            splitRight = t;
+        }
+    }
+
+    private int remove(int t, int s) {
+        if (t == s)
+            return merge(left[t], right[t]);
+
+        if (precedes(s, t))
+            left[t] = remove(left[t], s);
+        else
+            right[t] = remove(right[t], s);
+        pull(t);
+
+        return t;
+    }
+
+    /**
+     * Merge subtrees a and b, where every event of a precedes those of b.
+     */
+    private int merge(int a, int b) {
+        if (a == NIL)
+            return b;
+        if (b == NIL)
+            return a;
+
+        if (priorities[a] > priorities[b]) {
+            right[a] = merge(right[a], b);
+            pull(a);
+            return a;
+        } else {
+            left[b] = merge(a, left[b]);
+            pull(b);
+            return b;
+        }
+    }
+
+    /**
+     * @param i event index
+     * @return slot holding event
+     */
+    private int slotAt(int i) {
+        if (cursorSlot != NIL) {
+            if (i == cursorPos)
+                return cursorSlot;
+
+            if (i == cursorPos+1 && next[cursorSlot] != NIL) {
+                cursorPos = i;
+                cursorSlot = next[cursorSlot];
+                return cursorSlot;
+            }
+
+            if (i == cursorPos-1 && prev[cursorSlot] != NIL) {
+                cursorPos = i;
+                cursorSlot = prev[cursorSlot];
+                return cursorSlot;
+            }
+        }
+
+        if (i<0 || i>=nEvents)
+            throw new IndexOutOfBoundsException("Event index " + i
+                    + " out of range (event count " + nEvents + ")");
+
+        int t = root, rank = i;
+        while (true) {
+            int leftSize = left[t] == NIL ? 0 : sizes[left[t]];
+            if (rank<leftSize)
+                t = left[t];
+            else if (rank == leftSize)
+                break;
+            else {
+                rank -= leftSize + 1;
+                t = right[t];
+            }
+        }
+
+        cursorPos = i;
+        cursorSlot = t;
+        return t;
+    }
+
+    /**
+     * @return number of events on tree
+     */
+    public int getEventCount() {
+        return nEvents;
+    }
+
+    /**
+     * @param i event index
+     * @return time of event
+     */
+    public double getEventTime(int i) {
+        return times[slotAt(i)];
+    }
+
+    /**
+     * @param i event index
+     * @return kind of event (SAMPLE, COALESCE or MIGRATE)
+     */
+    public byte getEventKind(int i) {
+        return kinds[slotAt(i)];
+    }
+
+    /**
+     * @param i event index
+     * @return type of node for sampling and coalescence events, source
+     * (lower) type for migration events
+     */
+    public int getEventType(int i) {
+        return types[slotAt(i)];
+    }
+
+    /**
+     * @param i event index
+     * @return destination (upper) type for migration events, type of node
+     * otherwise
+     */
+    public int getEventDestType(int i) {
+        return destTypes[slotAt(i)];
+    }
+
+    /**
+     * @param i event index
+     * @return number of node on whose branch event lies
+     */
+    public int getEventNodeNr(int i) {
+        return nodeNrs[slotAt(i)];
+    }
+
+    /**
+     * @param i event index
+     * @return index of type change on branch, or -1 for node events
+     */
+    public int getEventChangeIndex(int i) {
+        return changeIdx[slotAt(i)];
+    }
+
+    /**
+     * @param t time
+     * @return index of first event with time not less than t, or the
+     * number of events if there is none
+     */
+    public int getFirstEventAtOrAfter(double t) {
+        int count = 0;
+        for (int s=root; s!=NIL; ) {
+            if (times[s]<t) {
+                count += 1 + (left[s] == NIL ? 0 : sizes[left[s]]);
+                s = right[s];
+            } else
+                s = left[s];
+        }
+
+        return count;
+    }
+
+    /**
+     * @param t time
+     * @return index of first event with time greater than t, or the number
+     * of events if there is none
+     */
+    public int getFirstEventAfter(double t) {
+        int count = 0;
+        for (int s=root; s!=NIL; ) {
+            if (times[s]<=t) {
+                count += 1 + (left[s] == NIL ? 0 : sizes[left[s]]);
+                s = right[s];
+            } else
+                s = left[s];
+        }
+
+        return count;
+    }
+
+    /**
+     * @param i event index, or -1 to refer to the time before any event
+     * @param type lineage type
+     * @return number of lineages of the given type present immediately
+     * after event i
+     */
+    public int getLineageCountAfter(int i, int type) {
+        if (i<0 || type>=nTypes)
+            return 0;
+
+        // Sum lineage count changes over events 0..i:
+        int count = 0;
+        int t = root, rank = i;
+        while (t != NIL) {
+            int l = left[t];
+            int leftSize = l == NIL ? 0 : sizes[l];
+            if (rank<leftSize) {
+                t = l;
+                continue;
+            }
+
+            if (l != NIL)
+                count += deltaSums[l*nTypes + type];
+
+            switch (kinds[t]) {
+                case SAMPLE:
+                    if (types[t] == type)
+                        count += 1;
+                    break;
+
+                case COALESCE:
+                    if (types[t] == type)
+                        count -= 1;
+                    break;
+
+                case MIGRATE:
+                    if (types[t] == type)
+                        count -= 1;
+                    if (destTypes[t] == type)
+                        count += 1;
+                    break;
+            }
+
+            if (rank == leftSize)
+                break;
+
+            rank -= leftSize + 1;
+            t = right[t];
+        }
+
+        return count;
+    }
+
+    /**
+     * @param t time
+     * @param type lineage type
+     * @return number of lineages of the given type present immediately
+     * above time t
+     */
+    public int getLineageCount(double t, int type) {
+        return getLineageCountAfter(getFirstEventAfter(t)-1, type);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+/**
+ * Shared storage for the type changes on every branch of a multi-type
+ * tree.  Change types and times of all nodes live in a single pair of
+ * primitive buffers, with each node owning a contiguous region identified
+ * by its offset and capacity.  Nodes whose changes outgrow their region
+ * are moved to the end of the buffer, leaving the old region unused; once
+ * the buffer is full the live regions are packed together again (in
+ * node number order), growing the buffer only if necessary.
+ *
+ * Node i of the tree occupies slot i of the arena, which allows the whole
+ * arena to be copied to that of the stored nodes with a few array copies.
+ */
+class TypeChangeArena {
+
+    private static final int INITIAL_NODE_CAPACITY = 4;
+
+    private final MultiTypeNode[] nodes;
+
+    private int[] types;
+    private double[] times;
+
+    // First unused buffer element and total size of abandoned regions:
+    private int top, garbage;
+
+    /**
+     * Construct arena holding the type changes of the given nodes, which
+     * must be indexed by node number.  Existing changes are moved into
+     * the arena.
+     *
+     * @param nodes tree nodes
+     */
+    TypeChangeArena(MultiTypeNode[] nodes) {
+        this.nodes = nodes;
+
+        int size = 0;
+        for (MultiTypeNode node : nodes)
+            size += Math.max(INITIAL_NODE_CAPACITY, node.nTypeChanges);
+
+        types = new int[size];
+        times = new double[size];
+        top = 0;
+        garbage = 0;
+
+        for (MultiTypeNode node : nodes) {
+            int capacity = Math.max(INITIAL_NODE_CAPACITY, node.nTypeChanges);
+            System.arraycopy(node.changeTypes, node.changeOffset, types, top, node.nTypeChanges);
+            System.arraycopy(node.changeTimes, node.changeOffset, times, top, node.nTypeChanges);
+            node.attachToArena(this, types, times, top, capacity);
+            top += capacity;
+        }
+    }
+
+    /**
+     * Move the changes of a node to a new region of at least the given
+     * capacity.
+     *
+     * @param node node to move
+     * @param capacity required capacity
+     */
+    void relocate(MultiTypeNode node, int capacity) {
+        if (top + capacity > types.length)
+            repack(capacity);
+
+        System.arraycopy(types, node.changeOffset, types, top, node.nTypeChanges);
+        System.arraycopy(times, node.changeOffset, times, top, node.nTypeChanges);
+        garbage += node.changeCapacity;
+        node.attachToArena(this, types, times, top, capacity);
+        top += capacity;
+    }
+
+    /**
+     * Pack live regions together in node number order, leaving room for
+     * at least minFree further elements.
+     *
+     * @param minFree number of elements required after packing
+     */
+    private void repack(int minFree) {
+        int live = top - garbage;
+        int length = types.length;
+        if (live + minFree > length/2)
+            length = 2*(live + minFree);
+
+        int[] newTypes = new int[length];
+        double[] newTimes = new double[length];
+
+        int newTop = 0;
+        for (MultiTypeNode node : nodes) {
+            System.arraycopy(types, node.changeOffset, newTypes, newTop, node.nTypeChanges);
+            System.arraycopy(times, node.changeOffset, newTimes, newTop, node.nTypeChanges);
+            node.attachToArena(this, newTypes, newTimes, newTop, node.changeCapacity);
+            newTop += node.changeCapacity;
+        }
+
+        types = newTypes;
+        times = newTimes;
+        top = newTop;
+        garbage = 0;
+    }
+
+    /**
+     * Make the contents of this arena identical to those of another arena
+     * whose nodes have the same numbers.  Region layout is copied along
+     * with the changes, so this requires only a few array copies.
+     *
+     * @param other arena to copy
+     */
+    void assignFrom(TypeChangeArena other) {
+        if (types.length < other.top) {
+            types = new int[other.types.length];
+            times = new double[other.types.length];
+        }
+
+        System.arraycopy(other.types, 0, types, 0, other.top);
+        System.arraycopy(other.times, 0, times, 0, other.top);
+        top = other.top;
+        garbage = other.garbage;
+
+        for (int i=0; i<nodes.length; i++) {
+            MultiTypeNode src = other.nodes[i];
+            nodes[i].nTypeChanges = src.nTypeChanges;
+            nodes[i].attachToArena(this, types, times,
+                    src.changeOffset, src.changeCapacity);
+        }
+    }
+
+    /**
+     * @return total number of changes stored in arena
+     */
+    int getTotalChangeCount() {
+        int count = 0;
+        for (MultiTypeNode node : nodes)
+            count += node.nTypeChanges;
+
+        return count;
+    }
+
+    /**
+     * @return fraction of used buffer occupied by abandoned regions
+     */
+    double getFragmentation() {
+        return top>0 ? garbage/(double)top : 0.0;
+    }
+
+    /**
+     * @return number of buffer elements allocated
+     */
+    int getBufferLength() {
+        return types.length;
+    }
+}
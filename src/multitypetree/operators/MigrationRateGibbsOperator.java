@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.SCMigrationModel;
+
+/**
+ * Gibbs operator for the backward-time migration rates of the structured
+ * coalescent.
+ *
+ * Given the typed tree, the likelihood depends on the rate m_ij only
+ * through the number of migrations M_ij from i to j and the total lineage
+ * time L_i spent in deme i: m_ij^M_ij exp(-m_ij L_i).  With a gamma prior on
+ * each rate, the full conditional of each rate is therefore gamma.  Rates
+ * switched off by the BSSVS indicators do not enter the likelihood and are
+ * drawn from the prior.
+ */
+@Description("Samples structured coalescent backward migration rates "
+        + "directly from their full conditional distributions given the "
+        + "typed tree.  Assumes independent gamma priors on the rates.")
+public class MigrationRateGibbsOperator extends Operator {
+
+    public Input<StructuredCoalescentTreeDensity> densityInput = new Input<>(
+            "structuredCoalescentDensity",
+            "Structured coalescent density whose migration model rates are "
+            + "to be sampled.",
+            Validate.REQUIRED);
+
+    public Input<Double> priorShapeInput = new Input<>("priorShape",
+            "Shape parameter (alpha) of gamma prior on each migration rate.",
+            Validate.REQUIRED);
+
+    public Input<Double> priorScaleInput = new Input<>("priorScale",
+            "Scale parameter (beta) of gamma prior on each migration rate.",
+            Validate.REQUIRED);
+
+    protected StructuredCoalescentTreeDensity density;
+    protected SCMigrationModel migModel;
+    protected RealParameter rateMatrix;
+    protected double priorShape, priorScale;
+
+    @Override
+    public void initAndValidate() {
+        density = densityInput.get();
+        migModel = density.migrationModelInput.get();
+        priorShape = priorShapeInput.get();
+        priorScale = priorScaleInput.get();
+
+        if (!(migModel.rateMatrixInput.get() instanceof RealParameter))
+            throw new IllegalArgumentException("MigrationRateGibbsOperator "
+                    + "requires the rate matrix to be a RealParameter.");
+        rateMatrix = (RealParameter)migModel.rateMatrixInput.get();
+
+        if (migModel.useForwardMigrationRatesInput.get())
+            throw new IllegalArgumentException("MigrationRateGibbsOperator "
+                    + "cannot be used with forward migration rates.");
+    }
+
+    @Override
+    public double proposal() {
+
+        density.refreshSufficientStatistics();
+
+        double scaleFactor = migModel.getRateScaleFactor();
+        int nTypes = migModel.getNTypes();
+        for (int i=0; i<nTypes; i++) {
+            for (int j=0; j<nTypes; j++) {
+                if (i==j)
+                    continue;
+
+                int offset = migModel.getArrayOffset(i, j);
+
+                // Elements of symmetric rate matrices are shared by both
+                // directions and are updated only once.
+                boolean symmetric = offset == migModel.getArrayOffset(j, i);
+                if (symmetric && j<i)
+                    continue;
+
+                // Randomizer.nextGamma() takes the shape and rate parameters.
+                double shape = priorShape;
+                double rate = 1.0/priorScale;
+                if (migModel.getRateFlag(i, j)) {
+                    shape += density.getMigrationCount(i, j);
+                    rate += scaleFactor*density.getLineageTime(i);
+
+                    if (symmetric) {
+                        shape += density.getMigrationCount(j, i);
+                        rate += scaleFactor*density.getLineageTime(j);
+                    }
+                }
+
+                double newRate = Randomizer.nextGamma(shape, rate);
+                if (newRate<rateMatrix.getLower() || newRate>rateMatrix.getUpper())
+                    return Double.NEGATIVE_INFINITY;
+
+                rateMatrix.setValue(offset, newRate);
+            }
+        }
+
+        // Gibbs move: always accepted.
+        return Double.POSITIVE_INFINITY;
+    }
+}
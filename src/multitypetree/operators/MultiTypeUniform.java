@@ -19,7 +19,6 @@ package multitypetree.operators;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.tree.Node;
 import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
@@ -56,16 +55,9 @@ public class MultiTypeUniform extends MultiTypeTreeOperator {
                 return Double.NEGATIVE_INFINITY;
         } else {
             event -= mtTree.getInternalNodeCount();
-            for (Node thisNode : mtTree.getNodesAsArray()) {
-                if (thisNode.isRoot())
-                    continue;                
-                if (event<((MultiTypeNode)thisNode).getChangeCount()) {
-                    node = (MultiTypeNode)thisNode;
-                    changeIdx = event;
-                    break;
-                }
-                event -= ((MultiTypeNode)thisNode).getChangeCount();
-            }
+            int nr = mtTree.getChangeNodeNr(event);
+            node = (MultiTypeNode)mtTree.getNode(nr);
+            changeIdx = event - mtTree.getChangeCountBefore(nr);
         }
         
         if (node == null)
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.SCMigrationModel;
+
+/**
+ * Gibbs operator for the deme population sizes of the structured coalescent.
+ *
+ * Given the typed tree, the likelihood depends on the inverse of each
+ * population size 1/N_c only through the number of coalescences C_c and
+ * the lineage pair time P_c in that deme: (1/N_c)^C_c exp(-P_c/N_c).  With
+ * an inverse gamma prior on each (relative) population size, the full
+ * conditional of its inverse is therefore gamma.
+ */
+@Description("Samples structured coalescent population sizes directly from "
+        + "their full conditional distributions given the typed tree.  "
+        + "Assumes independent inverse gamma priors on the population sizes.")
+public class PopSizeGibbsOperator extends Operator {
+
+    public Input<StructuredCoalescentTreeDensity> densityInput = new Input<>(
+            "structuredCoalescentDensity",
+            "Structured coalescent density whose migration model population "
+            + "sizes are to be sampled.",
+            Validate.REQUIRED);
+
+    public Input<Double> priorShapeInput = new Input<>("priorShape",
+            "Shape parameter (alpha) of inverse gamma prior on each "
+            + "population size.",
+            Validate.REQUIRED);
+
+    public Input<Double> priorScaleInput = new Input<>("priorScale",
+            "Scale parameter (beta) of inverse gamma prior on each "
+            + "population size.",
+            Validate.REQUIRED);
+
+    protected StructuredCoalescentTreeDensity density;
+    protected SCMigrationModel migModel;
+    protected RealParameter popSizes;
+    protected double priorShape, priorScale;
+
+    @Override
+    public void initAndValidate() {
+        density = densityInput.get();
+        migModel = density.migrationModelInput.get();
+        priorShape = priorShapeInput.get();
+        priorScale = priorScaleInput.get();
+
+        if (!(migModel.popSizesInput.get() instanceof RealParameter))
+            throw new IllegalArgumentException("PopSizeGibbsOperator "
+                    + "requires the population sizes to be a RealParameter.");
+        popSizes = (RealParameter)migModel.popSizesInput.get();
+
+        if (migModel.useForwardMigrationRatesInput.get())
+            throw new IllegalArgumentException("PopSizeGibbsOperator cannot "
+                    + "be used with forward migration rates, as the backward "
+                    + "rates then depend on the population sizes.");
+
+        if (popSizes.getDimension() != migModel.getNTypes())
+            throw new IllegalArgumentException("PopSizeGibbsOperator "
+                    + "requires one population size per deme.");
+    }
+
+    @Override
+    public double proposal() {
+
+        density.refreshSufficientStatistics();
+
+        double scaleFactor = migModel.getPopSizeScaleFactor();
+        for (int c=0; c<popSizes.getDimension(); c++) {
+
+            // Randomizer.nextGamma() takes the shape and rate parameters.
+            double invPopSize = Randomizer.nextGamma(
+                    priorShape + density.getCoalescenceCount(c),
+                    priorScale + density.getLineagePairTime(c)/scaleFactor);
+
+            double newPopSize = 1.0/invPopSize;
+            if (newPopSize<popSizes.getLower() || newPopSize>popSizes.getUpper())
+                return Double.NEGATIVE_INFINITY;
+
+            popSizes.setValue(c, newPopSize);
+        }
+
+        // Gibbs move: always accepted.
+        return Double.POSITIVE_INFINITY;
+    }
+}
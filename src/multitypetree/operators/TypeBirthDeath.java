@@ -17,7 +17,6 @@
 package multitypetree.operators;
 
 import beast.base.core.Description;
-import beast.base.evolution.tree.Node;
 import beast.base.util.Randomizer;
 import multitypetree.evolution.tree.MultiTypeNode;
 
@@ -58,18 +57,9 @@ public class TypeBirthDeath extends MultiTypeTreeOperator {
         
         else {
             event -= mtTree.getInternalNodeCount()-1;
-            for (Node thisNode : mtTree.getNodesAsArray()) {
-                if (thisNode.isRoot())
-                    continue;
-                
-                if (event < ((MultiTypeNode)thisNode).getChangeCount()) {
-                    node = (MultiTypeNode)thisNode;
-                    changeIdx = event;
-                    break;
-                }
-                
-                event -= ((MultiTypeNode)thisNode).getChangeCount();
-            }
+            int nr = mtTree.getChangeNodeNr(event);
+            node = (MultiTypeNode)mtTree.getNode(nr);
+            changeIdx = event - mtTree.getChangeCountBefore(nr);
         }
 
         // Perform either birth or death move
@@ -25,10 +25,10 @@ import multitypetree.evolution.tree.MigrationModel;
 import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
 import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.SparseRateMatrix;
 
 import java.io.PrintStream;
 import java.util.Arrays;
-import org.jblas.MatrixFunctions;
 
 /**
  * Abstract class of operators on MultiTypeTrees which use the Fearnhead-Sherlock
@@ -83,7 +83,7 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
         
         do {
             //double offset = acc + nVirt*log_muL - Gamma.logGamma(nVirt+1);
-            P_low_given_ab += Math.exp(Math.log(migrationModel.getRpowN(nVirt, sym).get(typeStart, typeEnd)) + acc);
+            P_low_given_ab += Math.exp(Math.log(migrationModel.getRpowNElement(nVirt, typeStart, typeEnd, sym)) + acc);
             
             if (P_low_given_ab>u)
                 return nVirt;
@@ -129,9 +129,8 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
         // Pre-calculate some stuff:
         double muL = migModel.getMu(sym)*L;
         
-        double Pba = MatrixFunctions.expm(
-                migModel.getQ(sym)
-                .mul(L)).get(type_srcNode,type_srcNodeP);
+        double Pba = migModel.getTransitionProb(type_srcNode,
+                type_srcNodeP, L, sym);
 
         // Abort if transition is impossible.
         if (Pba == 0.0)
@@ -163,12 +162,14 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
         for (int i = 1; i<=nVirt; i++) {
             
             double u2 = Randomizer.nextDouble()
-                    *migModel.getRpowN(nVirt-i+1, sym).get(prevType, type_srcNodeP);
-            int c;
+                    *migModel.getRpowNElement(nVirt-i+1, prevType, type_srcNodeP, sym);
+            int c = -1;
             boolean fellThrough = true;
-            for (c = 0; c<migModel.getNTypes(); c++) {
-                u2 -= migModel.getR(sym).get(prevType,c)
-                        *migModel.getRpowN(nVirt-i, sym).get(c,type_srcNodeP);
+            SparseRateMatrix Rs = migModel.getSparseR(sym);
+            for (int k = Rs.getRowStart(prevType); k<Rs.getRowEnd(prevType); k++) {
+                c = Rs.getColumn(k);
+                u2 -= Rs.getValue(k)
+                        *migModel.getRpowNElement(nVirt-i, c, type_srcNodeP, sym);
                 if (u2<0.0) {
                     fellThrough = false;
                     break;
@@ -178,11 +179,11 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
             // Check for FB algorithm error:
             if (fellThrough) {
                 
-                double sum1 = migModel.getRpowN(nVirt-i+1, sym).get(prevType, type_srcNodeP);
+                double sum1 = migModel.getRpowNElement(nVirt-i+1, prevType, type_srcNodeP, sym);
                 double sum2 = 0;
                 for (c = 0; c<migModel.getNTypes(); c++) {
                     sum2 += migModel.getR(sym).get(prevType,c)
-                            *migModel.getRpowN(nVirt-i, sym).get(c,type_srcNodeP);
+                            *migModel.getRpowNElement(nVirt-i, c, type_srcNodeP, sym);
                 }
                 
                 System.err.println("Warning: FB algorithm failure.  Aborting move.");
@@ -208,14 +209,14 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
                 ((MultiTypeNode)srcNode).addChange(types[i], times[i]);
 
                 // Add probability contribution:
-                logProb += migModel.getQ(sym).get(prevType, prevType)*(times[i]-prevTime)
-                        +Math.log(migModel.getQ(sym).get(prevType, types[i]));
+                logProb += migModel.getSparseQ(sym).getDiagonal(prevType)*(times[i]-prevTime)
+                        +Math.log(migModel.getSparseQ(sym).get(prevType, types[i]));
 
                 prevType = types[i];
                 prevTime = times[i];
             }
         }
-        logProb += migModel.getQ(sym).get(prevType, prevType)*(t_srcNodeP-prevTime);
+        logProb += migModel.getSparseQ(sym).getDiagonal(prevType)*(t_srcNodeP-prevTime);
 
         // Adjust probability to account for end condition:
         logProb -= Math.log(Pba);
@@ -251,17 +252,17 @@ public abstract class UniformizationRetypeOperator extends MultiTypeTreeOperator
             double thisTime = ((MultiTypeNode)srcNode).getChangeTime(i);
             int thisCol = ((MultiTypeNode)srcNode).getChangeType(i);
 
-            logProb += (thisTime-lastTime)*migrationModel.getQ(sym).get(lastCol, lastCol)
-                    +Math.log(migrationModel.getQ(sym).get(lastCol, thisCol));
+            logProb += (thisTime-lastTime)*migrationModel.getSparseQ(sym).getDiagonal(lastCol)
+                    +Math.log(migrationModel.getSparseQ(sym).get(lastCol, thisCol));
 
             lastTime = thisTime;
             lastCol = thisCol;
         }
-        logProb += (t_srcNodeP-lastTime)*migrationModel.getQ(sym).get(lastCol, lastCol);
+        logProb += (t_srcNodeP-lastTime)*migrationModel.getSparseQ(sym).getDiagonal(lastCol);
 
         // Adjust to account for end condition of path:
-        double Pba = MatrixFunctions.expm(
-                migrationModel.getQ(sym).mul(L)).get(col_srcNode, col_srcNodeP);
+        double Pba = migrationModel.getTransitionProb(col_srcNode,
+                col_srcNodeP, L, sym);
         
         // Catch for numerical errors:
         if (Pba>1.0 || Pba < 0.0) {
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.Loggable;
+
+import java.io.PrintStream;
+
+/**
+ * Loggable whose output can be produced away from the sampling thread.
+ * Logging is split into taking a snapshot of the state to be logged,
+ * which is done on the sampling thread and should be cheap, and
+ * formatting that snapshot, which AsyncLogger performs on a background
+ * thread.
+ *
+ * Implementations should produce the same output from
+ * logSnapshot(sample, getLogSnapshot(sample), out) as from
+ * log(sample, out).
+ */
+public interface AsyncLoggable extends Loggable {
+
+    /**
+     * Capture the state required to log the given sample.  The returned
+     * object must not be modified afterwards.
+     *
+     * @param sample sample number
+     * @return snapshot of state
+     */
+    Object getLogSnapshot(long sample);
+
+    /**
+     * Write the log entry for a snapshot previously obtained from
+     * getLogSnapshot().  May be called from a thread other than the one
+     * which took the snapshot.
+     *
+     * @param sample sample number
+     * @param snapshot snapshot of state
+     * @param out stream to write to
+     */
+    void logSnapshot(long sample, Object snapshot, PrintStream out);
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.inference.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Logger which formats and writes its output on a background thread.
+ * On the sampling thread, each AsyncLoggable contributes a snapshot of
+ * its state; other loggables are formatted immediately.  The resulting
+ * records pass through a bounded queue to a writer thread, so the chain
+ * only blocks if the writer falls more than queueCapacity samples behind.
+ * All queued records are written before close() returns.
+ *
+ * The writer thread produces each line by calling Logger.log() on a set
+ * of stand-in loggables which replay the queued records.  Line assembly,
+ * the log mode (as resolved by Logger from the mode input), the ordering
+ * of loggables and the timing column of screen logs are therefore exactly
+ * those of the standard Logger.  The output stream is opened and the
+ * header written by Logger.init(), so file name substitutions and log
+ * file modes (including resuming into an existing log) behave as for the
+ * standard Logger.
+ */
+@Description("Logger which formats and writes output on a background "
+        + "thread, keeping slow file systems from stalling the chain.")
+public class AsyncLogger extends Logger {
+
+    public Input<Integer> queueCapacityInput = new Input<>(
+            "queueCapacity",
+            "Maximum number of samples awaiting output before sampling "
+            + "blocks. (Default 64.)", 64);
+
+    private static final long END_OF_LOG = -1;
+
+    /**
+     * Log entry awaiting output.  Elements of entries are either snapshots
+     * obtained from AsyncLoggables or preformatted strings.
+     */
+    private static class Record {
+        final long sample;
+        final Object[] entries;
+
+        Record(long sample, Object[] entries) {
+            this.sample = sample;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Stand-in for a loggable, through which Logger.log() writes the
+     * entry of the record currently being written.  Headers and footers
+     * are delegated to the loggable itself.
+     */
+    private class RecordLoggable extends BEASTObject implements Loggable {
+        private final int index;
+        private final Loggable loggable;
+
+        RecordLoggable(int index, Loggable loggable) {
+            this.index = index;
+            this.loggable = loggable;
+        }
+
+        @Override
+        public void initAndValidate() { }
+
+        @Override
+        public void init(PrintStream out) {
+            loggable.init(out);
+        }
+
+        @Override
+        public void log(long sample, PrintStream out) {
+            Object entry = currentRecord.entries[index];
+            if (loggable instanceof AsyncLoggable)
+                ((AsyncLoggable)loggable).logSnapshot(sample, entry, out);
+            else
+                out.print((String)entry);
+        }
+
+        @Override
+        public void close(PrintStream out) {
+            loggable.close(out);
+        }
+    }
+
+    private Loggable[] loggables;
+    private int logEvery;
+
+    private BlockingQueue<Record> queue;
+    private Thread writerThread;
+    private volatile Throwable writerException;
+
+    // Record being written, accessed only by the writer thread:
+    private Record currentRecord;
+
+    private final ByteArrayOutputStream syncBuffer = new ByteArrayOutputStream();
+    private final PrintStream syncStream = new PrintStream(syncBuffer);
+
+    @Override
+    public void initAndValidate() {
+        // Let Logger resolve the log mode from the actual loggables:
+        super.initAndValidate();
+
+        List<BEASTObject> loggerList = loggersInput.get();
+        List<BEASTObject> originalLoggers = new ArrayList<>(loggerList);
+        loggables = new Loggable[originalLoggers.size()];
+        List<BEASTObject> recordLoggers = new ArrayList<>();
+        for (int i=0; i<loggables.length; i++) {
+            if (!(originalLoggers.get(i) instanceof Loggable))
+                throw new IllegalArgumentException("Object '"
+                        + originalLoggers.get(i).getID() + "' passed to "
+                        + "AsyncLogger is not loggable.");
+
+            loggables[i] = (Loggable)originalLoggers.get(i);
+
+            RecordLoggable recordLoggable = new RecordLoggable(i, loggables[i]);
+            recordLoggable.setID(originalLoggers.get(i).getID());
+            recordLoggers.add(recordLoggable);
+        }
+
+        // Initialize again with the stand-ins in place of the loggables
+        // and the mode fixed to the one resolved above, restoring the
+        // inputs afterwards:
+        LOGMODE modeSetting = modeInput.get();
+        modeInput.setValue(mode, this);
+        loggerList.clear();
+        loggerList.addAll(recordLoggers);
+        try {
+            super.initAndValidate();
+        } finally {
+            loggerList.clear();
+            loggerList.addAll(originalLoggers);
+            modeInput.setValue(modeSetting, this);
+        }
+
+        logEvery = everyInput.get() != null ? everyInput.get() : 1;
+
+        if (queueCapacityInput.get()<1)
+            throw new IllegalArgumentException("AsyncLogger queue capacity "
+                    + "must be positive.");
+    }
+
+    @Override
+    public void init() throws IOException {
+        super.init();
+
+        queue = new ArrayBlockingQueue<>(queueCapacityInput.get());
+        writerException = null;
+        writerThread = new Thread(this::writeRecords, "AsyncLogger writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void log(long sample) {
+        if (sample<0 || sample % logEvery > 0)
+            return;
+
+        // Sample numbers continue from the end of a resumed log, whose
+        // final line already records the initial state:
+        long loggedSample = sample;
+        long sampleOffset = getSampleOffset();
+        if (sampleOffset>0) {
+            if (sample == 0)
+                return;
+            loggedSample += sampleOffset;
+        }
+
+        checkWriter();
+
+        Object[] entries = new Object[loggables.length];
+        for (int i=0; i<loggables.length; i++) {
+            if (loggables[i] instanceof AsyncLoggable) {
+                entries[i] = ((AsyncLoggable)loggables[i]).getLogSnapshot(loggedSample);
+            } else {
+                syncBuffer.reset();
+                loggables[i].log(loggedSample, syncStream);
+                syncStream.flush();
+                entries[i] = syncBuffer.toString();
+            }
+        }
+
+        enqueue(new Record(sample, entries));
+    }
+
+    @Override
+    public void close() {
+        if (writerThread == null)
+            return;
+
+        enqueue(new Record(END_OF_LOG, null));
+        try {
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+
+        super.close();
+
+        checkWriter();
+    }
+
+    /**
+     * Add record to queue, blocking while the queue is full.
+     */
+    private void enqueue(Record record) {
+        try {
+            queue.put(record);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to log.", ex);
+        }
+    }
+
+    /**
+     * Rethrow any exception raised by the writer thread.
+     */
+    private void checkWriter() {
+        if (writerException != null)
+            throw new RuntimeException("AsyncLogger writer failed.",
+                    writerException);
+    }
+
+    /**
+     * Body of writer thread: write records until the end of the log is
+     * reached.
+     */
+    private void writeRecords() {
+        try {
+            while (true) {
+                Record record = queue.take();
+                if (record.sample == END_OF_LOG)
+                    break;
+
+                currentRecord = record;
+                super.log(record.sample);
+                currentRecord = null;
+
+                // Flush once the backlog has been written:
+                if (queue.isEmpty())
+                    m_out.flush();
+            }
+        } catch (Throwable ex) {
+            writerException = ex;
+
+            // Keep draining so that the sampling thread cannot block
+            // forever on a full queue:
+            try {
+                while (queue.take().sample != END_OF_LOG) { }
+            } catch (InterruptedException ignored) { }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import multitypetree.evolution.tree.MultiTypeTree;
+import multitypetree.evolution.tree.MultiTypeTreeNewickWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Converts a binary tree log written by BinaryTreeLogger to the NEXUS
+ * tree log that would have been produced by logging the tree directly,
+ * optionally discarding an initial fraction of the samples.
+ *
+ * Usage: BinaryTreeLogConverter input.bin output.trees [burninPercentage]
+ */
+public class BinaryTreeLogConverter {
+
+    /**
+     * Write NEXUS equivalent of binary log.
+     *
+     * @param reader binary log to convert
+     * @param out stream to write NEXUS log to
+     * @param burninFrac fraction of samples to discard
+     * @throws IOException
+     */
+    public static void convert(BinaryTreeLogReader reader, PrintStream out,
+            double burninFrac) throws IOException {
+
+        // Header is trimmed and terminated as by Logger:
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream header = new PrintStream(baos);
+        MultiTypeTree.writeNexusHeader(reader.getTaxonIDs(), header);
+        header.flush();
+        out.println(baos.toString().trim());
+
+        MultiTypeTreeNewickWriter newickWriter = new MultiTypeTreeNewickWriter();
+        int start = (int)(burninFrac*reader.getSampleCount());
+        for (int i=start; i<reader.getSampleCount(); i++) {
+            out.print("tree STATE_" + reader.getSampleNumber(i) + " = ");
+            newickWriter.write(reader.getSnapshot(i), out);
+            out.println(";");
+        }
+
+        out.println("End;");
+        out.flush();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length<2 || args.length>3) {
+            System.err.println("Usage: BinaryTreeLogConverter input output "
+                    + "[burninPercentage]");
+            System.exit(1);
+        }
+
+        double burninFrac = args.length>2 ? Double.parseDouble(args[2])/100.0 : 0.0;
+        if (burninFrac<0.0 || burninFrac>=1.0) {
+            System.err.println("Burn-in percentage must lie in [0,100).");
+            System.exit(1);
+        }
+
+        try (BinaryTreeLogReader reader = new BinaryTreeLogReader(new File(args[0]));
+             PrintStream out = new PrintStream(new BufferedOutputStream(
+                     new FileOutputStream(args[1])))) {
+            convert(reader, out, burninFrac);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Layout of binary multi-type tree logs, together with the variable-length
+ * integer coding used for tree records.
+ *
+ * A log starts with a header written using DataOutputStream:
+ *
+ *   "MTTB" magic, int version, int flags, UTF type label,
+ *   int type count and UTF type names, int node count, int leaf count,
+ *   boolean per node (whether the node has an ID), UTF ID of each leaf.
+ *
+ * Each sample then occupies one record:
+ *
+ *   long sample number, int stored payload length, int raw payload length,
+ *   payload (deflated if FLAG_COMPRESSED is set).
+ *
+ * The payload holds the root number followed, for each node in number
+ * order, by its parent number plus one, its type and its height, and
+ * then the number of type changes on the branch above it and the type
+ * and time of each.  Integers are written as unsigned varints.  Doubles
+ * are stored losslessly as the XOR of their bit pattern with that of the
+ * preceding value (the previous node's height, or for change times the
+ * preceding change or the node height), which leaves the shared sign,
+ * exponent and leading mantissa bits as zeros, so that the XOR is small
+ * and its varint short.
+ */
+final class BinaryTreeLogFormat {
+
+    static final int MAGIC = 0x4d545442; // "MTTB"
+    static final int VERSION = 1;
+
+    static final int FLAG_COMPRESSED = 1;
+
+    // Size of the fixed part of each record:
+    static final int RECORD_HEADER_SIZE = 8 + 4 + 4;
+
+    private BinaryTreeLogFormat() { }
+
+    /**
+     * Growable byte buffer to which payloads are encoded.
+     */
+    static class Encoder {
+        byte[] bytes = new byte[256];
+        int size = 0;
+
+        void reset() {
+            size = 0;
+        }
+
+        void putVarInt(int value) {
+            putVarLong(value & 0xffffffffL);
+        }
+
+        void putVarLong(long value) {
+            ensureCapacity(size + 10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[size++] = (byte)((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte)value;
+        }
+
+        void putDouble(double value, double previous) {
+            putVarLong(Double.doubleToRawLongBits(value)
+                    ^ Double.doubleToRawLongBits(previous));
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity>bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, 2*bytes.length));
+        }
+    }
+
+    /**
+     * Reads payloads written by Encoder.
+     */
+    static class Decoder {
+        private final ByteBuffer buffer;
+
+        Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int getVarInt() {
+            return (int)getVarLong();
+        }
+
+        long getVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                value |= (long)(b & 0x7f) << shift;
+                shift += 7;
+            } while (b<0);
+
+            return value;
+        }
+
+        double getDouble(double previous) {
+            return Double.longBitsToDouble(getVarLong()
+                    ^ Double.doubleToRawLongBits(previous));
+        }
+    }
+}
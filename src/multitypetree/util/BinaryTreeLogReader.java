@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import multitypetree.evolution.tree.MultiTypeTreeSnapshot;
+import multitypetree.evolution.tree.TypeSet;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Provides random access by sample index to the trees in a binary log
+ * written by BinaryTreeLogWriter.  Opening a log reads only the header
+ * and the fixed-size prefix of each record; records are decoded on demand
+ * from a memory-mapped window of the file.  Files larger than a single
+ * window are mapped piecewise, with the window moving to wherever the
+ * requested record lies.
+ *
+ * A final record truncated by an interrupted run is ignored.
+ */
+public class BinaryTreeLogReader implements AutoCloseable {
+
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+
+    private final boolean compressed;
+    private final String typeLabel;
+    private final TypeSet typeSet;
+    private final int nodeCount, leafNodeCount;
+    private final boolean[] hasID;
+    private final String[] taxonIDs;
+
+    private int sampleCount;
+    private long endOffset;
+    private long[] recordOffsets = new long[1024];
+    private long[] sampleNumbers = new long[1024];
+
+    private MappedByteBuffer window;
+    private long windowStart, windowEnd;
+
+    private final Inflater inflater = new Inflater();
+    private byte[] inflated = new byte[0];
+
+    /**
+     * Open binary log and index its records.
+     *
+     * @param logFile log to read
+     * @throws IOException if the file cannot be read or is not a binary
+     * multi-type tree log
+     */
+    public BinaryTreeLogReader(File logFile) throws IOException {
+        file = new RandomAccessFile(logFile, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+
+        try {
+            // DataInputStream does not read ahead, so the channel is left
+            // positioned at the end of the header.
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+
+            if (in.readInt() != BinaryTreeLogFormat.MAGIC)
+                throw new IOException("File '" + logFile
+                        + "' is not a binary multi-type tree log.");
+
+            int version = in.readInt();
+            if (version != BinaryTreeLogFormat.VERSION)
+                throw new IOException("Unsupported binary tree log version "
+                        + version + ".");
+
+            compressed = (in.readInt() & BinaryTreeLogFormat.FLAG_COMPRESSED) != 0;
+
+            typeLabel = in.readUTF();
+            String[] typeNames = new String[in.readInt()];
+            for (int i=0; i<typeNames.length; i++)
+                typeNames[i] = in.readUTF();
+            typeSet = new TypeSet(typeNames);
+
+            nodeCount = in.readInt();
+            leafNodeCount = in.readInt();
+            hasID = new boolean[nodeCount];
+            for (int nr=0; nr<nodeCount; nr++)
+                hasID[nr] = in.readBoolean();
+            taxonIDs = new String[leafNodeCount];
+            for (int i=0; i<leafNodeCount; i++)
+                taxonIDs[i] = in.readUTF();
+
+            indexRecords(channel.position());
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Record the offset and sample number of each complete record.
+     */
+    private void indexRecords(long offset) throws IOException {
+        ByteBuffer recordHeader = ByteBuffer.allocate(BinaryTreeLogFormat.RECORD_HEADER_SIZE);
+
+        sampleCount = 0;
+        while (offset + BinaryTreeLogFormat.RECORD_HEADER_SIZE <= fileSize) {
+            recordHeader.clear();
+            while (recordHeader.hasRemaining()) {
+                if (channel.read(recordHeader,
+                        offset + recordHeader.position()) < 0)
+                    break;
+            }
+            recordHeader.flip();
+
+            long sample = recordHeader.getLong();
+            int storedLength = recordHeader.getInt();
+
+            long next = offset + BinaryTreeLogFormat.RECORD_HEADER_SIZE + storedLength;
+            if (next>fileSize)
+                break;
+
+            if (sampleCount == recordOffsets.length) {
+                recordOffsets = Arrays.copyOf(recordOffsets, 2*sampleCount);
+                sampleNumbers = Arrays.copyOf(sampleNumbers, 2*sampleCount);
+            }
+            recordOffsets[sampleCount] = offset;
+            sampleNumbers[sampleCount] = sample;
+            sampleCount += 1;
+
+            offset = next;
+        }
+
+        endOffset = offset;
+    }
+
+    /**
+     * @return number of samples in log
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @param i sample index
+     * @return MCMC sample number of ith sample
+     */
+    public long getSampleNumber(int i) {
+        checkIndex(i);
+        return sampleNumbers[i];
+    }
+
+    /**
+     * @return true if records are compressed
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return offset of the end of the last complete record
+     */
+    long getEndOffset() {
+        return endOffset;
+    }
+
+    /**
+     * @return type label used in tree metadata
+     */
+    public String getTypeLabel() {
+        return typeLabel;
+    }
+
+    /**
+     * @return type set of logged tree
+     */
+    public TypeSet getTypeSet() {
+        return typeSet;
+    }
+
+    /**
+     * @return number of nodes in each tree
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return IDs of leaf nodes, in node number order
+     */
+    public String[] getTaxonIDs() {
+        return taxonIDs.clone();
+    }
+
+    /**
+     * Decode a sampled tree.
+     *
+     * @param i sample index
+     * @return snapshot of tree
+     * @throws IOException
+     */
+    public MultiTypeTreeSnapshot getSnapshot(int i) throws IOException {
+        checkIndex(i);
+
+        ByteBuffer record = mapRecord(recordOffsets[i]);
+        record.getLong();
+        int storedLength = record.getInt();
+        int rawLength = record.getInt();
+
+        ByteBuffer payload;
+        if (compressed) {
+            if (inflated.length<rawLength)
+                inflated = new byte[rawLength];
+
+            record.limit(record.position() + storedLength);
+            inflater.reset();
+            inflater.setInput(record);
+            try {
+                int length = 0;
+                while (length<rawLength && !inflater.finished()) {
+                    int n = inflater.inflate(inflated, length, rawLength - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    length += n;
+                }
+                if (length != rawLength)
+                    throw new IOException("Truncated record in binary tree log.");
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt record in binary tree log.", ex);
+            }
+            payload = ByteBuffer.wrap(inflated, 0, rawLength);
+        } else {
+            record.limit(record.position() + storedLength);
+            payload = record;
+        }
+
+        return decode(new BinaryTreeLogFormat.Decoder(payload));
+    }
+
+    private MultiTypeTreeSnapshot decode(BinaryTreeLogFormat.Decoder decoder) {
+        int rootNr = decoder.getVarInt();
+
+        int[] parentNrs = new int[nodeCount];
+        int[] nodeTypes = new int[nodeCount];
+        double[] heights = new double[nodeCount];
+        int[] changeStarts = new int[nodeCount+1];
+        int[] changeTypes = new int[16];
+        double[] changeTimes = new double[16];
+
+        int pos = 0;
+        double prevHeight = 0.0;
+        for (int nr=0; nr<nodeCount; nr++) {
+            parentNrs[nr] = decoder.getVarInt() - 1;
+            nodeTypes[nr] = decoder.getVarInt();
+            heights[nr] = decoder.getDouble(prevHeight);
+            prevHeight = heights[nr];
+
+            int count = decoder.getVarInt();
+            if (pos + count > changeTypes.length) {
+                int capacity = Math.max(pos + count, 2*changeTypes.length);
+                changeTypes = Arrays.copyOf(changeTypes, capacity);
+                changeTimes = Arrays.copyOf(changeTimes, capacity);
+            }
+
+            changeStarts[nr] = pos;
+            double prevTime = heights[nr];
+            for (int idx=0; idx<count; idx++) {
+                changeTypes[pos] = decoder.getVarInt();
+                changeTimes[pos] = decoder.getDouble(prevTime);
+                prevTime = changeTimes[pos];
+                pos += 1;
+            }
+        }
+        changeStarts[nodeCount] = pos;
+
+        return new MultiTypeTreeSnapshot(rootNr, parentNrs, heights, nodeTypes,
+                hasID.clone(), changeStarts, changeTypes, changeTimes,
+                typeLabel, typeSet);
+    }
+
+    /**
+     * Obtain a buffer positioned at the start of the record at the given
+     * offset, moving the mapped window if necessary.
+     */
+    private ByteBuffer mapRecord(long offset) throws IOException {
+        long recordEnd = offset + BinaryTreeLogFormat.RECORD_HEADER_SIZE;
+        if (window == null || offset<windowStart || recordEnd>windowEnd)
+            mapWindow(offset, recordEnd);
+
+        int storedLength = window.getInt((int)(offset - windowStart) + 8);
+        recordEnd += storedLength;
+        if (recordEnd>windowEnd)
+            mapWindow(offset, recordEnd);
+
+        ByteBuffer record = window.duplicate();
+        record.position((int)(offset - windowStart));
+        record.limit((int)(recordEnd - windowStart));
+        return record;
+    }
+
+    private void mapWindow(long start, long minEnd) throws IOException {
+        // Map the whole file when it fits in a single window:
+        if (fileSize<=MAX_WINDOW_SIZE)
+            start = 0;
+
+        long size = Math.max(Math.min(MAX_WINDOW_SIZE, fileSize - start),
+                minEnd - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        windowStart = start;
+        windowEnd = start + size;
+    }
+
+    private void checkIndex(int i) {
+        if (i<0 || i>=sampleCount)
+            throw new IndexOutOfBoundsException("Sample index " + i
+                    + " out of range for log with " + sampleCount
+                    + " samples.");
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        inflater.end();
+        file.close();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.evolution.tree.Node;
+import multitypetree.evolution.tree.MultiTypeTree;
+import multitypetree.evolution.tree.MultiTypeTreeSnapshot;
+import multitypetree.evolution.tree.TypeSet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes samples of a multi-type tree to a binary log, as described in
+ * BinaryTreeLogFormat.  Such logs are typically a fraction of the size of
+ * the equivalent NEXUS log and can be converted to it using
+ * BinaryTreeLogConverter.
+ */
+public class BinaryTreeLogWriter {
+
+    private final MultiTypeTree mtTree;
+    private final boolean compress;
+    private final int nodeCount;
+
+    private final DataOutputStream out;
+
+    private MultiTypeTreeSnapshot snapshot;
+    private final BinaryTreeLogFormat.Encoder encoder
+            = new BinaryTreeLogFormat.Encoder();
+    private final Deflater deflater;
+    private byte[] deflated = new byte[256];
+
+    /**
+     * Create log file and write its header.
+     *
+     * @param file file to write (overwritten if it exists)
+     * @param mtTree tree to log
+     * @param compress if true, records are compressed using deflate
+     * @throws IOException
+     */
+    public BinaryTreeLogWriter(File file, MultiTypeTree mtTree, boolean compress)
+            throws IOException {
+        this(new FileOutputStream(file), mtTree, compress);
+    }
+
+    /**
+     * Write log header to stream.
+     *
+     * @param stream stream to write to
+     * @param mtTree tree to log
+     * @param compress if true, records are compressed using deflate
+     * @throws IOException
+     */
+    public BinaryTreeLogWriter(OutputStream stream, MultiTypeTree mtTree,
+            boolean compress) throws IOException {
+        this(stream, mtTree, compress, true);
+    }
+
+    /**
+     * Open an existing log to append further samples.  Any record left
+     * incomplete by an interrupted run is discarded first.  Records are
+     * compressed if those already in the log are.
+     *
+     * @param file log to append to
+     * @param mtTree tree to log
+     * @return writer positioned after the last complete record
+     * @throws IOException if the log cannot be read or was written for a
+     * tree of a different size or type label
+     */
+    public static BinaryTreeLogWriter append(File file, MultiTypeTree mtTree)
+            throws IOException {
+        boolean compress;
+        long endOffset;
+        try (BinaryTreeLogReader reader = new BinaryTreeLogReader(file)) {
+            if (reader.getNodeCount() != mtTree.getNodeCount()
+                    || !reader.getTypeLabel().equals(mtTree.getTypeLabel()))
+                throw new IOException("Binary tree log '" + file
+                        + "' was written for a different tree.");
+
+            compress = reader.isCompressed();
+            endOffset = reader.getEndOffset();
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(endOffset);
+        }
+
+        return new BinaryTreeLogWriter(new FileOutputStream(file, true),
+                mtTree, compress, false);
+    }
+
+    private BinaryTreeLogWriter(OutputStream stream, MultiTypeTree mtTree,
+            boolean compress, boolean writeHeader) throws IOException {
+        this.mtTree = mtTree;
+        this.compress = compress;
+        this.nodeCount = mtTree.getNodeCount();
+
+        deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+
+        if (writeHeader)
+            writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        out.writeInt(BinaryTreeLogFormat.MAGIC);
+        out.writeInt(BinaryTreeLogFormat.VERSION);
+        out.writeInt(compress ? BinaryTreeLogFormat.FLAG_COMPRESSED : 0);
+
+        out.writeUTF(mtTree.getTypeLabel());
+        TypeSet typeSet = mtTree.getTypeSet();
+        List<String> typeNames = typeSet.getTypesAsList();
+        out.writeInt(typeNames.size());
+        for (String typeName : typeNames)
+            out.writeUTF(typeName);
+
+        Node[] nodes = mtTree.getNodesAsArray();
+        out.writeInt(nodeCount);
+        out.writeInt(mtTree.getLeafNodeCount());
+        for (Node node : nodes)
+            out.writeBoolean(node.getID() != null);
+        for (int i=0; i<mtTree.getLeafNodeCount(); i++)
+            out.writeUTF(String.valueOf(nodes[i].getID()));
+    }
+
+    /**
+     * Append the current state of the tree to the log.
+     *
+     * @param sample sample number
+     * @throws IOException
+     */
+    public void write(long sample) throws IOException {
+        if (mtTree.getNodeCount() != nodeCount)
+            throw new IllegalStateException("Number of nodes in tree changed "
+                    + "since binary log was started.");
+
+        if (snapshot == null)
+            snapshot = new MultiTypeTreeSnapshot(mtTree);
+        else
+            snapshot.assignFrom(mtTree);
+
+        encode(snapshot);
+
+        out.writeLong(sample);
+        if (compress) {
+            int length = deflate();
+            out.writeInt(length);
+            out.writeInt(encoder.size);
+            out.write(deflated, 0, length);
+        } else {
+            out.writeInt(encoder.size);
+            out.writeInt(encoder.size);
+            out.write(encoder.bytes, 0, encoder.size);
+        }
+    }
+
+    /**
+     * Write any buffered records to the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Flush and close log.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        out.close();
+        if (deflater != null)
+            deflater.end();
+    }
+
+    private void encode(MultiTypeTreeSnapshot snapshot) {
+        encoder.reset();
+        encoder.putVarInt(snapshot.getRootNr());
+
+        double prevHeight = 0.0;
+        for (int nr=0; nr<nodeCount; nr++) {
+            encoder.putVarInt(snapshot.getParentNr(nr) + 1);
+            encoder.putVarInt(snapshot.getNodeType(nr));
+
+            double height = snapshot.getHeight(nr);
+            encoder.putDouble(height, prevHeight);
+            prevHeight = height;
+
+            int count = snapshot.getChangeCount(nr);
+            encoder.putVarInt(count);
+            double prevTime = height;
+            for (int idx=0; idx<count; idx++) {
+                double time = snapshot.getChangeTime(nr, idx);
+                encoder.putVarInt(snapshot.getChangeType(nr, idx));
+                encoder.putDouble(time, prevTime);
+                prevTime = time;
+            }
+        }
+    }
+
+    /**
+     * Compress encoded payload into deflated.
+     *
+     * @return compressed length
+     */
+    private int deflate() {
+        deflater.reset();
+        deflater.setInput(encoder.bytes, 0, encoder.size);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == deflated.length)
+                deflated = Arrays.copyOf(deflated, 2*deflated.length);
+            length += deflater.deflate(deflated, length, deflated.length - length);
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Logger;
+import beast.base.util.Randomizer;
+import multitypetree.evolution.tree.MultiTypeTree;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Logger which writes samples of a multi-type tree in the compact binary
+ * format described in BinaryTreeLogFormat.  Use BinaryTreeLogConverter to
+ * produce the equivalent NEXUS file, or BinaryTreeLogReader to access
+ * samples directly.
+ *
+ * File names and file modes are treated as by Logger: "$(seed)" and
+ * "$(tree)" are substituted, the file.name.prefix property is honoured,
+ * and in resume mode records are appended to an existing log with sample
+ * numbers continuing from its last record.
+ */
+@Description("Logs a multi-type tree to a compact binary file which can "
+        + "later be converted to NEXUS.")
+public class BinaryTreeLogger extends Logger {
+
+    public Input<MultiTypeTree> multiTypeTreeInput = new Input<>(
+            "multiTypeTree",
+            "Multi-type tree to log.",
+            Validate.REQUIRED);
+
+    public Input<Boolean> compressInput = new Input<>("compress",
+            "Compress each sample using deflate. (Default true.)", true);
+
+    MultiTypeTree mtTree;
+    int logEvery;
+
+    BinaryTreeLogWriter writer;
+
+    // Last sample number of the log being resumed, or 0:
+    long sampleOffset;
+
+    public BinaryTreeLogger() {
+        loggersInput.setRule(Validate.OPTIONAL);
+    }
+
+    @Override
+    public void initAndValidate() {
+        mtTree = multiTypeTreeInput.get();
+
+        if (fileNameInput.get() == null || fileNameInput.get().isEmpty())
+            throw new IllegalArgumentException("BinaryTreeLogger requires "
+                    + "a file name.");
+
+        if (loggersInput.get().isEmpty())
+            loggersInput.setValue(mtTree, this);
+
+        super.initAndValidate();
+
+        logEvery = everyInput.get() != null ? everyInput.get() : 1;
+    }
+
+    /**
+     * @return log file, with name resolved as by Logger
+     */
+    File getLogFile() {
+        String fileName = fileNameInput.get();
+
+        fileName = fileName.replace("$(seed)", String.valueOf(Randomizer.getSeed()));
+        if (mtTree.getID() != null)
+            fileName = fileName.replace("$(tree)", mtTree.getID());
+
+        if (System.getProperty("file.name.prefix") != null)
+            fileName = System.getProperty("file.name.prefix") + "/" + fileName;
+
+        return new File(fileName);
+    }
+
+    @Override
+    public void init() throws IOException {
+        File file = getLogFile();
+        sampleOffset = 0;
+
+        if (file.exists()) {
+            switch (FILE_MODE) {
+                case resume:
+                    if (file.length() == 0)
+                        break;
+
+                    try (BinaryTreeLogReader reader = new BinaryTreeLogReader(file)) {
+                        if (reader.getSampleCount()>0)
+                            sampleOffset = reader.getSampleNumber(
+                                    reader.getSampleCount()-1);
+                    }
+                    writer = BinaryTreeLogWriter.append(file, mtTree);
+                    return;
+
+                case only_new:
+                    throw new IllegalArgumentException("Trying to write "
+                            + "file " + file + " but the file already "
+                            + "exists. Perhaps use the -overwrite flag?");
+
+                case only_new_or_exit:
+                    System.err.println("Trying to write file " + file
+                            + " but the file already exists. Exiting now.");
+                    System.exit(1);
+
+                default:
+                    break;
+            }
+        }
+
+        writer = new BinaryTreeLogWriter(file, mtTree, compressInput.get());
+    }
+
+    @Override
+    public void log(long nSample) {
+        if ((nSample < 0) || (nSample % logEvery > 0))
+            return;
+
+        // Sample numbers continue from the end of a resumed log, whose
+        // final record already holds the initial state:
+        if (sampleOffset>0) {
+            if (nSample == 0)
+                return;
+            nSample += sampleOffset;
+        }
+
+        try {
+            writer.write(nSample);
+        } catch (IOException ex) {
+            throw new RuntimeException("Error writing binary tree log.", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (writer == null)
+            return;
+
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            throw new RuntimeException("Error closing binary tree log.", ex);
+        }
+        writer = null;
+    }
+}
@@ -30,7 +30,7 @@ import java.io.PrintStream;
  *
  * @author Tim Vaughan (tgvaughan@gmail.com)
  */
-public class MAPTreeLogger extends Tree {
+public class MAPTreeLogger extends Tree implements AsyncLoggable {
 
     public Input<MultiTypeTree> multiTypeTreeInput = new Input<>(
         "multiTypeTree",
@@ -62,11 +62,30 @@ public class MAPTreeLogger extends Tree {
 
     @Override
     public void log(long nSample, PrintStream out) {
+        updateMAPTree();
+        currentMAPTree.log(nSample, out);
+    }
+
+    @Override
+    public Object getLogSnapshot(long nSample) {
+        updateMAPTree();
+        return currentMAPTree.getLogSnapshot(nSample);
+    }
+
+    @Override
+    public void logSnapshot(long nSample, Object snapshot, PrintStream out) {
+        currentMAPTree.logSnapshot(nSample, snapshot, out);
+    }
+
+    /**
+     * Replace stored MAP tree with the current tree if the latter has a
+     * higher posterior.
+     */
+    private void updateMAPTree() {
         if (posteriorInput.get().getCurrentLogP()>maxPosterior) {
             maxPosterior = posteriorInput.get().getCurrentLogP();
             currentMAPTree.assignFrom(multiTypeTreeInput.get());
         }
-        currentMAPTree.log(nSample, out);
     }
 
     @Override
@@ -22,7 +22,6 @@ import beast.base.core.Input.Validate;
 import multitypetree.evolution.tree.MultiTypeTree;
 import multitypetree.evolution.tree.SCMigrationModel;
 import multitypetree.evolution.tree.TypeSet;
-import beast.base.core.Loggable;
 
 import java.io.PrintStream;
 
@@ -30,7 +29,7 @@ import java.io.PrintStream;
  *
  * @author Tim Vaughan (tgvaughan@gmail.com)
  */
-public class MigrationModelLogger extends BEASTObject implements Loggable {
+public class MigrationModelLogger extends BEASTObject implements AsyncLoggable {
 
     public Input<SCMigrationModel> migModelInput = new Input<>("migrationModel",
         "Migration model to log.", Validate.REQUIRED);
@@ -109,43 +108,77 @@ public class MigrationModelLogger extends BEASTObject implements Loggable {
 
     @Override
     public void log(long nSample, PrintStream out) {
+        logSnapshot(nSample, getLogSnapshot(nSample), out);
+    }
 
-        out.print(migModel.getPopSizeScaleFactor() + "\t");
+    /**
+     * Logged migration model parameters, in output order.
+     */
+    private static class Snapshot {
+        double[] values;
+        boolean[] rateFlags;
+    }
 
-        for (int i=0; i<migModel.getNTypes(); i++) {
-            out.print(migModel.getPopSizeForLog(i) + "\t");
-        }
+    @Override
+    public Object getLogSnapshot(long nSample) {
+        int nTypes = migModel.getNTypes();
+        Snapshot snapshot = new Snapshot();
+        snapshot.values = new double[2 + nTypes + 2*nTypes*(nTypes-1)];
 
-        out.print(migModel.getRateScaleFactor() + "\t");
+        int k = 0;
+        snapshot.values[k++] = migModel.getPopSizeScaleFactor();
 
-        for (int i=0; i<migModel.getNTypes(); i++) {
-            for (int j=0; j<migModel.getNTypes(); j++) {
+        for (int i=0; i<nTypes; i++)
+            snapshot.values[k++] = migModel.getPopSizeForLog(i);
+
+        snapshot.values[k++] = migModel.getRateScaleFactor();
+
+        for (int i=0; i<nTypes; i++) {
+            for (int j=0; j<nTypes; j++) {
                 if (i==j)
                     continue;
-                out.print(migModel.getBackwardRate(i, j) + "\t");
+                snapshot.values[k++] = migModel.getBackwardRate(i, j);
             }
         }
 
-        for (int i=0; i<migModel.getNTypes(); i++) {
-            for (int j=0; j<migModel.getNTypes(); j++) {
+        for (int i=0; i<nTypes; i++) {
+            for (int j=0; j<nTypes; j++) {
                 if (i==j)
                     continue;
-                out.print(migModel.getForwardRate(i, j) + "\t");
+                snapshot.values[k++] = migModel.getForwardRate(i, j);
             }
         }
-        
+
         if (migModel.rateMatrixFlagsInput.get() != null) {
-            for (int i=0; i<migModel.getNTypes(); i++) {
-                for (int j=0; j<migModel.getNTypes(); j++) {
+            snapshot.rateFlags = new boolean[nTypes*(nTypes-1)];
+            k = 0;
+            for (int i=0; i<nTypes; i++) {
+                for (int j=0; j<nTypes; j++) {
                     if (i==j)
                         continue;
-                    if (migModel.getRateFlag(i,j))
-                        out.format("1\t");
-                    else
-                        out.format("0\t");
+                    snapshot.rateFlags[k++] = migModel.getRateFlag(i,j);
                 }
             }
         }
+
+        return snapshot;
+    }
+
+    @Override
+    public void logSnapshot(long nSample, Object snapshotObj, PrintStream out) {
+        Snapshot snapshot = (Snapshot)snapshotObj;
+
+        for (double value : snapshot.values)
+            out.print(value + "\t");
+
+        if (snapshot.rateFlags != null) {
+            for (boolean flag : snapshot.rateFlags) {
+                if (flag)
+                    out.format("1\t");
+                else
+                    out.format("0\t");
+            }
+        }
     }
 
     @Override
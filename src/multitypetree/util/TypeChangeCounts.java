@@ -20,7 +20,6 @@ import beast.base.inference.CalculationNode;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
-import beast.base.core.Loggable;
 import beast.base.core.Function;
 import beast.base.evolution.tree.Node;
 import multitypetree.evolution.tree.MultiTypeNode;
@@ -34,7 +33,7 @@ import java.io.PrintStream;
  */
 @Description("Allows logging and defining distributions over number of"
         + " type changes on a multi-type tree.")
-public class TypeChangeCounts extends CalculationNode implements Function, Loggable {
+public class TypeChangeCounts extends CalculationNode implements Function, AsyncLoggable {
 
     public Input<MultiTypeTree> multiTypeTreeInput = new Input<>(
             "multiTypeTree",
@@ -91,8 +90,10 @@ public class TypeChangeCounts extends CalculationNode implements Function, Logga
 
             MultiTypeNode mtNode = (MultiTypeNode)node;
             int lastType = mtNode.getNodeType();
-            for (int i = 0; i < mtNode.getChangeCount(); i++) {
-                int nextType = mtNode.getChangeType(i);
+            int[] changeTypes = mtNode.getChangeTypesArray();
+            int offset = mtNode.getChangeArrayOffset();
+            for (int i = offset; i < offset + mtNode.getChangeCount(); i++) {
+                int nextType = changeTypes[i];
                 typeChanges[getOffset(lastType, nextType)] += 1;
                 lastType = nextType;
             }
@@ -159,13 +160,24 @@ public class TypeChangeCounts extends CalculationNode implements Function, Logga
     @Override
     public void log(long nSample, PrintStream out) {
         update();
-        
+        logSnapshot(nSample, typeChanges, out);
+    }
+
+    @Override
+    public Object getLogSnapshot(long nSample) {
+        update();
+        return typeChanges.clone();
+    }
+
+    @Override
+    public void logSnapshot(long nSample, Object snapshot, PrintStream out) {
+        int[] counts = (int[])snapshot;
         for (int type = 0; type < nTypes; type++) {
             for (int typeP = 0; typeP < nTypes; typeP++) {
                 if (type == typeP) {
                     continue;
                 }
-                out.print(typeChanges[getOffset(type, typeP)] + "\t");
+                out.print(counts[getOffset(type, typeP)] + "\t");
             }
         }
     }
@@ -20,7 +20,6 @@ import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
-import beast.base.core.Loggable;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.CalculationNode;
 import multitypetree.evolution.tree.MigrationModel;
@@ -35,7 +34,7 @@ import java.io.PrintStream;
  */
 @Description("Allows logging and defining distributions over the lengths of"
         + " time lineages spend in each type on a multi-type tree.")
-public class TypeLengths extends CalculationNode implements Function, Loggable {
+public class TypeLengths extends CalculationNode implements Function, AsyncLoggable {
 
     public Input<MultiTypeTree> multiTypeTreeInput = new Input<>(
             "multiTypeTree",
@@ -82,9 +81,12 @@ public class TypeLengths extends CalculationNode implements Function, Loggable {
             MultiTypeNode mtNode = (MultiTypeNode)node;
             int thisType = mtNode.getNodeType();
             double lastTime = mtNode.getHeight();
-            for (int i = 0; i < mtNode.getChangeCount(); i++) {
-                int nextType = mtNode.getChangeType(i);
-                double nextTime = mtNode.getChangeTime(i);
+            int[] changeTypes = mtNode.getChangeTypesArray();
+            double[] changeTimes = mtNode.getChangeTimesArray();
+            int offset = mtNode.getChangeArrayOffset();
+            for (int i = offset; i < offset + mtNode.getChangeCount(); i++) {
+                int nextType = changeTypes[i];
+                double nextTime = changeTimes[i];
                 typeLengths[thisType] += (nextTime - lastTime);
                 thisType = nextType;
                 lastTime = nextTime;
@@ -126,9 +128,20 @@ public class TypeLengths extends CalculationNode implements Function, Loggable {
     @Override
     public void log(long nSample, PrintStream out) {
         update();
-        
-        for (int type = 0; type < migModel.getNTypes(); type++) {
-            out.print(typeLengths[type] + "\t");
+        logSnapshot(nSample, typeLengths, out);
+    }
+
+    @Override
+    public Object getLogSnapshot(long nSample) {
+        update();
+        return typeLengths.clone();
+    }
+
+    @Override
+    public void logSnapshot(long nSample, Object snapshot, PrintStream out) {
+        double[] lengths = (double[])snapshot;
+        for (int type = 0; type < lengths.length; type++) {
+            out.print(lengths[type] + "\t");
         }
     }
 
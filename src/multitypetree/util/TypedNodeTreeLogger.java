@@ -3,17 +3,16 @@ package multitypetree.util;
 import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.core.Loggable;
-import beast.base.evolution.tree.Node;
-import multitypetree.evolution.tree.MultiTypeNode;
 import multitypetree.evolution.tree.MultiTypeTree;
+import multitypetree.evolution.tree.MultiTypeTreeNewickWriter;
+import multitypetree.evolution.tree.MultiTypeTreeSnapshot;
 
 import java.io.PrintStream;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
-public class TypedNodeTreeLogger extends BEASTObject implements Loggable {
+public class TypedNodeTreeLogger extends BEASTObject implements AsyncLoggable {
 
     public Input<MultiTypeTree> multiTypeTreeInput = new Input<>(
             "multiTypeTree",
@@ -22,6 +21,11 @@ public class TypedNodeTreeLogger extends BEASTObject implements Loggable {
 
     MultiTypeTree mtTree;
 
+    // Writes node types only, omitting type changes:
+    private final MultiTypeTreeNewickWriter newickWriter
+            = new MultiTypeTreeNewickWriter(false);
+    private MultiTypeTreeSnapshot snapshot;
+
     @Override
     public void initAndValidate() {
         mtTree = multiTypeTreeInput.get();
@@ -34,18 +38,23 @@ public class TypedNodeTreeLogger extends BEASTObject implements Loggable {
 
     @Override
     public void log(long nSample, PrintStream out) {
+        if (snapshot == null)
+            snapshot = new MultiTypeTreeSnapshot(mtTree);
+        else
+            snapshot.assignFrom(mtTree);
+
+        logSnapshot(nSample, snapshot, out);
+    }
 
-        // Set up metadata string
-        for (Node node : mtTree.getNodesAsArray()) {
-            MultiTypeNode mtNode = (MultiTypeNode)node;
-            mtNode.metaDataString = mtTree.getTypeLabel()
-                    + "=\""
-                    + mtTree.getTypeSet().getTypeName(mtNode.getNodeType())
-                    + "\"";
-        }
+    @Override
+    public Object getLogSnapshot(long nSample) {
+        return new MultiTypeTreeSnapshot(mtTree);
+    }
 
+    @Override
+    public void logSnapshot(long nSample, Object snapshot, PrintStream out) {
         out.print("tree STATE_" + nSample + " = ");
-        out.print(mtTree.getRoot().toSortedNewick(new int[1], true));
+        newickWriter.write((MultiTypeTreeSnapshot)snapshot, out);
         out.print(";");
     }
 
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import multitypetree.distributions.StructuredCoalescentUntypedTreeDensity;
+
+import java.io.PrintStream;
+
+/**
+ * Logs the number of particles used by a StructuredCoalescentUntypedTreeDensity
+ * together with diagnostics of its most recent density estimate: the
+ * effective sample size, the variance of the log particle weights, the
+ * largest share of the total weight held by one particle, and the
+ * approximate variance of the log density estimate.
+ */
+@Description("Logger to report particle diagnostics of the untyped "
+        + "structured coalescent density.")
+public class UntypedDensityDiagnostics extends BEASTObject implements Function, AsyncLoggable {
+
+    public Input<StructuredCoalescentUntypedTreeDensity> densityInput = new Input<>(
+            "density", "Untyped structured coalescent density to report on.",
+            Validate.REQUIRED);
+
+    private static final String[] COLUMNS = {
+            "particles", "ESS", "logWeightVariance", "maxWeightShare",
+            "logPVariance"
+    };
+
+    private StructuredCoalescentUntypedTreeDensity density;
+
+    @Override
+    public void initAndValidate() {
+        density = densityInput.get();
+    }
+
+    private double[] getValues() {
+        return new double[] {
+                density.getParticleCount(),
+                density.getEffectiveSampleSize(),
+                density.getLogWeightVariance(),
+                density.getMaxWeightShare(),
+                density.getLogPVariance()
+        };
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        String prefix;
+        if (getID() != null && !getID().matches("\\s*"))
+            prefix = getID();
+        else if (density.getID() != null && !density.getID().matches("\\s*"))
+            prefix = density.getID();
+        else
+            prefix = "untypedDensity";
+
+        for (String column : COLUMNS)
+            out.print(prefix + "." + column + "\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        logSnapshot(sample, getLogSnapshot(sample), out);
+    }
+
+    @Override
+    public Object getLogSnapshot(long sample) {
+        return getValues();
+    }
+
+    @Override
+    public void logSnapshot(long sample, Object snapshot, PrintStream out) {
+        double[] values = (double[])snapshot;
+        out.print((int)values[0] + "\t");
+        for (int i=1; i<values.length; i++)
+            out.print(values[i] + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) { }
+
+    @Override
+    public int getDimension() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public double getArrayValue() {
+        return getArrayValue(0);
+    }
+
+    @Override
+    public double getArrayValue(int dim) {
+        return getValues()[dim];
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.coalescent;
+
+import beast.base.evolution.operator.ScaleOperator;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.MultiTypeTree;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.StructuredCoalescentMultiTypeTree;
+import multitypetree.evolution.tree.TypeSet;
+import multitypetree.operators.MultiTypeTreeScale;
+import multitypetree.operators.MultiTypeUniform;
+import multitypetree.operators.NodeRetype;
+import multitypetree.operators.TypeBirthDeath;
+import multitypetree.operators.TypedSubtreeExchange;
+import multitypetree.operators.TypedWilsonBalding;
+import multitypetree.util.MultiTypeTreeStatLogger;
+import org.junit.Test;
+
+/**
+ * Runs short chains with the incremental and sufficient statistics modes
+ * of the structured coalescent density cross-checked against full
+ * recomputation after every proposal.
+ */
+public class IncrementalSCLikelihoodTest extends TestCase {
+
+    @Test
+    public void testIncrementalCrossCheck() throws Exception {
+        System.out.println("IncrementalSCLikelihoodTest: incremental");
+
+        runCrossCheckedChain(true, false);
+    }
+
+    @Test
+    public void testSufficientStatisticsCrossCheck() throws Exception {
+        System.out.println("IncrementalSCLikelihoodTest: sufficient statistics");
+
+        runCrossCheckedChain(true, true);
+    }
+
+    private void runCrossCheckedChain(boolean useIncremental,
+            boolean useSufficientStatistics) throws Exception {
+
+        Randomizer.setSeed(42);
+
+        // Assemble migration model:
+        RealParameter rateMatrix = new RealParameter(
+                "0.1 0.2 0.1 0.05 0.1 0.2");
+        RealParameter popSizes = new RealParameter("7.0 5.0 3.0");
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B", "C"));
+
+        // Assemble initial MultiTypeTree
+        MultiTypeTree mtTree = new StructuredCoalescentMultiTypeTree();
+        mtTree.initByName(
+                "typeLabel", "deme",
+                "migrationModel", migModel,
+                "leafTypes","0 0 1 1 2 2");
+
+        // Set up state:
+        State state = new State();
+        state.initByName(
+                "stateNode", mtTree,
+                "stateNode", rateMatrix,
+                "stateNode", popSizes);
+
+        // Assemble distribution:
+        StructuredCoalescentTreeDensity distribution =
+                new StructuredCoalescentTreeDensity();
+        distribution.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree,
+                "useIncremental", useIncremental,
+                "useSufficientStatistics", useSufficientStatistics,
+                "crossCheckIncremental", true);
+
+        // Set up operators:
+        Operator operatorSTX = new TypedSubtreeExchange();
+        operatorSTX.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel);
+
+        Operator operatorTWB = new TypedWilsonBalding();
+        operatorTWB.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel,
+                "alpha", 0.2);
+
+        Operator operatorNR = new NodeRetype();
+        operatorNR.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel);
+
+        Operator operatorTBD = new TypeBirthDeath();
+        operatorTBD.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel);
+
+        Operator operatorMTU = new MultiTypeUniform();
+        operatorMTU.initByName(
+                "weight", 1.0,
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree);
+
+        Operator operatorMTTS = new MultiTypeTreeScale();
+        operatorMTTS.initByName(
+                "weight", 1.0,
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel,
+                "scaleFactor", 1.5,
+                "useOldTreeScaler", false);
+
+        Operator operatorRateScale = new ScaleOperator();
+        operatorRateScale.initByName(
+                "weight", 2.0,
+                "parameter", rateMatrix,
+                "scaleFactor", 0.8);
+
+        Operator operatorPopSizeScale = new ScaleOperator();
+        operatorPopSizeScale.initByName(
+                "weight", 2.0,
+                "parameter", popSizes,
+                "scaleFactor", 0.8);
+
+        MultiTypeTreeStatLogger logger = new MultiTypeTreeStatLogger();
+        logger.initByName(
+                "multiTypeTree", mtTree,
+                "burninFrac", 0.1,
+                "logEvery", 100);
+
+        // Any disagreement between the fast and full calculations causes
+        // the density to throw.
+        MCMC mcmc = new MCMC();
+        mcmc.initByName(
+                "chainLength", "20000",
+                "state", state,
+                "distribution", distribution,
+                "operator", operatorSTX,
+                "operator", operatorTWB,
+                "operator", operatorNR,
+                "operator", operatorTBD,
+                "operator", operatorMTU,
+                "operator", operatorMTTS,
+                "operator", operatorRateScale,
+                "operator", operatorPopSizeScale,
+                "logger", logger);
+
+        mcmc.run();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.coalescent;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.TraitSet;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentUntypedTreeDensity;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TypeSet;
+import multitypetree.util.UntypedDensityDiagnostics;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that the particle estimates of the untyped structured coalescent
+ * density are reproducible and independent of the number of threads used,
+ * that the importance sampling and SMC estimates agree, that the
+ * correlated pseudo-marginal mode reuses its auxiliary variables, and
+ * that the particle count adapts to a target variance.
+ */
+public class SCUntypedDensityTest extends TestCase {
+
+    private StructuredCoalescentUntypedTreeDensity getDensity(int threads,
+            boolean useSMC, double correlation, int nParticles,
+            Object... extraInputs) throws Exception {
+
+        List<Taxon> taxa = new ArrayList<>();
+        for (String id : new String[] {"A", "B", "C", "D", "E"})
+            taxa.add(new Taxon(id));
+        TaxonSet taxonSet = new TaxonSet(taxa);
+
+        TraitSet typeTrait = new TraitSet();
+        typeTrait.initByName(
+                "traitname", "type",
+                "taxa", taxonSet,
+                "value", "A=0,B=1,C=0,D=1,E=1");
+
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "newick", "((A:1.0,B:1.0):1.0,((C:0.5,D:0.5):1.0,E:1.5):0.5);",
+                "IsLabelledNewick", true,
+                "adjustTipHeights", false,
+                "taxonset", taxonSet,
+                "trait", typeTrait);
+
+        RealParameter rateMatrix = new RealParameter();
+        rateMatrix.initByName("value", "0.5 0.8");
+        RealParameter popSizes = new RealParameter();
+        popSizes.initByName("value", "2.0 3.0");
+        SCMigrationModel migrationModel = new SCMigrationModel();
+        migrationModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("0", "1"));
+
+        StructuredCoalescentUntypedTreeDensity density
+                = new StructuredCoalescentUntypedTreeDensity();
+        List<Object> inputs = new ArrayList<>(Arrays.asList(
+                "migrationModel", migrationModel,
+                "tree", tree,
+                "nParticles", nParticles,
+                "threads", threads,
+                "useSMC", useSMC,
+                "correlation", correlation));
+        inputs.addAll(Arrays.asList(extraInputs));
+        density.initByName(inputs.toArray());
+
+        return density;
+    }
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("SCUntypedDensityTest");
+
+        StructuredCoalescentUntypedTreeDensity serial = getDensity(1, false, 0.0, 200);
+        StructuredCoalescentUntypedTreeDensity parallel = getDensity(4, false, 0.0, 200);
+
+        for (int i=0; i<5; i++) {
+            Randomizer.setSeed(42 + i);
+            double serialLogP = serial.calculateLogP();
+
+            Randomizer.setSeed(42 + i);
+            double parallelLogP = parallel.calculateLogP();
+
+            assertFalse(Double.isNaN(serialLogP));
+            assertTrue(serialLogP < 0.0);
+            assertEquals(serialLogP, parallelLogP, 0.0);
+        }
+    }
+
+    @Test
+    public void testSMC() throws Exception {
+        System.out.println("SCUntypedDensityTest (SMC)");
+
+        StructuredCoalescentUntypedTreeDensity serial = getDensity(1, true, 0.0, 200);
+        StructuredCoalescentUntypedTreeDensity parallel = getDensity(4, true, 0.0, 200);
+
+        for (int i=0; i<5; i++) {
+            Randomizer.setSeed(42 + i);
+            double serialLogP = serial.calculateLogP();
+
+            Randomizer.setSeed(42 + i);
+            double parallelLogP = parallel.calculateLogP();
+
+            assertFalse(Double.isNaN(serialLogP));
+            assertTrue(serialLogP < 0.0);
+            assertEquals(serialLogP, parallelLogP, 0.0);
+        }
+
+        // Both estimators are unbiased for the same density, so their
+        // estimates should agree closely when many particles are used:
+        Randomizer.setSeed(1);
+        double isLogP = getDensity(4, false, 0.0, 20000).calculateLogP();
+        double smcLogP = getDensity(4, true, 0.0, 20000).calculateLogP();
+        assertEquals(isLogP, smcLogP, 0.1);
+    }
+
+    @Test
+    public void testCorrelated() throws Exception {
+        System.out.println("SCUntypedDensityTest (correlated)");
+
+        Randomizer.setSeed(42);
+        StructuredCoalescentUntypedTreeDensity serial = getDensity(1, false, 0.99, 200);
+        Randomizer.setSeed(42);
+        StructuredCoalescentUntypedTreeDensity parallel = getDensity(4, false, 0.99, 200);
+
+        // Evaluations without an intervening store() reuse the auxiliary
+        // variables:
+        double logP = serial.calculateLogP();
+        assertFalse(Double.isNaN(logP));
+        assertEquals(logP, serial.calculateLogP(), 0.0);
+        assertEquals(logP, parallel.calculateLogP(), 0.0);
+
+        // A proposal following store() gives a nearby estimate, and
+        // restore() returns to the original one:
+        serial.store();
+        Randomizer.setSeed(7);
+        double proposedLogP = serial.calculateLogP();
+        assertFalse(Double.isNaN(proposedLogP));
+        assertTrue(proposedLogP != logP);
+        assertEquals(logP, proposedLogP, 1.0);
+
+        parallel.store();
+        Randomizer.setSeed(7);
+        assertEquals(proposedLogP, parallel.calculateLogP(), 0.0);
+
+        serial.restore();
+        assertEquals(logP, serial.calculateLogP(), 0.0);
+
+        // Repeated rejected proposals leave the variables unchanged:
+        for (int i=0; i<3; i++) {
+            serial.store();
+            serial.calculateLogP();
+            serial.restore();
+        }
+        assertEquals(logP, serial.calculateLogP(), 0.0);
+    }
+
+    @Test
+    public void testAdaptation() throws Exception {
+        System.out.println("SCUntypedDensityTest (adaptation)");
+
+        Randomizer.setSeed(42);
+        StructuredCoalescentUntypedTreeDensity density = getDensity(
+                1, false, 0.0, 20,
+                "targetVariance", 0.01,
+                "adaptationLength", 100,
+                "maxParticles", 5000);
+
+        UntypedDensityDiagnostics diagnostics = new UntypedDensityDiagnostics();
+        diagnostics.initByName("density", density);
+
+        for (int i=0; i<101; i++)
+            density.calculateLogP();
+
+        // Particle count is fixed once the adaptation period has ended:
+        int nParticles = density.getParticleCount();
+        assertTrue(nParticles > 20);
+        for (int i=0; i<100; i++)
+            density.calculateLogP();
+        assertEquals(nParticles, density.getParticleCount());
+
+        assertEquals(nParticles, diagnostics.getArrayValue(0), 0.0);
+        double ess = diagnostics.getArrayValue(1);
+        assertTrue(ess > 0.0 && ess <= nParticles + 1e-9);
+        assertTrue(diagnostics.getArrayValue(2) >= 0.0);
+        double maxWeightShare = diagnostics.getArrayValue(3);
+        assertTrue(maxWeightShare >= 1.0/nParticles - 1e-12 && maxWeightShare <= 1.0);
+        assertEquals(1.0/ess - 1.0/nParticles, diagnostics.getArrayValue(4), 1e-12);
+    }
+
+    @Test
+    public void testDiagnosticsRestored() throws Exception {
+        System.out.println("SCUntypedDensityTest (diagnostics restored)");
+
+        Randomizer.setSeed(42);
+        StructuredCoalescentUntypedTreeDensity density = getDensity(1, false, 0.0, 20);
+
+        double logP = density.calculateLogP();
+        double ess = density.getEffectiveSampleSize();
+        double logWeightVariance = density.getLogWeightVariance();
+        double maxWeightShare = density.getMaxWeightShare();
+        double logPVariance = density.getLogPVariance();
+
+        // Diagnostics of a rejected estimate are discarded with it:
+        density.store();
+        assertTrue(density.calculateLogP() != logP);
+        assertTrue(density.getEffectiveSampleSize() != ess);
+        density.restore();
+
+        assertEquals(logP, density.getCurrentLogP(), 0.0);
+        assertEquals(ess, density.getEffectiveSampleSize(), 0.0);
+        assertEquals(logWeightVariance, density.getLogWeightVariance(), 0.0);
+        assertEquals(maxWeightShare, density.getMaxWeightShare(), 0.0);
+        assertEquals(logPVariance, density.getLogPVariance(), 0.0);
+        assertEquals(20, density.getParticleCount());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Checks the incrementally maintained validity of a multi-type tree
+ * against a full check of a copy of the tree while random, frequently
+ * invalidating, modifications are made, stored and restored.
+ */
+public class BranchValidityTest extends TestCase {
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("BranchValidityTest");
+
+        Randomizer.setSeed(23);
+
+        String newickStr =
+                "((A[&state=1]:1.0,B[&state=0]:1.0)[&state=1]:1.0,"
+                + "(C[&state=0]:1.5,D[&state=1]:1.5)[&state=0]:0.5)[&state=1]:0.0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "state");
+
+        assertTrue(mtTree.isValid());
+
+        int nInvalid = 0;
+        for (int step=0; step<2000; step++) {
+            mtTree.store();
+
+            Node node = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+
+            double u = Randomizer.nextDouble();
+            if (u<0.3 && !node.isRoot()) {
+                mtNode.addChange(Randomizer.nextInt(2), 3.0*Randomizer.nextDouble());
+            } else if (u<0.5 && mtNode.getChangeCount()>0) {
+                mtNode.setChangeTime(Randomizer.nextInt(mtNode.getChangeCount()),
+                        3.0*Randomizer.nextDouble());
+            } else if (u<0.7) {
+                mtNode.setNodeType(Randomizer.nextInt(2));
+            } else if (u<0.8) {
+                mtNode.clearChanges();
+            } else if (!node.isLeaf()) {
+                node.setHeight(1.0 + 2.0*Randomizer.nextDouble());
+            }
+
+            // Compare with full check of a copy, whose nodes are not
+            // tracked:
+            boolean expected = mtTree.copy().isValid();
+            assertEquals(expected, mtTree.isValid());
+            if (!expected)
+                nInvalid += 1;
+
+            if (!expected || Randomizer.nextBoolean()) {
+                mtTree.restore();
+                assertEquals(mtTree.copy().isValid(), mtTree.isValid());
+            } else
+                mtTree.setEverythingDirty(false);
+        }
+
+        // Ensure the test exercises both outcomes:
+        assertTrue(nInvalid>0);
+        assertTrue(nInvalid<2000);
+    }
+}
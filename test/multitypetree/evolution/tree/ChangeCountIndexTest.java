@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Checks the change count index maintained by MultiTypeTree against a
+ * linear scan of the node array while changes are added, removed and
+ * restored.
+ */
+public class ChangeCountIndexTest extends TestCase {
+
+    private void assertIndexConsistent(MultiTypeTree mtTree) {
+        int total = 0;
+        for (Node node : mtTree.getNodesAsArray()) {
+            if (node.isRoot())
+                continue;
+
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+            assertEquals(total, mtTree.getChangeCountBefore(node.getNr()));
+            for (int i=0; i<mtNode.getChangeCount(); i++)
+                assertEquals(node.getNr(), mtTree.getChangeNodeNr(total+i));
+
+            total += mtNode.getChangeCount();
+        }
+
+        assertEquals(total, mtTree.getTotalNumberOfChanges());
+    }
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("ChangeCountIndexTest");
+
+        Randomizer.setSeed(7);
+
+        String newickStr =
+                "((A[&state=1]:1.0,B[&state=0]:1.0)[&state=1]:1.0,"
+                + "(C[&state=0]:1.5,D[&state=1]:1.5)[&state=0]:0.5)[&state=1]:0.0;";
+
+        for (boolean useChangeArena : new boolean[] {false, true}) {
+            MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+            mtTree.initByName(
+                    "value", newickStr,
+                    "typeLabel", "state",
+                    "useChangeArena", useChangeArena);
+
+            assertIndexConsistent(mtTree);
+
+            for (int step=0; step<2000; step++) {
+                mtTree.store();
+
+                int nr = Randomizer.nextInt(mtTree.getNodeCount());
+                MultiTypeNode node = (MultiTypeNode)mtTree.getNode(nr);
+                int count = node.getChangeCount();
+
+                double u = Randomizer.nextDouble();
+                if (u<0.5)
+                    node.insertChange(Randomizer.nextInt(count+1),
+                            Randomizer.nextInt(2), Randomizer.nextDouble());
+                else if (u<0.8 && count>0)
+                    node.removeChange(Randomizer.nextInt(count));
+                else if (u<0.9)
+                    node.truncateChanges(count/2);
+                else
+                    node.clearChanges();
+
+                assertIndexConsistent(mtTree);
+
+                if (Randomizer.nextBoolean()) {
+                    mtTree.restore();
+                    assertIndexConsistent(mtTree);
+                } else
+                    mtTree.setEverythingDirty(false);
+            }
+        }
+    }
+}
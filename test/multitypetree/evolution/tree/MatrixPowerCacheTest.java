@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import junit.framework.TestCase;
+import org.jblas.DoubleMatrix;
+import org.junit.Test;
+
+/**
+ * Compares cached matrix powers, with and without the memory limit in
+ * effect, against repeated jblas multiplication.
+ */
+public class MatrixPowerCacheTest extends TestCase {
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("MatrixPowerCacheTest");
+
+        DoubleMatrix R = new DoubleMatrix(new double[][] {
+                {0.5, 0.3, 0.2},
+                {0.1, 0.8, 0.1},
+                {0.25, 0.25, 0.5}});
+
+        // Second cache can only hold 4 powers of a 3x3 matrix:
+        MatrixPowerCache unlimited = new MatrixPowerCache(3, 1L<<20);
+        MatrixPowerCache limited = new MatrixPowerCache(3, 4*8*9);
+        unlimited.setMatrix(R);
+        limited.setMatrix(R);
+
+        DoubleMatrix Rpow = DoubleMatrix.eye(3);
+        for (int k=0; k<30; k++) {
+            for (int i=0; i<3; i++) {
+                for (int j=0; j<3; j++) {
+                    assertEquals(Rpow.get(i, j), unlimited.get(k, i, j), 1e-12);
+                    assertEquals(Rpow.get(i, j), limited.get(k, i, j), 1e-12);
+                }
+            }
+            Rpow = Rpow.mmul(R);
+        }
+        assertTrue(limited.getPowerCount()<=4);
+
+        // Access out of order beyond the limit:
+        assertEquals(unlimited.get(7, 1, 2), limited.get(7, 1, 2), 1e-12);
+
+        // Once steady state is detected, higher powers are all equal:
+        unlimited.get(10000, 0, 0);
+        if (unlimited.getSteadyN()>0) {
+            for (int j=0; j<3; j++)
+                assertEquals(unlimited.get(unlimited.getSteadyN()-1, 0, j),
+                        unlimited.get(100000, 0, j), 0.0);
+        }
+
+        // The identity is steady from the outset:
+        MatrixPowerCache identity = new MatrixPowerCache(3, 1L<<20);
+        identity.setMatrix(DoubleMatrix.eye(3));
+        assertEquals(1.0, identity.get(50, 2, 2), 0.0);
+        assertEquals(2, identity.getSteadyN());
+
+        // Replacing the matrix must discard cached powers:
+        long memoryUse = unlimited.getMemoryUse();
+        unlimited.setMatrix(DoubleMatrix.eye(3));
+        assertEquals(0.0, unlimited.get(5, 0, 1), 0.0);
+        assertEquals(memoryUse, unlimited.getMemoryUse());
+    }
+}
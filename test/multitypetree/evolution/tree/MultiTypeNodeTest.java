@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Tree;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Checks manipulation of the type changes stored on a MultiTypeNode,
+ * including growth of the backing arrays.
+ */
+public class MultiTypeNodeTest extends TestCase {
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("MultiTypeNodeTest");
+
+        MultiTypeNode node = new MultiTypeNode();
+        node.setHeight(0.0);
+        node.setNodeType(0);
+
+        assertEquals(0, node.getChangeCount());
+        assertEquals(0, node.getFinalType());
+        assertEquals(0.0, node.getFinalChangeTime(), 0.0);
+
+        for (int i=0; i<100; i++)
+            node.addChange(i%3, 0.01*(i+1));
+
+        assertEquals(100, node.getChangeCount());
+        assertEquals(0, node.getFinalType());
+        assertEquals(1.0, node.getFinalChangeTime(), 1e-12);
+
+        node.insertChange(0, 2, 0.005);
+        node.insertChange(101, 1, 1.5);
+        assertEquals(102, node.getChangeCount());
+        assertEquals(2, node.getChangeType(0));
+        assertEquals(0, node.getChangeType(1));
+        assertEquals(0.01, node.getChangeTime(1), 1e-12);
+        assertEquals(1, node.getFinalType());
+
+        node.removeChange(0);
+        assertEquals(0, node.getChangeType(0));
+        assertEquals(0.01, node.getChangeTime(0), 1e-12);
+
+        node.setChangeType(1, 2);
+        node.setChangeTime(1, 0.015);
+        assertEquals(2, node.getChangeType(1));
+        assertEquals(0.015, node.getChangeTime(1), 0.0);
+
+        // Bulk accessors agree with per-element accessors:
+        int[] types = new int[node.getChangeCount()+1];
+        double[] times = new double[node.getChangeCount()+1];
+        node.copyChangeTypes(types, 1);
+        node.copyChangeTimes(times, 1);
+        for (int i=0; i<node.getChangeCount(); i++) {
+            assertEquals(node.getChangeType(i), types[i+1]);
+            assertEquals(node.getChangeTime(i), times[i+1], 0.0);
+            int offset = node.getChangeArrayOffset();
+            assertEquals(node.getChangeType(i), node.getChangeTypesArray()[offset+i]);
+            assertEquals(node.getChangeTime(i), node.getChangeTimesArray()[offset+i], 0.0);
+        }
+
+        // Copies are independent of the original:
+        MultiTypeNode copy = node.shallowCopy();
+        node.truncateChanges(10);
+        assertEquals(10, node.getChangeCount());
+        assertEquals(101, copy.getChangeCount());
+        assertEquals(1.5, copy.getFinalChangeTime(), 0.0);
+
+        try {
+            node.getChangeTime(10);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException ex) { }
+
+        node.clearChanges();
+        assertEquals(0, node.getChangeCount());
+        assertEquals(0, node.getFinalType());
+
+        // Type modifications are flagged separately from the node's dirty
+        // flag, which tree likelihoods rely on:
+        MultiTypeNode retyped = new MultiTypeNode();
+        assertFalse(retyped.isModified());
+        retyped.setNodeType(1);
+        retyped.addChange(0, 0.5);
+        assertTrue(retyped.isTypeDirty());
+        assertTrue(retyped.isModified());
+        assertEquals(Tree.IS_CLEAN, retyped.isDirty());
+    }
+}
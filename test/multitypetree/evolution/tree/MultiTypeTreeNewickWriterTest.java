@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Checks that the streaming Newick writer reproduces the strings obtained
+ * from the flattened tree and from the type-annotated original tree.
+ */
+public class MultiTypeTreeNewickWriterTest extends TestCase {
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("MultiTypeTreeNewickWriterTest");
+
+        Randomizer.setSeed(5);
+
+        String newickStr =
+                "((A[&state=1]:1.0,B[&state=0]:1.0)[&state=1]:1.0,"
+                + "(C[&state=0]:1.5,D[&state=1]:1.5)[&state=0]:0.5)[&state=1]:0.0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "state");
+
+        MultiTypeTreeNewickWriter writer = new MultiTypeTreeNewickWriter();
+        assertEquals(mtTree.toString(),
+                writer.toNewick(new MultiTypeTreeSnapshot(mtTree)));
+
+        // Add type changes to random branches and compare again:
+        for (int step=0; step<20; step++) {
+            Node node = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+            if (node.isRoot())
+                continue;
+
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+            double lower = mtNode.getFinalChangeTime();
+            double upper = node.getParent().getHeight();
+            mtNode.addChange(1 - mtNode.getFinalType(),
+                    lower + Randomizer.nextDouble()*(upper-lower));
+
+            assertEquals(mtTree.toString(),
+                    writer.toNewick(new MultiTypeTreeSnapshot(mtTree)));
+        }
+
+        // Without type changes, output matches that of the original nodes
+        // annotated with their types:
+        for (Node node : mtTree.getNodesAsArray())
+            node.metaDataString = "state=\""
+                    + mtTree.getTypeSet().getTypeName(((MultiTypeNode)node).getNodeType())
+                    + "\"";
+        MultiTypeTreeNewickWriter typedNodeWriter = new MultiTypeTreeNewickWriter(false);
+        assertEquals(mtTree.getRoot().toSortedNewick(new int[1], true),
+                typedNodeWriter.toNewick(new MultiTypeTreeSnapshot(mtTree)));
+    }
+}
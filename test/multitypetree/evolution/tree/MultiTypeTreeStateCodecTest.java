@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks that writing a multi-type tree to a binary state node and
+ * reading it back reproduces the tree exactly.
+ */
+public class MultiTypeTreeStateCodecTest extends TestCase {
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("MultiTypeTreeStateCodecTest");
+
+        Randomizer.setSeed(53);
+
+        String newickStr =
+                "((A[&state=1]:1.0,B[&state=0]:1.0)[&state=1]:1.0,"
+                + "(C[&state=0]:1.5,D[&state=1]:1.5)[&state=0]:0.5)[&state=1]:0.0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "state",
+                "binaryState", true);
+        mtTree.setID("tree");
+
+        // Add type changes at times not exactly representable in decimal:
+        for (int step=0; step<20; step++) {
+            Node node = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+            if (node.isRoot())
+                continue;
+
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+            double lower = mtNode.getFinalChangeTime();
+            double upper = node.getParent().getHeight();
+            mtNode.addChange(1 - mtNode.getFinalType(),
+                    lower + Randomizer.nextDouble()*(upper-lower));
+        }
+
+        String xml = mtTree.toXML();
+        assertTrue(xml.contains("format='binary'"));
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+
+        MultiTypeTree restored = new MultiTypeTree();
+        restored.fromXML(doc.getDocumentElement());
+
+        assertEquals(mtTree.getNodeCount(), restored.getNodeCount());
+        assertEquals(mtTree.getLeafNodeCount(), restored.getLeafNodeCount());
+        assertEquals(mtTree.getRoot().getNr(), restored.getRoot().getNr());
+        assertEquals(mtTree.getTotalNumberOfChanges(),
+                restored.getTotalNumberOfChanges());
+
+        for (int nr=0; nr<mtTree.getNodeCount(); nr++) {
+            MultiTypeNode e = (MultiTypeNode)mtTree.getNode(nr);
+            MultiTypeNode a = (MultiTypeNode)restored.getNode(nr);
+
+            assertEquals(e.getID(), a.getID());
+            assertEquals(e.getHeight(), a.getHeight(), 0.0);
+            assertEquals(e.getNodeType(), a.getNodeType());
+            if (!e.isRoot())
+                assertEquals(e.getParent().getNr(), a.getParent().getNr());
+            if (!e.isLeaf())
+                assertEquals(e.getLeft().getNr(), a.getLeft().getNr());
+
+            assertEquals(e.getChangeCount(), a.getChangeCount());
+            for (int i=0; i<e.getChangeCount(); i++) {
+                assertEquals(e.getChangeType(i), a.getChangeType(i));
+                assertEquals(e.getChangeTime(i), a.getChangeTime(i), 0.0);
+            }
+        }
+
+        assertTrue(restored.isValid());
+    }
+}
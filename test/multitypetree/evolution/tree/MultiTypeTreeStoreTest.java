@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Mimics the store/accept/reject cycle of an MCMC run on a multi-type tree
+ * and checks that restoring always recovers the state present when the
+ * tree was last stored, even though store() copies only modified nodes.
+ */
+public class MultiTypeTreeStoreTest extends TestCase {
+
+    private void assertSameTree(MultiTypeTree expected, MultiTypeTree actual) {
+        assertEquals(expected.getRoot().getNr(), actual.getRoot().getNr());
+
+        for (int nr=0; nr<expected.getNodeCount(); nr++) {
+            MultiTypeNode e = (MultiTypeNode)expected.getNode(nr);
+            MultiTypeNode a = (MultiTypeNode)actual.getNode(nr);
+
+            assertEquals(e.getHeight(), a.getHeight(), 0.0);
+            assertEquals(e.getNodeType(), a.getNodeType());
+            if (!e.isRoot())
+                assertEquals(e.getParent().getNr(), a.getParent().getNr());
+
+            assertEquals(e.getChangeCount(), a.getChangeCount());
+            for (int i=0; i<e.getChangeCount(); i++) {
+                assertEquals(e.getChangeType(i), a.getChangeType(i));
+                assertEquals(e.getChangeTime(i), a.getChangeTime(i), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("MultiTypeTreeStoreTest");
+
+        Randomizer.setSeed(53);
+
+        String newickStr =
+                "((A[&state=1]:1.0,B[&state=0]:1.0)[&state=1]:1.0,"
+                + "(C[&state=0]:1.5,D[&state=1]:1.5)[&state=0]:0.5)[&state=1]:0.0;";
+
+        for (boolean useChangeArena : new boolean[] {false, true}) {
+            MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+            mtTree.initByName(
+                    "value", newickStr,
+                    "typeLabel", "state",
+                    "useChangeArena", useChangeArena,
+                    "checkStoreInvariants", true);
+
+            for (int step=0; step<1000; step++) {
+                mtTree.store();
+                MultiTypeTree before = mtTree.copy();
+                before.initArrays();
+
+                // Modify one or two random nodes:
+                int nModified = 1 + Randomizer.nextInt(2);
+                for (int m=0; m<nModified; m++) {
+                    Node node = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+                    MultiTypeNode mtNode = (MultiTypeNode)node;
+
+                    if (node.isLeaf() || Randomizer.nextBoolean()) {
+                        if (!node.isRoot()) {
+                            double lower = mtNode.getFinalChangeTime();
+                            double upper = node.getParent().getHeight();
+                            mtNode.addChange(mtNode.getFinalType(),
+                                    lower + Randomizer.nextDouble()*(upper-lower));
+                            if (Randomizer.nextBoolean())
+                                mtNode.removeChange(0);
+                        }
+                    } else {
+                        double lower = Math.max(
+                                ((MultiTypeNode)node.getLeft()).getFinalChangeTime(),
+                                ((MultiTypeNode)node.getRight()).getFinalChangeTime());
+                        double upper = node.isRoot()
+                                ? lower + 1.0
+                                : Math.min(node.getParent().getHeight(),
+                                        mtNode.getChangeCount()>0
+                                                ? mtNode.getChangeTime(0)
+                                                : node.getParent().getHeight());
+                        node.setHeight(lower + Randomizer.nextDouble()*(upper-lower));
+                    }
+                }
+
+                if (Randomizer.nextBoolean()) {
+                    // Reject:
+                    mtTree.restore();
+                    assertSameTree(before, mtTree);
+                } else {
+                    // Accept:
+                    mtTree.setEverythingDirty(false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.core.BEASTObject;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.jblas.DoubleMatrix;
+import org.jblas.MatrixFunctions;
+import org.junit.Test;
+
+/**
+ * Compares transition probabilities obtained from the cached
+ * eigendecompositions with direct matrix exponentiation.
+ */
+public class SCMigrationModelTransitionProbTest extends TestCase {
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("SCMigrationModelTransitionProbTest");
+
+        // Asymmetric rates, so that eigenvalues of Q may be complex:
+        RealParameter rateMatrix = new RealParameter(
+                "0.1 2.0 0.05 0.7 0.01 1.5");
+        RealParameter popSizes = new RealParameter("7.0 5.0 3.0");
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B", "C"));
+
+        double[] row = new double[3];
+        for (boolean sym : new boolean[] {false, true}) {
+            for (double t : new double[] {0.0, 0.01, 0.5, 3.0, 50.0}) {
+                DoubleMatrix P = MatrixFunctions.expm(
+                        migModel.getQ(sym).mul(t));
+
+                for (int i=0; i<3; i++) {
+                    migModel.getTransitionProbs(i, t, sym, row);
+                    for (int j=0; j<3; j++) {
+                        assertEquals(P.get(i, j),
+                                migModel.getTransitionProb(i, j, t, sym), 1e-10);
+                        assertEquals(P.get(i, j), row[j], 1e-10);
+
+                        // Snapshots used by other threads agree exactly:
+                        assertEquals(migModel.getTransitionProb(i, j, t, sym),
+                                migModel.getTransitionProbSnapshot(sym)
+                                        .getTransitionProb(i, j, t), 0.0);
+                    }
+                }
+            }
+        }
+
+        // Changes to parameters must invalidate the cached decompositions.
+        // (Outside of an MCMC run the model must be marked dirty by hand.)
+        rateMatrix.setValue(1, 0.2);
+        migModel.dirty = true;
+        DoubleMatrix P = MatrixFunctions.expm(migModel.getQ(false).mul(2.0));
+        assertEquals(P.get(0, 1), migModel.getTransitionProb(0, 1, 2.0, false), 1e-10);
+    }
+
+    @Test
+    public void testSparse() throws Exception {
+        System.out.println("SCMigrationModelTransitionProbTest: sparse");
+
+        // Most routes switched off by BSSVS flags:
+        String rates = "0.1 2.0 0.05 0.7 0.01 1.5 0.3 0.2 0.9 0.4 1.1 0.6";
+        String flags = "true false false false false true false false false false true false";
+
+        SCMigrationModel denseModel = new SCMigrationModel();
+        denseModel.initByName(
+                "rateMatrix", new RealParameter(rates),
+                "rateMatrixFlags", new BooleanParameter(flags),
+                "popSizes", new RealParameter("7.0 5.0 3.0 2.0"),
+                "typeSet", new TypeSet("A", "B", "C", "D"));
+
+        SCMigrationModel sparseModel = new SCMigrationModel();
+        sparseModel.initByName(
+                "rateMatrix", new RealParameter(rates),
+                "rateMatrixFlags", new BooleanParameter(flags),
+                "popSizes", new RealParameter("7.0 5.0 3.0 2.0"),
+                "typeSet", new TypeSet("A", "B", "C", "D"),
+                "useSparseRateMatrix", true);
+
+        // Only the diagonal and the three active routes are stored:
+        assertEquals(7, sparseModel.getSparseQ(false).getNonZeroCount());
+
+        for (boolean sym : new boolean[] {false, true}) {
+            assertEquals(denseModel.getMu(sym), sparseModel.getMu(sym), 0.0);
+
+            for (double t : new double[] {0.0, 0.01, 0.5, 3.0, 50.0, 2000.0}) {
+                for (int i=0; i<4; i++) {
+                    for (int j=0; j<4; j++) {
+                        assertEquals(denseModel.getTransitionProb(i, j, t, sym),
+                                sparseModel.getTransitionProb(i, j, t, sym), 1e-10);
+                    }
+                }
+            }
+
+            for (int n : new int[] {0, 1, 5, 40})
+                for (int i=0; i<4; i++)
+                    for (int j=0; j<4; j++)
+                        assertEquals(denseModel.getRpowNElement(n, i, j, sym),
+                                sparseModel.getRpowNElement(n, i, j, sym), 1e-12);
+
+            // Dense matrices are still available on request:
+            assertEquals(denseModel.getQ(sym).get(0, 1),
+                    sparseModel.getQ(sym).get(0, 1), 0.0);
+        }
+    }
+
+    @Test
+    public void testShortBranch() throws Exception {
+        System.out.println("SCMigrationModelTransitionProbTest: short branch");
+
+        // Only two routes active, so that some pairs of types are two
+        // migrations apart:
+        String rates = "0.8 0.05 0.3 1.2 0.02 0.4";
+        String flags = "true false false true false false";
+
+        for (boolean sparse : new boolean[] {false, true}) {
+            SCMigrationModel migModel = new SCMigrationModel();
+            migModel.initByName(
+                    "rateMatrix", new RealParameter(rates),
+                    "rateMatrixFlags", new BooleanParameter(flags),
+                    "popSizes", new RealParameter("7.0 5.0 3.0"),
+                    "typeSet", new TypeSet("A", "B", "C"),
+                    "useSparseRateMatrix", sparse);
+
+            for (boolean sym : new boolean[] {false, true}) {
+                DoubleMatrix Q = migModel.getQ(sym);
+                DoubleMatrix Q2 = Q.mmul(Q);
+
+                double[] row = new double[3];
+                int nTwoJump = 0;
+                for (int i=0; i<3; i++) {
+                    for (int j=0; j<3; j++) {
+                        if (i == j || Q.get(i, j) != 0.0 || !(Q2.get(i, j)>0.0))
+                            continue;
+
+                        nTwoJump += 1;
+                        for (double t : new double[] {1e-3, 1e-6, 1e-9}) {
+                            double expected = taylorExp(Q, t).get(i, j);
+                            assertTrue(expected>0.0);
+
+                            double p = migModel.getTransitionProb(i, j, t, sym);
+                            assertEquals(expected, p, 1e-6*expected);
+
+                            migModel.getTransitionProbs(i, t, sym, row);
+                            assertEquals(expected, row[j], 1e-6*expected);
+
+                            SCMigrationModel.TransitionProbSnapshot snapshot =
+                                    migModel.getTransitionProbSnapshot(sym);
+                            if (snapshot != null)
+                                assertEquals(expected,
+                                        snapshot.getTransitionProb(i, j, t),
+                                        1e-6*expected);
+                        }
+                    }
+                }
+
+                if (!sym)
+                    assertTrue(nTwoJump>0);
+            }
+        }
+    }
+
+    @Test
+    public void testDefaultMethods() throws Exception {
+        System.out.println("SCMigrationModelTransitionProbTest: default methods");
+
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", new RealParameter("0.1 2.0 0.05 0.7 0.01 1.5"),
+                "popSizes", new RealParameter("7.0 5.0 3.0"),
+                "typeSet", new TypeSet("A", "B", "C"));
+
+        // Implementation providing only the dense matrix methods:
+        MigrationModel denseOnly = new DenseOnlyMigrationModel(migModel);
+
+        double[] row = new double[3];
+        double[] expectedRow = new double[3];
+        for (boolean sym : new boolean[] {false, true}) {
+            assertEquals(migModel.getSparseQ(sym).getNonZeroCount(),
+                    denseOnly.getSparseQ(sym).getNonZeroCount());
+
+            for (int i=0; i<3; i++) {
+                for (int j=0; j<3; j++) {
+                    assertEquals(migModel.getSparseQ(sym).get(i, j),
+                            denseOnly.getSparseQ(sym).get(i, j), 1e-12);
+                    assertEquals(migModel.getSparseR(sym).get(i, j),
+                            denseOnly.getSparseR(sym).get(i, j), 1e-12);
+                    assertEquals(migModel.getRpowNElement(7, i, j, sym),
+                            denseOnly.getRpowNElement(7, i, j, sym), 1e-12);
+                    assertEquals(migModel.getTransitionProb(i, j, 0.8, sym),
+                            denseOnly.getTransitionProb(i, j, 0.8, sym), 1e-10);
+                }
+
+                migModel.getTransitionProbs(i, 0.8, sym, expectedRow);
+                denseOnly.getTransitionProbs(i, 0.8, sym, row);
+                for (int j=0; j<3; j++)
+                    assertEquals(expectedRow[j], row[j], 1e-10);
+            }
+        }
+    }
+
+    /**
+     * Migration model implementing only the methods of the interface
+     * which lack default implementations.
+     */
+    private static class DenseOnlyMigrationModel extends BEASTObject
+            implements MigrationModel {
+
+        private final SCMigrationModel model;
+
+        DenseOnlyMigrationModel(SCMigrationModel model) {
+            this.model = model;
+        }
+
+        @Override
+        public void initAndValidate() { }
+
+        @Override
+        public int getNTypes() {
+            return model.getNTypes();
+        }
+
+        @Override
+        public TypeSet getTypeSet() {
+            return model.getTypeSet();
+        }
+
+        @Override
+        public double getBackwardRate(int i, int j) {
+            return model.getBackwardRate(i, j);
+        }
+
+        @Override
+        public double getForwardRate(int i, int j) {
+            return model.getForwardRate(i, j);
+        }
+
+        @Override
+        public double getMu(boolean symmetric) {
+            return model.getMu(symmetric);
+        }
+
+        @Override
+        public DoubleMatrix getR(boolean symmetric) {
+            return model.getR(symmetric);
+        }
+
+        @Override
+        public DoubleMatrix getQ(boolean symmetric) {
+            return model.getQ(symmetric);
+        }
+
+        @Override
+        public DoubleMatrix getRpowN(int n, boolean symmetric) {
+            return model.getRpowN(n, symmetric);
+        }
+
+        @Override
+        public int RpowSteadyN(boolean symmetric) {
+            return model.RpowSteadyN(symmetric);
+        }
+    }
+
+    /**
+     * Compute exp(Qt) by its Taylor series, which is accurate to full
+     * relative precision in every element when t is small.
+     */
+    private static DoubleMatrix taylorExp(DoubleMatrix Q, double t) {
+        int n = Q.getRows();
+        DoubleMatrix P = DoubleMatrix.eye(n);
+        DoubleMatrix term = DoubleMatrix.eye(n);
+        for (int k=1; k<=20; k++) {
+            term = term.mmul(Q).mul(t/k);
+            P = P.add(term);
+        }
+
+        return P;
+    }
+
+    @Test
+    public void testStoreRestore() throws Exception {
+        System.out.println("SCMigrationModelTransitionProbTest: store/restore");
+
+        RealParameter rateMatrix = new RealParameter("0.1 2.0");
+        RealParameter popSizes = new RealParameter("7.0 5.0");
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B"));
+
+        double P01 = migModel.getTransitionProb(0, 1, 1.5, false);
+        double R5 = migModel.getRpowNElement(5, 0, 1, false);
+        DoubleMatrix Q = migModel.getQ(false);
+
+        migModel.store();
+        rateMatrix.setValue(0, 0.3);
+        migModel.dirty = true;
+        assertTrue(Math.abs(migModel.getTransitionProb(0, 1, 1.5, false) - P01) > 1e-3);
+        assertTrue(Math.abs(migModel.getRpowNElement(5, 0, 1, false) - R5) > 1e-3);
+
+        // Restoring must reinstate the original derived quantities without
+        // rebuilding them:
+        rateMatrix.setValue(0, 0.1);
+        migModel.restore();
+        assertFalse(migModel.dirty);
+        assertSame(Q, migModel.getQ(false));
+        assertEquals(P01, migModel.getTransitionProb(0, 1, 1.5, false), 0.0);
+        assertEquals(R5, migModel.getRpowNElement(5, 0, 1, false), 0.0);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the event index maintained by MultiTypeTree against an event
+ * sequence assembled from scratch while the tree is modified, stored and
+ * restored.
+ */
+public class TreeEventIndexTest extends TestCase {
+
+    private void assertIndexConsistent(MultiTypeTree mtTree) {
+        TreeEventIndex eventIndex = mtTree.getEventIndex();
+
+        // Assemble events as {time, node number, change index} triples:
+        List<double[]> events = new ArrayList<>();
+        for (Node node : mtTree.getNodesAsArray()) {
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+            events.add(new double[] {node.getHeight(), node.getNr(), -1});
+            for (int i=0; i<mtNode.getChangeCount(); i++)
+                events.add(new double[] {mtNode.getChangeTime(i), node.getNr(), i});
+        }
+        events.sort((a, b) -> {
+            for (int k=0; k<3; k++) {
+                int cmp = Double.compare(a[k], b[k]);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return 0;
+        });
+
+        assertEquals(events.size(), eventIndex.getEventCount());
+
+        int[] counts = new int[2];
+        for (int e=0; e<events.size(); e++) {
+            double[] event = events.get(e);
+            MultiTypeNode node = (MultiTypeNode)mtTree.getNode((int)event[1]);
+            int idx = (int)event[2];
+
+            assertEquals(event[0], eventIndex.getEventTime(e), 0.0);
+            assertEquals(node.getNr(), eventIndex.getEventNodeNr(e));
+            assertEquals(idx, eventIndex.getEventChangeIndex(e));
+
+            if (idx<0) {
+                int type = node.getNodeType();
+                assertEquals(node.isLeaf() ? TreeEventIndex.SAMPLE : TreeEventIndex.COALESCE,
+                        eventIndex.getEventKind(e));
+                assertEquals(type, eventIndex.getEventType(e));
+                counts[type] += node.isLeaf() ? 1 : -1;
+            } else {
+                int source = idx>0 ? node.getChangeType(idx-1) : node.getNodeType();
+                int dest = node.getChangeType(idx);
+                assertEquals(TreeEventIndex.MIGRATE, eventIndex.getEventKind(e));
+                assertEquals(source, eventIndex.getEventType(e));
+                assertEquals(dest, eventIndex.getEventDestType(e));
+                counts[source] -= 1;
+                counts[dest] += 1;
+            }
+
+            for (int c=0; c<2; c++)
+                assertEquals(counts[c], eventIndex.getLineageCountAfter(e, c));
+        }
+
+        // Events are also found when visited in reverse or at random:
+        for (int e=events.size()-1; e>=0; e--)
+            assertEquals(events.get(e)[0], eventIndex.getEventTime(e), 0.0);
+        int e = Randomizer.nextInt(events.size());
+        assertEquals((int)events.get(e)[1], eventIndex.getEventNodeNr(e));
+
+        // Window queries agree with a linear search:
+        double t = Randomizer.nextDouble()*mtTree.getRoot().getHeight();
+        int first = 0;
+        while (first<events.size() && events.get(first)[0]<t)
+            first += 1;
+        assertEquals(first, eventIndex.getFirstEventAtOrAfter(t));
+        assertEquals(first, eventIndex.getFirstEventAfter(t));
+    }
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("TreeEventIndexTest");
+
+        Randomizer.setSeed(11);
+
+        String newickStr =
+                "((A[&state=1]:1.0,B[&state=0]:1.0)[&state=1]:1.0,"
+                + "(C[&state=0]:1.5,D[&state=1]:1.5)[&state=0]:0.5)[&state=1]:0.0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "state",
+                "maintainEventIndex", true);
+
+        assertIndexConsistent(mtTree);
+
+        for (int step=0; step<1000; step++) {
+            mtTree.store();
+
+            Node node = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+            MultiTypeNode mtNode = (MultiTypeNode)node;
+
+            if (node.isLeaf() || Randomizer.nextBoolean()) {
+                if (!node.isRoot()) {
+                    double lower = mtNode.getFinalChangeTime();
+                    double upper = node.getParent().getHeight();
+                    int type = 1 - mtNode.getFinalType();
+                    mtNode.addChange(type, lower + Randomizer.nextDouble()*(upper-lower));
+                    if (Randomizer.nextBoolean())
+                        mtNode.removeChange(mtNode.getChangeCount()-1);
+                }
+            } else {
+                double lower = Math.max(
+                        ((MultiTypeNode)node.getLeft()).getFinalChangeTime(),
+                        ((MultiTypeNode)node.getRight()).getFinalChangeTime());
+                double upper = node.isRoot()
+                        ? lower + 1.0
+                        : Math.min(node.getParent().getHeight(),
+                                mtNode.getChangeCount()>0
+                                        ? mtNode.getChangeTime(0)
+                                        : node.getParent().getHeight());
+                node.setHeight(lower + Randomizer.nextDouble()*(upper-lower));
+            }
+
+            // Query mid-proposal on some steps only, so that updates
+            // spanning several proposals are exercised too:
+            if (Randomizer.nextBoolean())
+                assertIndexConsistent(mtTree);
+
+            if (Randomizer.nextBoolean())
+                mtTree.restore();
+            else
+                mtTree.setEverythingDirty(false);
+
+            if (Randomizer.nextBoolean())
+                assertIndexConsistent(mtTree);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Applies the same random sequence of type change insertions, removals
+ * and store/restore cycles to trees with and without arena storage, and
+ * checks that their changes agree throughout.
+ */
+public class TypeChangeArenaTest extends TestCase {
+
+    private static final String NEWICK_STR =
+            "((A[&state=1]:1.0,B[&state=0]:1.0)[&state=1]:1.0,"
+            + "(C[&state=0]:1.5,D[&state=1]:1.5)[&state=0]:0.5)[&state=1]:0.0;";
+
+    private MultiTypeTree getTree(boolean useChangeArena) throws Exception {
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", NEWICK_STR,
+                "typeLabel", "state",
+                "useChangeArena", useChangeArena);
+
+        return mtTree;
+    }
+
+    private void assertSameChanges(MultiTypeTree expected, MultiTypeTree actual) {
+        for (int nr=0; nr<expected.getNodeCount(); nr++) {
+            MultiTypeNode e = (MultiTypeNode)expected.getNode(nr);
+            MultiTypeNode a = (MultiTypeNode)actual.getNode(nr);
+
+            assertEquals(e.getChangeCount(), a.getChangeCount());
+            for (int i=0; i<e.getChangeCount(); i++) {
+                assertEquals(e.getChangeType(i), a.getChangeType(i));
+                assertEquals(e.getChangeTime(i), a.getChangeTime(i), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("TypeChangeArenaTest");
+
+        Randomizer.setSeed(42);
+
+        MultiTypeTree plainTree = getTree(false);
+        MultiTypeTree arenaTree = getTree(true);
+        assertNotNull(arenaTree.arena);
+        assertNull(plainTree.arena);
+
+        for (int step=0; step<2000; step++) {
+            plainTree.store();
+            arenaTree.store();
+
+            int nr = Randomizer.nextInt(plainTree.getNodeCount());
+            Node node = plainTree.getNode(nr);
+            if (node.isRoot())
+                continue;
+
+            MultiTypeNode plainNode = (MultiTypeNode)node;
+            MultiTypeNode arenaNode = (MultiTypeNode)arenaTree.getNode(nr);
+
+            int count = plainNode.getChangeCount();
+            double u = Randomizer.nextDouble();
+            if (u<0.5) {
+                // Insertions outweigh removals so that branches grow:
+                int idx = Randomizer.nextInt(count+1);
+                int type = Randomizer.nextInt(2);
+                double time = Randomizer.nextDouble();
+                plainNode.insertChange(idx, type, time);
+                arenaNode.insertChange(idx, type, time);
+            } else if (u<0.7 && count>0) {
+                int idx = Randomizer.nextInt(count);
+                plainNode.removeChange(idx);
+                arenaNode.removeChange(idx);
+            } else if (u<0.75) {
+                plainNode.clearChanges();
+                arenaNode.clearChanges();
+            } else if (u<0.8) {
+                plainNode.truncateChanges(count/2);
+                arenaNode.truncateChanges(count/2);
+            }
+
+            assertSameChanges(plainTree, arenaTree);
+
+            // Reject some of the moves:
+            if (Randomizer.nextDouble()<0.3) {
+                plainTree.restore();
+                arenaTree.restore();
+                assertSameChanges(plainTree, arenaTree);
+            }
+        }
+
+        assertEquals(plainTree.getTotalNumberOfChanges(),
+                arenaTree.getTotalNumberOfChanges());
+        assertEquals(plainTree.getTotalNumberOfChanges()
+                + ((MultiTypeNode)plainTree.getRoot()).getChangeCount(),
+                arenaTree.arena.getTotalChangeCount());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.operators;
+
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import multitypetree.distributions.StructuredCoalescentTreeDensity;
+import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TypeSet;
+import org.junit.Test;
+
+/**
+ * Compares draws of the migration model Gibbs operators on a fixed tree
+ * with the means of the full conditionals, which for this tree can be
+ * worked out by hand.
+ */
+public class MigrationModelGibbsTest extends TestCase {
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("MigrationModelGibbsTest");
+
+        Randomizer.setSeed(7);
+
+        // Per-deme statistics of this tree:
+        //   lineage time: 5.25 (deme 0), 0.25 (deme 1)
+        //   lineage pair time: 4.75 (deme 0), 0 (deme 1)
+        //   coalescences: 3 (deme 0), 0 (deme 1)
+        //   migrations: 1 (deme 1 to deme 0)
+        String newickStr =
+                "(((A[&state=1]:0.25)[&state=0]:0.25,B[&state=0]:0.5)[&state=0]:1.5,"
+                + "(C[&state=0]:1.0,D[&state=0]:1.0)[&state=0]:1.0)[&state=0]:0.0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "state");
+
+        RealParameter rateMatrix = new RealParameter("2.0 1.0");
+        RealParameter popSizes = new RealParameter("5.0 10.0");
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", rateMatrix,
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B"));
+
+        StructuredCoalescentTreeDensity density =
+                new StructuredCoalescentTreeDensity();
+        density.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree);
+
+        PopSizeGibbsOperator popSizeOperator = new PopSizeGibbsOperator();
+        popSizeOperator.initByName(
+                "weight", 1.0,
+                "structuredCoalescentDensity", density,
+                "priorShape", 3.0,
+                "priorScale", 10.0);
+
+        MigrationRateGibbsOperator rateOperator = new MigrationRateGibbsOperator();
+        rateOperator.initByName(
+                "weight", 1.0,
+                "structuredCoalescentDensity", density,
+                "priorShape", 2.0,
+                "priorScale", 0.5);
+
+        int nSamples = 10000;
+        double[] popSizeSums = new double[2];
+        double[] rateSums = new double[2];
+        for (int i=0; i<nSamples; i++) {
+            popSizeOperator.proposal();
+            rateOperator.proposal();
+
+            for (int c=0; c<2; c++) {
+                popSizeSums[c] += popSizes.getValue(c);
+                rateSums[c] += rateMatrix.getValue(c);
+            }
+        }
+
+        // Inverse gamma full conditionals: IG(3+3, 10+4.75) and IG(3, 10)
+        assertEquals(14.75/5.0, popSizeSums[0]/nSamples, 0.1);
+        assertEquals(10.0/2.0, popSizeSums[1]/nSamples, 0.25);
+
+        // Gamma full conditionals (shape, rate): (2, 2+5.25) and (2+1, 2+0.25)
+        assertEquals(2.0/7.25, rateSums[0]/nSamples, 0.02);
+        assertEquals(3.0/2.25, rateSums[1]/nSamples, 0.05);
+    }
+}
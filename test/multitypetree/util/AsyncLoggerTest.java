@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.core.BEASTObject;
+import beast.base.inference.Logger;
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
+import multitypetree.evolution.tree.SCMigrationModel;
+import multitypetree.evolution.tree.TypeSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that AsyncLogger produces the same output as the standard Logger
+ * and resumes into an existing log, as the standard Logger does, instead
+ * of overwriting it.
+ */
+public class AsyncLoggerTest extends TestCase {
+
+    private void writeLog(File file, int nSamples) throws Exception {
+        RealParameter param = new RealParameter("1.5");
+        param.setID("param");
+
+        AsyncLogger logger = new AsyncLogger();
+        logger.initByName(
+                "fileName", file.getPath(),
+                "logEvery", 1,
+                "log", param);
+
+        logger.init();
+        for (long sample=0; sample<nSamples; sample++)
+            logger.log(sample);
+        logger.close();
+    }
+
+    /**
+     * Write log of the given objects using the given logger, changing the
+     * population sizes between samples.
+     */
+    private byte[] writeLog(Logger logger, File file, RealParameter popSizes,
+                            BEASTObject... loggables) throws Exception {
+        List<Object> inputs = new ArrayList<>(Arrays.asList(
+                "fileName", file.getPath(),
+                "logEvery", 2));
+        for (BEASTObject loggable : loggables) {
+            inputs.add("log");
+            inputs.add(loggable);
+        }
+        logger.initByName(inputs.toArray());
+
+        popSizes.setValue(0, 5.0);
+        logger.init();
+        for (long sample=0; sample<20; sample++) {
+            logger.log(sample);
+            popSizes.setValue(0, popSizes.getValue(0)*1.1);
+        }
+        logger.close();
+
+        return Files.readAllBytes(file.toPath());
+    }
+
+    @Test
+    public void testOutputMatchesLogger() throws Exception {
+        System.out.println("AsyncLoggerTest: output matches Logger");
+
+        String newickStr =
+                "(((A[&state=1]:0.25)[&state=0]:0.25,B[&state=0]:0.5)[&state=0]:1.5,"
+                + "(C[&state=0]:1.0,D[&state=0]:1.0)[&state=0]:1.0)[&state=0]:0.0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "state");
+        mtTree.setID("tree");
+
+        RealParameter popSizes = new RealParameter("5.0 10.0");
+        SCMigrationModel migModel = new SCMigrationModel();
+        migModel.initByName(
+                "rateMatrix", new RealParameter("2.0 1.0"),
+                "popSizes", popSizes,
+                "typeSet", new TypeSet("A", "B"));
+        migModel.setID("migModel");
+
+        MigrationModelLogger migModelLogger = new MigrationModelLogger();
+        migModelLogger.initByName(
+                "migrationModel", migModel,
+                "multiTypeTree", mtTree);
+
+        TypeLengths typeLengths = new TypeLengths();
+        typeLengths.initByName(
+                "multiTypeTree", mtTree,
+                "migrationModel", migModel);
+        typeLengths.setID("typeLengths");
+
+        File file = File.createTempFile("AsyncLoggerTest", ".log");
+        file.deleteOnExit();
+
+        Logger.LogFileMode fileMode = Logger.FILE_MODE;
+        try {
+            Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+
+            // Tree log:
+            byte[] expected = writeLog(new Logger(), file, popSizes, mtTree);
+            byte[] actual = writeLog(new AsyncLogger(), file, popSizes, mtTree);
+            assertTrue(Arrays.equals(expected, actual));
+
+            // Trace log:
+            expected = writeLog(new Logger(), file, popSizes,
+                    migModelLogger, typeLengths);
+            actual = writeLog(new AsyncLogger(), file, popSizes,
+                    migModelLogger, typeLengths);
+            assertTrue(expected.length>0);
+            assertTrue(Arrays.equals(expected, actual));
+        } finally {
+            Logger.FILE_MODE = fileMode;
+        }
+    }
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("AsyncLoggerTest");
+
+        File file = File.createTempFile("AsyncLoggerTest", ".log");
+        file.deleteOnExit();
+
+        Logger.LogFileMode fileMode = Logger.FILE_MODE;
+        try {
+            Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+            writeLog(file, 3);
+
+            Logger.FILE_MODE = Logger.LogFileMode.resume;
+            writeLog(file, 3);
+        } finally {
+            Logger.FILE_MODE = fileMode;
+        }
+
+        List<String> lines = Files.readAllLines(file.toPath());
+
+        // Header is written once, and sample numbers continue from the
+        // last sample of the original run:
+        assertEquals(6, lines.size());
+        assertTrue(lines.get(0).startsWith("Sample"));
+        for (int i=1; i<lines.size(); i++)
+            assertEquals(String.valueOf(i-1), lines.get(i).split("\t")[0]);
+    }
+}
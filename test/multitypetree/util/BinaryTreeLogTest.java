@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package multitypetree.util;
+
+import beast.base.evolution.tree.Node;
+import beast.base.inference.Logger;
+import beast.base.util.Randomizer;
+import junit.framework.TestCase;
+import multitypetree.evolution.tree.MultiTypeNode;
+import multitypetree.evolution.tree.MultiTypeTreeFromNewick;
+import multitypetree.evolution.tree.MultiTypeTreeNewickWriter;
+import multitypetree.evolution.tree.MultiTypeTreeSnapshot;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a sequence of trees to binary logs and checks that they are
+ * recovered exactly by the reader and converter.
+ */
+public class BinaryTreeLogTest extends TestCase {
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("BinaryTreeLogTest");
+
+        checkRoundTrip(true);
+        checkRoundTrip(false);
+        checkResume();
+    }
+
+    private void writeLog(File logFile, MultiTypeTreeFromNewick mtTree,
+            int nSamples) throws Exception {
+        BinaryTreeLogger logger = new BinaryTreeLogger();
+        logger.initByName(
+                "fileName", logFile.getPath(),
+                "logEvery", 10,
+                "multiTypeTree", mtTree);
+
+        logger.init();
+        for (long sample=0; sample<nSamples; sample++)
+            logger.log(sample);
+        logger.close();
+    }
+
+    /**
+     * Checks that a resumed run appends to the existing log, with sample
+     * numbers continuing from its last record.
+     */
+    private void checkResume() throws Exception {
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", "((A[&state=1]:1.0,B[&state=0]:1.0)[&state=0]:1.0,"
+                        + "C[&state=0]:2.0)[&state=0]:0.0;",
+                "typeLabel", "state");
+
+        File logFile = File.createTempFile("BinaryTreeLogTest", ".bin");
+        logFile.deleteOnExit();
+
+        Logger.LogFileMode fileMode = Logger.FILE_MODE;
+        try {
+            Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+            writeLog(logFile, mtTree, 30);
+
+            Logger.FILE_MODE = Logger.LogFileMode.resume;
+            writeLog(logFile, mtTree, 30);
+        } finally {
+            Logger.FILE_MODE = fileMode;
+        }
+
+        try (BinaryTreeLogReader reader = new BinaryTreeLogReader(logFile)) {
+            assertEquals(5, reader.getSampleCount());
+            for (int i=0; i<reader.getSampleCount(); i++)
+                assertEquals(10L*i, reader.getSampleNumber(i));
+        }
+    }
+
+    private void checkRoundTrip(boolean compress) throws Exception {
+        Randomizer.setSeed(53);
+
+        String newickStr =
+                "((A[&state=1]:1.0,B[&state=0]:1.0)[&state=1]:1.0,"
+                + "(C[&state=0]:1.5,D[&state=1]:1.5)[&state=0]:0.5)[&state=1]:0.0;";
+
+        MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+        mtTree.initByName(
+                "value", newickStr,
+                "typeLabel", "state");
+
+        File logFile = File.createTempFile("BinaryTreeLogTest", ".bin");
+        logFile.deleteOnExit();
+
+        // Expected NEXUS output, assembled as by Logger:
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream header = new PrintStream(baos);
+        mtTree.init(header);
+        header.flush();
+        StringBuilder expectedNexus = new StringBuilder(baos.toString().trim());
+        expectedNexus.append("\n");
+
+        List<String> expected = new ArrayList<>();
+        BinaryTreeLogWriter writer = new BinaryTreeLogWriter(logFile, mtTree, compress);
+        for (int sample=0; sample<50; sample++) {
+            Node node = mtTree.getNode(Randomizer.nextInt(mtTree.getNodeCount()));
+            if (!node.isRoot()) {
+                MultiTypeNode mtNode = (MultiTypeNode)node;
+                double lower = mtNode.getFinalChangeTime();
+                double upper = node.getParent().getHeight();
+                mtNode.addChange(1 - mtNode.getFinalType(),
+                        lower + Randomizer.nextDouble()*(upper-lower));
+            }
+
+            writer.write(1000L*sample);
+            expected.add(mtTree.toString());
+            expectedNexus.append("tree STATE_").append(1000L*sample)
+                    .append(" = ").append(mtTree.toString()).append(";\n");
+        }
+        writer.close();
+        expectedNexus.append("End;\n");
+
+        MultiTypeTreeNewickWriter newickWriter = new MultiTypeTreeNewickWriter();
+        try (BinaryTreeLogReader reader = new BinaryTreeLogReader(logFile)) {
+            assertEquals(50, reader.getSampleCount());
+            assertEquals("state", reader.getTypeLabel());
+
+            // Random access, in reverse order:
+            for (int i=reader.getSampleCount()-1; i>=0; i--) {
+                assertEquals(1000L*i, reader.getSampleNumber(i));
+                MultiTypeTreeSnapshot snapshot = reader.getSnapshot(i);
+                assertEquals(expected.get(i), newickWriter.toNewick(snapshot));
+            }
+
+            baos = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(baos);
+            BinaryTreeLogConverter.convert(reader, out, 0.0);
+            assertEquals(expectedNexus.toString(),
+                    baos.toString().replace(System.lineSeparator(), "\n"));
+        }
+    }
+}